@@ -10,8 +10,8 @@ L=en
 echo "Downloading from: http://dumps.wikimedia.org/${L}wiktionary/"
 WIKI=${L}wiktionary-20121208-pages-articles.xml
 curl --remote-name http://dumps.wikimedia.org/${L}wiktionary/20121208/${WIKI}.bz2
-bunzip2 ${WIKI}.bz2
-mv ${WIKI} inputs/${L}wiktionary-pages-articles.xml
+rm -f inputs/${L}wiktionary-pages-articles.xml
+mv ${WIKI}.bz2 inputs/${L}wiktionary-pages-articles.xml.bz2
 
 echo "Downloading from: http://ftp.tu-chemnitz.de/pub/Local/urz/ding/de-en-devel/"
 CHEMNITZ=de-en.txt
@@ -23,30 +23,30 @@ L=fr
 echo "Downloading from: http://dumps.wikimedia.org/${L}wiktionary/"
 WIKI=${L}wiktionary-20121204-pages-articles.xml
 curl --remote-name http://dumps.wikimedia.org/${L}wiktionary/20121204/${WIKI}.bz2
-bunzip2 --force ${WIKI}.bz2
-mv ${WIKI} inputs/${L}wiktionary-pages-articles.xml
+rm -f inputs/${L}wiktionary-pages-articles.xml
+mv ${WIKI}.bz2 inputs/${L}wiktionary-pages-articles.xml.bz2
 
 L=it
 echo "Downloading from: http://dumps.wikimedia.org/${L}wiktionary/"
 WIKI=${L}wiktionary-20121213-pages-articles.xml
 curl --remote-name http://dumps.wikimedia.org/${L}wiktionary/20121213/${WIKI}.bz2
-bunzip2 ${WIKI}.bz2
-mv ${WIKI} inputs/${L}wiktionary-pages-articles.xml
+rm -f inputs/${L}wiktionary-pages-articles.xml
+mv ${WIKI}.bz2 inputs/${L}wiktionary-pages-articles.xml.bz2
 
 L=de
 echo "Downloading from: http://dumps.wikimedia.org/${L}wiktionary/"
 WIKI=${L}wiktionary-20121206-pages-articles.xml
 curl --remote-name http://dumps.wikimedia.org/${L}wiktionary/20121206/${WIKI}.bz2
-bunzip2 ${WIKI}.bz2
-mv ${WIKI} inputs/${L}wiktionary-pages-articles.xml
+rm -f inputs/${L}wiktionary-pages-articles.xml
+mv ${WIKI}.bz2 inputs/${L}wiktionary-pages-articles.xml.bz2
 
 L=es
 echo "Downloading from: http://dumps.wikimedia.org/${L}wiktionary/"
 WIKI=${L}wiktionary-20121210-pages-articles.xml
 curl --remote-name http://dumps.wikimedia.org/${L}wiktionary/20121210/${WIKI}.bz2
-bunzip2 ${WIKI}.bz2
-mv ${WIKI} inputs/${L}wiktionary-pages-articles.xml
+rm -f inputs/${L}wiktionary-pages-articles.xml
+mv ${WIKI}.bz2 inputs/${L}wiktionary-pages-articles.xml.bz2
 
-echo "Done.  Now run WiktionarySplitter to spit apart enwiktionary."
+echo "Done.  Now run WiktionarySplitter to spit apart enwiktionary (it reads the .bz2 files directly)."
 
 cd $OLD_DIR
@@ -0,0 +1,441 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Decodes single bzip2 blocks.
+ *
+ * A bzip2 file is one or more streams, each a "BZh[1-9]" header followed by
+ * blocks that start with BLOCK_MAGIC and an end-of-stream marker that starts
+ * with EOS_MAGIC.  Blocks are only bit-aligned, but each one can be decoded
+ * on its own given where it starts, which is what lets
+ * ParallelBzip2InputStream decode them on several threads.
+ */
+final class Bzip2Decoder {
+
+  static final long BLOCK_MAGIC = 0x314159265359L;
+  static final long EOS_MAGIC = 0x177245385090L;
+  static final int MAGIC_BITS = 48;
+
+  static final int MAX_BLOCK_SIZE = 900000;
+
+  private static final int MAX_GROUPS = 6;
+  private static final int GROUP_SIZE = 50;
+  private static final int MAX_ALPHA_SIZE = 258;
+  private static final int MAX_CODE_LEN = 20;
+  private static final int MAX_SELECTORS = 18002;
+  private static final int RUNA = 0;
+  private static final int RUNB = 1;
+
+  static final int[] CRC_TABLE = new int[256];
+  static {
+    for (int i = 0; i < 256; ++i) {
+      int crc = i << 24;
+      for (int j = 0; j < 8; ++j) {
+        crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+      }
+      CRC_TABLE[i] = crc;
+    }
+  }
+
+  // The inverse BWT needs a 3.6MB scratch array per block; keep one per thread.
+  private static final ThreadLocal<int[]> TT = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[MAX_BLOCK_SIZE];
+    }
+  };
+
+  private Bzip2Decoder() {
+  }
+
+  /**
+   * A decoded block.
+   */
+  static final class Block {
+    final byte[] bytes;
+    final int length;
+    final int crc;
+    // Bit offset just past the block's last bit.
+    final long endBit;
+
+    Block(final byte[] bytes, final int length, final int crc, final long endBit) {
+      this.bytes = bytes;
+      this.length = length;
+      this.crc = crc;
+      this.endBit = endBit;
+    }
+  }
+
+  /**
+   * Reads a stream MSB first, keeping track of how many bits were consumed.
+   */
+  static final class BitInput {
+    private final InputStream in;
+    private long bitPosition;
+    private long buffer = 0;
+    private int bufferBits = 0;
+
+    BitInput(final InputStream in, final long bitPosition) {
+      this.in = in;
+      this.bitPosition = bitPosition;
+    }
+
+    /**
+     * Reads from a FileChannel without moving its position, so several
+     * threads can read the same file at once.
+     */
+    static BitInput open(final FileChannel channel, final long bitPosition) throws IOException {
+      final BitInput result = new BitInput(new ChannelInputStream(channel, bitPosition >>> 3), bitPosition & ~7L);
+      result.readBits((int) (bitPosition & 7));
+      return result;
+    }
+
+    long bitPosition() {
+      return bitPosition;
+    }
+
+    int readBits(final int n) throws IOException {
+      while (bufferBits < n) {
+        final int b = in.read();
+        if (b == -1) {
+          throw new EOFException("Truncated bzip2 input.");
+        }
+        buffer = (buffer << 8) | b;
+        bufferBits += 8;
+      }
+      bufferBits -= n;
+      bitPosition += n;
+      return (int) ((buffer >>> bufferBits) & ((1L << n) - 1));
+    }
+
+    boolean readBit() throws IOException {
+      return readBits(1) != 0;
+    }
+
+    long readLong48() throws IOException {
+      return ((long) readBits(24) << 24) | readBits(24);
+    }
+
+    /**
+     * Skips to the next byte boundary; returns false at the end of the input.
+     */
+    boolean alignToByte() throws IOException {
+      readBits(bufferBits & 7);
+      if (bufferBits == 0) {
+        final int b = in.read();
+        if (b == -1) {
+          return false;
+        }
+        buffer = b;
+        bufferBits = 8;
+      }
+      return true;
+    }
+  }
+
+  private static final class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    ChannelInputStream(final FileChannel channel, final long position) {
+      this.channel = channel;
+      this.position = position;
+      buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!buffer.hasRemaining()) {
+        buffer.clear();
+        final int n = channel.read(buffer, position);
+        buffer.flip();
+        if (n <= 0) {
+          return -1;
+        }
+        position += n;
+      }
+      return buffer.get() & 0xff;
+    }
+  }
+
+  /**
+   * Reads a "BZh[1-9]" stream header.
+   * @return the block size, in bytes.
+   */
+  static int readStreamHeader(final BitInput in) throws IOException {
+    if (in.readBits(8) != 'B' || in.readBits(8) != 'Z' || in.readBits(8) != 'h') {
+      throw new IOException("Not a bzip2 stream.");
+    }
+    final int level = in.readBits(8) - '0';
+    if (level < 1 || level > 9) {
+      throw new IOException("Bad bzip2 block size: " + level);
+    }
+    return level * 100000;
+  }
+
+  static int updateCombinedCrc(final int combinedCrc, final int blockCrc) {
+    return ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ blockCrc;
+  }
+
+  /**
+   * Decodes the block whose BLOCK_MAGIC has just been read from in, and
+   * checks its CRC.
+   */
+  static Block decodeBlock(final BitInput in, final int maxBlockSize) throws IOException {
+    final int storedCrc = in.readBits(32);
+    if (in.readBit()) {
+      throw new IOException("Randomised bzip2 blocks are not supported.");
+    }
+    final int origPtr = in.readBits(24);
+
+    // Symbol map.
+    final int[] seqToUnseq = new int[256];
+    int numInUse = 0;
+    final int inUse16 = in.readBits(16);
+    for (int i = 0; i < 16; ++i) {
+      if ((inUse16 & (0x8000 >>> i)) != 0) {
+        final int inUse = in.readBits(16);
+        for (int j = 0; j < 16; ++j) {
+          if ((inUse & (0x8000 >>> j)) != 0) {
+            seqToUnseq[numInUse++] = i * 16 + j;
+          }
+        }
+      }
+    }
+    if (numInUse == 0) {
+      throw new IOException("Bad bzip2 block: no symbols.");
+    }
+    final int alphaSize = numInUse + 2;
+    final int endOfBlock = numInUse + 1;
+
+    // Selectors.
+    final int numGroups = in.readBits(3);
+    if (numGroups < 2 || numGroups > MAX_GROUPS) {
+      throw new IOException("Bad bzip2 block: " + numGroups + " Huffman groups.");
+    }
+    final int numSelectors = in.readBits(15);
+    if (numSelectors < 1) {
+      throw new IOException("Bad bzip2 block: no selectors.");
+    }
+    final byte[] selectorMtf = new byte[MAX_GROUPS];
+    for (int i = 0; i < numGroups; ++i) {
+      selectorMtf[i] = (byte) i;
+    }
+    final byte[] selectors = new byte[Math.min(numSelectors, MAX_SELECTORS)];
+    for (int i = 0; i < numSelectors; ++i) {
+      int j = 0;
+      while (in.readBit()) {
+        if (++j >= numGroups) {
+          throw new IOException("Bad bzip2 block: bad selector.");
+        }
+      }
+      final byte selector = selectorMtf[j];
+      System.arraycopy(selectorMtf, 0, selectorMtf, 1, j);
+      selectorMtf[0] = selector;
+      if (i < selectors.length) {
+        selectors[i] = selector;
+      }
+    }
+
+    // Huffman tables.
+    final int[][] limit = new int[numGroups][MAX_CODE_LEN + 2];
+    final int[][] base = new int[numGroups][MAX_CODE_LEN + 2];
+    final int[][] perm = new int[numGroups][MAX_ALPHA_SIZE];
+    final int[] minLens = new int[numGroups];
+    final int[] maxLens = new int[numGroups];
+    final int[] lengths = new int[alphaSize];
+    for (int t = 0; t < numGroups; ++t) {
+      int length = in.readBits(5);
+      int minLen = MAX_CODE_LEN;
+      int maxLen = 0;
+      for (int i = 0; i < alphaSize; ++i) {
+        while (true) {
+          if (length < 1 || length > MAX_CODE_LEN) {
+            throw new IOException("Bad bzip2 block: bad code length.");
+          }
+          if (!in.readBit()) {
+            break;
+          }
+          length += in.readBit() ? -1 : 1;
+        }
+        lengths[i] = length;
+        minLen = Math.min(minLen, length);
+        maxLen = Math.max(maxLen, length);
+      }
+      createDecodeTable(lengths, alphaSize, minLen, maxLen, limit[t], base[t], perm[t]);
+      minLens[t] = minLen;
+      maxLens[t] = maxLen;
+    }
+
+    // Huffman, RUNA/RUNB and move-to-front decoding.
+    final int[] tt = maxBlockSize <= MAX_BLOCK_SIZE ? TT.get() : new int[maxBlockSize];
+    final int[] counts = new int[256];
+    final int[] mtf = new int[256];
+    for (int i = 0; i < 256; ++i) {
+      mtf[i] = i;
+    }
+    int length = 0;
+    int groupIndex = -1;
+    int groupPos = 0;
+    int group = 0;
+    int runLength = 0;
+    int runWeight = 1;
+    while (true) {
+      if (groupPos == 0) {
+        if (++groupIndex >= selectors.length) {
+          throw new IOException("Bad bzip2 block: ran out of selectors.");
+        }
+        group = selectors[groupIndex];
+        groupPos = GROUP_SIZE;
+      }
+      --groupPos;
+      final int[] groupLimit = limit[group];
+      int codeLength = minLens[group];
+      int code = in.readBits(codeLength);
+      while (code > groupLimit[codeLength]) {
+        if (++codeLength > maxLens[group]) {
+          throw new IOException("Bad bzip2 block: bad Huffman code.");
+        }
+        code = (code << 1) | in.readBits(1);
+      }
+      final int index = code - base[group][codeLength];
+      if (index < 0 || index >= alphaSize) {
+        throw new IOException("Bad bzip2 block: bad Huffman code.");
+      }
+      final int symbol = perm[group][index];
+
+      if (symbol == RUNA || symbol == RUNB) {
+        if (runWeight > MAX_BLOCK_SIZE) {
+          throw new IOException("Bad bzip2 block: run too long.");
+        }
+        runLength += (symbol == RUNA ? 1 : 2) * runWeight;
+        runWeight <<= 1;
+        continue;
+      }
+      if (runLength > 0) {
+        if (length + runLength > maxBlockSize) {
+          throw new IOException("Bad bzip2 block: block too long.");
+        }
+        final int b = seqToUnseq[mtf[0]];
+        counts[b] += runLength;
+        Arrays.fill(tt, length, length + runLength, b);
+        length += runLength;
+        runLength = 0;
+        runWeight = 1;
+      }
+      if (symbol == endOfBlock) {
+        break;
+      }
+      if (length >= maxBlockSize) {
+        throw new IOException("Bad bzip2 block: block too long.");
+      }
+      final int mtfIndex = symbol - 1;
+      final int value = mtf[mtfIndex];
+      System.arraycopy(mtf, 0, mtf, 1, mtfIndex);
+      mtf[0] = value;
+      final int b = seqToUnseq[value];
+      ++counts[b];
+      tt[length++] = b;
+    }
+    if (origPtr >= length) {
+      throw new IOException("Bad bzip2 block: origPtr out of range.");
+    }
+
+    // Inverse Burrows-Wheeler transform.
+    final int[] starts = new int[256];
+    for (int i = 1; i < 256; ++i) {
+      starts[i] = starts[i - 1] + counts[i - 1];
+    }
+    for (int i = 0; i < length; ++i) {
+      final int b = tt[i] & 0xff;
+      tt[starts[b]++] |= i << 8;
+    }
+
+    // Undo the initial run-length encoding (4 equal bytes then a count) and
+    // compute the CRC.
+    byte[] out = new byte[length + (length >>> 2) + 16];
+    int outLength = 0;
+    int crc = 0xffffffff;
+    int pos = tt[origPtr] >>> 8;
+    int last = -1;
+    int repeat = 0;
+    for (int i = 0; i < length; ++i) {
+      pos = tt[pos];
+      final int b = pos & 0xff;
+      pos >>>= 8;
+      if (repeat == 4) {
+        if (outLength + b > out.length) {
+          out = Arrays.copyOf(out, Math.max(out.length * 2, outLength + b));
+        }
+        for (int j = 0; j < b; ++j) {
+          out[outLength++] = (byte) last;
+          crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ last) & 0xff];
+        }
+        repeat = 0;
+        last = -1;
+        continue;
+      }
+      repeat = b == last ? repeat + 1 : 1;
+      last = b;
+      if (outLength == out.length) {
+        out = Arrays.copyOf(out, out.length * 2);
+      }
+      out[outLength++] = (byte) b;
+      crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+    }
+    crc = ~crc;
+    if (crc != storedCrc) {
+      throw new IOException("Bad bzip2 block: CRC mismatch.");
+    }
+    return new Block(out, outLength, crc, in.bitPosition());
+  }
+
+  private static void createDecodeTable(final int[] lengths, final int alphaSize,
+      final int minLen, final int maxLen, final int[] limit, final int[] base, final int[] perm) {
+    int pp = 0;
+    for (int i = minLen; i <= maxLen; ++i) {
+      for (int j = 0; j < alphaSize; ++j) {
+        if (lengths[j] == i) {
+          perm[pp++] = j;
+        }
+      }
+    }
+    for (int i = 0; i < alphaSize; ++i) {
+      ++base[lengths[i] + 1];
+    }
+    for (int i = 1; i < base.length; ++i) {
+      base[i] += base[i - 1];
+    }
+    int vec = 0;
+    for (int i = minLen; i <= maxLen; ++i) {
+      vec += base[i + 1] - base[i];
+      limit[i] = vec - 1;
+      vec <<= 1;
+    }
+    for (int i = minLen + 1; i <= maxLen; ++i) {
+      base[i] = ((limit[i - 1] + 1) << 1) - base[i];
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.hughes.android.dictionary.engine.Bzip2Decoder.BitInput;
+import com.hughes.android.dictionary.engine.Bzip2Decoder.Block;
+
+/**
+ * Decompresses a bzip2 file, including the concatenated streams of a
+ * multistream dump, on the calling thread.
+ */
+final class Bzip2InputStream extends InputStream {
+
+  private final InputStream in;
+  private final BitInput bits;
+  private int blockSize;
+  private int combinedCrc = 0;
+  private Block block = null;
+  private int blockPos = 0;
+  private boolean eof = false;
+
+  Bzip2InputStream(final InputStream in) throws IOException {
+    this.in = new BufferedInputStream(in, 64 * 1024);
+    this.bits = new BitInput(this.in, 0);
+    this.blockSize = Bzip2Decoder.readStreamHeader(bits);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return block.bytes[blockPos++] & 0xff;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int n = Math.min(len, block.length - blockPos);
+    System.arraycopy(block.bytes, blockPos, b, off, n);
+    blockPos += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Makes sure there's something left in block.
+   * @return false at the end of the input.
+   */
+  private boolean fill() throws IOException {
+    while (!eof && (block == null || blockPos == block.length)) {
+      final long magic = bits.readLong48();
+      if (magic == Bzip2Decoder.BLOCK_MAGIC) {
+        block = Bzip2Decoder.decodeBlock(bits, blockSize);
+        blockPos = 0;
+        combinedCrc = Bzip2Decoder.updateCombinedCrc(combinedCrc, block.crc);
+      } else if (magic == Bzip2Decoder.EOS_MAGIC) {
+        if (bits.readBits(32) != combinedCrc) {
+          throw new IOException("Bad bzip2 stream: CRC mismatch.");
+        }
+        // Another stream may follow.
+        if (bits.alignToByte()) {
+          blockSize = Bzip2Decoder.readStreamHeader(bits);
+          combinedCrc = 0;
+        } else {
+          eof = true;
+        }
+      } else {
+        throw new IOException("Bad bzip2 stream: bad block header.");
+      }
+    }
+    return !eof;
+  }
+
+}
@@ -0,0 +1,79 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class Bzip2InputStreamTest extends TestCase {
+
+  // Three bzip2 streams concatenated, like a multistream dump.
+  static final String BZ2 = DictionaryBuilderTest.TEST_INPUTS + "de-en_chemnitz_100.bz2";
+  static final String EXPECTED = DictionaryBuilderTest.TEST_INPUTS + "de-en_chemnitz_100";
+
+  public void testSerial() throws IOException {
+    assertTrue(Arrays.equals(readFully(new FileInputStream(EXPECTED)),
+        readFully(new Bzip2InputStream(new FileInputStream(BZ2)))));
+  }
+
+  public void testParallel() throws IOException {
+    for (int threads = 1; threads <= 3; ++threads) {
+      assertTrue(Arrays.equals(readFully(new FileInputStream(EXPECTED)),
+          readFully(new ParallelBzip2InputStream(new File(BZ2), threads))));
+    }
+  }
+
+  public void testCorrupt() throws IOException {
+    final File corrupt = File.createTempFile("corrupt", ".bz2");
+    corrupt.deleteOnExit();
+    final byte[] bytes = readFully(new FileInputStream(BZ2));
+    bytes[bytes.length / 2] ^= 0x55;
+    final RandomAccessFile out = new RandomAccessFile(corrupt, "rw");
+    out.write(bytes);
+    out.close();
+    try {
+      readFully(new Bzip2InputStream(new FileInputStream(corrupt)));
+      fail();
+    } catch (IOException e) {
+    }
+    try {
+      readFully(new ParallelBzip2InputStream(corrupt, 2));
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  static byte[] readFully(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1000];
+    int n;
+    try {
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+}
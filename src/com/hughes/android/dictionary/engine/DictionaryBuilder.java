@@ -20,6 +20,7 @@ import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -31,8 +32,10 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
 
 import com.hughes.android.dictionary.parser.DictFileParser;
-import com.hughes.android.dictionary.parser.Parser;
+import com.hughes.android.dictionary.parser.WikiTokenizer;
+import com.hughes.android.dictionary.parser.wiktionary.AbstractWiktionaryParser;
 import com.hughes.android.dictionary.parser.wiktionary.EnForeignParser;
+import com.hughes.android.dictionary.parser.wiktionary.EnTranslationFanOutParser;
 import com.hughes.android.dictionary.parser.wiktionary.EnToTranslationParser;
 import com.hughes.android.dictionary.parser.wiktionary.EnTranslationToTranslationParser;
 import com.hughes.android.dictionary.parser.wiktionary.WholeSectionToHtmlParser;
@@ -62,169 +65,410 @@ public class DictionaryBuilder {
   }
   
   public static void main(final String[] args) throws IOException, ParserConfigurationException, SAXException {
-    System.out.println("Running with arguments:");
-    for (final String arg : args) {
-      System.out.println(arg);
+    final Build build = new Build(args);
+    build.parseInputs();
+    build.finish();
+  }
+
+  /**
+   * Builds one dictionary for each of argsList, as main() would, but reads
+   * the inputs they share in one pass: all the EnToTranslation and
+   * EnTranslationToTranslation inputs over the same file are parsed
+   * together, and the EnForeign (or EnEnglish) inputs over the same file
+   * with the same language patterns are parsed once for all of them,
+   * before any dictionary is built.  What each of them adds is staged, and
+   * committed when that dictionary gets to the input, so the dictionaries
+   * come out the same as from main().
+   */
+  public static void mainShared(final List<String[]> argsList) throws IOException, ParserConfigurationException, SAXException {
+    final List<Build> builds = new ArrayList<Build>();
+    final Map<String, SharedInput> sharedInputs = new LinkedHashMap<String, SharedInput>();
+    for (final String[] args : argsList) {
+      final Build build = new Build(args);
+      build.stageSharedInputs(sharedInputs);
+      builds.add(build);
     }
-    
-    final Map<String,String> keyValueArgs = Args.keyValueArgs(args);
-    
-    if (!keyValueArgs.containsKey("lang1")) {
-      fatalError("--lang1= must be specified.");
+    for (final SharedInput sharedInput : sharedInputs.values()) {
+      System.out.println("Processing shared input: " + sharedInput.file);
+      configureWiktionaryParser(sharedInput.parser, sharedInput.titles, sharedInput.parseThreads, sharedInput.useTranslationTable,
+          sharedInput.logTokenizerErrors);
+      sharedInput.parser.parse(sharedInput.file, sharedInput.entrySource, sharedInput.pageLimit);
+      if (sharedInput.fanOut != null) {
+        sharedInput.fanOut.commit();
+      }
     }
-    final Language lang1 = Language.lookup(keyValueArgs.remove("lang1"));
-    final Language lang2;
-    if (keyValueArgs.containsKey("lang2")) {
-        lang2 = Language.lookup(keyValueArgs.remove("lang2"));
-    } else {
-        lang2 = null;
+    for (int i = 0; i < builds.size(); ++i) {
+      builds.get(i).parseInputs();
+      builds.get(i).finish();
+      // Let it go before the next one is built.
+      builds.set(i, null);
     }
+  }
 
-    final Set<String> lang1Stoplist = new LinkedHashSet<String>();
-    final Set<String> lang2Stoplist = new LinkedHashSet<String>();
-    final String lang1StoplistFile = keyValueArgs.remove("lang1Stoplist");
-    final String lang2StoplistFile = keyValueArgs.remove("lang2Stoplist");
-    if (lang1StoplistFile != null) {
-      lang1Stoplist.addAll(FileUtil.readLines(new File(lang1StoplistFile)));
-    }
-    if (lang2StoplistFile != null) {
-      lang2Stoplist.addAll(FileUtil.readLines(new File(lang2StoplistFile)));
-    }
+  // A parser that reads a file once for several builds, keyed by file, page
+  // limit and titles (and language patterns, for EnForeign).
+  private static final class SharedInput {
+    final File file;
+    final int pageLimit;
+    final String titles;
+    final AbstractWiktionaryParser parser;
+    // For an EnForeignParser: what hands its entries to each build, and the
+    // first build's EntrySource, which the parser's entries get.  Both null
+    // for an EnTranslationFanOutParser.
+    final IndexBuilder.FanOut fanOut;
+    final EntrySource entrySource;
+    // If any of the builds asked for them.
+    int parseThreads = 0;
+    boolean useTranslationTable = false;
+    boolean logTokenizerErrors = false;
 
-    String normalizerRules1 = keyValueArgs.remove("normalizerRules1");
-    String normalizerRules2 = keyValueArgs.remove("normalizerRules2");
-    if (normalizerRules1 == null) {
-      normalizerRules1 = lang1.getDefaultNormalizerRules();
+    SharedInput(final File file, final int pageLimit, final String titles, final AbstractWiktionaryParser parser,
+        final IndexBuilder.FanOut fanOut, final EntrySource entrySource) {
+      this.file = file;
+      this.pageLimit = pageLimit;
+      this.titles = titles;
+      this.parser = parser;
+      this.fanOut = fanOut;
+      this.entrySource = entrySource;
     }
-    if (normalizerRules2 == null) {
-      normalizerRules2 = lang2 == null ? null : lang2.getDefaultNormalizerRules();
-    }
-    
-    final String dictOutFilename = keyValueArgs.remove("dictOut");
-    if (dictOutFilename == null) {
-      fatalError("--dictOut= must be specified.");
+  }
+
+  // The arguments that every input has.
+  private static final class Input {
+    final String prefix;
+    final File file;
+    final Charset charset;
+    final String name;
+    final int pageLimit;
+    // For wiktionary splits: a title, or first..last.
+    final String titles;
+    final String format;
+
+    Input(final String prefix, final Map<String,String> keyValueArgs) {
+      this.prefix = prefix;
+      file = new File(keyValueArgs.remove(prefix));
+      String charsetName = keyValueArgs.remove(prefix + "Charset");
+      if (charsetName == null) {
+        charsetName = "UTF8";
+      }
+      charset = Charset.forName(charsetName);
+      name = keyValueArgs.remove(prefix + "Name");
+      if (name == null) {
+        fatalError("Must specify human readable name for: " + prefix + "Name");
+      }
+      String pageLimitString = keyValueArgs.remove(prefix + "PageLimit");
+      if (pageLimitString == null) {
+        pageLimitString = "-1";
+      }
+      pageLimit = Integer.parseInt(pageLimitString);
+      titles = keyValueArgs.remove(prefix + "Titles");
+      format = keyValueArgs.remove(prefix + "Format");
     }
-    
-    String dictInfo = keyValueArgs.remove("dictInfo");
-    if (dictInfo == null) {
-      fatalError("--dictInfo= must be specified.");
+  }
+
+  // An input that was staged by mainShared(): what it added to each of the
+  // IndexBuilders, in their order.
+  private static final class StagedInput {
+    final EntrySource entrySource;
+    final List<IndexBuilder> staged;
+
+    StagedInput(final EntrySource entrySource, final List<IndexBuilder> staged) {
+      this.entrySource = entrySource;
+      this.staged = staged;
     }
-    if (dictInfo.startsWith("@")) {
-      dictInfo = FileUtil.readToString(new File(dictInfo.substring(1)));
+  }
+
+  // The arguments and state of building one dictionary.
+  private static final class Build {
+    final Map<String,String> keyValueArgs;
+    final DictionaryBuilder dictionaryBuilder;
+    final String dictOutFilename;
+    final String printFile;
+    final int parseThreads;
+    final boolean useTranslationTable;
+    final boolean logTokenizerErrors;
+    final Map<String, StagedInput> stagedInputs = new LinkedHashMap<String, StagedInput>();
+
+    Build(final String[] args) throws IOException {
+      System.out.println("Running with arguments:");
+      for (final String arg : args) {
+        System.out.println(arg);
+      }
+      
+      keyValueArgs = Args.keyValueArgs(args);
+      
+      if (!keyValueArgs.containsKey("lang1")) {
+        fatalError("--lang1= must be specified.");
+      }
+      final Language lang1 = Language.lookup(keyValueArgs.remove("lang1"));
+      final Language lang2;
+      if (keyValueArgs.containsKey("lang2")) {
+          lang2 = Language.lookup(keyValueArgs.remove("lang2"));
+      } else {
+          lang2 = null;
+      }
+
+      final Set<String> lang1Stoplist = new LinkedHashSet<String>();
+      final Set<String> lang2Stoplist = new LinkedHashSet<String>();
+      final String lang1StoplistFile = keyValueArgs.remove("lang1Stoplist");
+      final String lang2StoplistFile = keyValueArgs.remove("lang2Stoplist");
+      if (lang1StoplistFile != null) {
+        lang1Stoplist.addAll(FileUtil.readLines(new File(lang1StoplistFile)));
+      }
+      if (lang2StoplistFile != null) {
+        lang2Stoplist.addAll(FileUtil.readLines(new File(lang2StoplistFile)));
+      }
+
+      String normalizerRules1 = keyValueArgs.remove("normalizerRules1");
+      String normalizerRules2 = keyValueArgs.remove("normalizerRules2");
+      if (normalizerRules1 == null) {
+        normalizerRules1 = lang1.getDefaultNormalizerRules();
+      }
+      if (normalizerRules2 == null) {
+        normalizerRules2 = lang2 == null ? null : lang2.getDefaultNormalizerRules();
+      }
+      
+      dictOutFilename = keyValueArgs.remove("dictOut");
+      if (dictOutFilename == null) {
+        fatalError("--dictOut= must be specified.");
+      }
+      
+      String dictInfo = keyValueArgs.remove("dictInfo");
+      if (dictInfo == null) {
+        fatalError("--dictInfo= must be specified.");
+      }
+      if (dictInfo.startsWith("@")) {
+        dictInfo = FileUtil.readToString(new File(dictInfo.substring(1)));
+      }
+      
+      printFile = keyValueArgs.remove("print");
+      
+      // Wiktionary splits can be parsed on several threads.
+      final String parseThreadsString = keyValueArgs.remove("parseThreads");
+      parseThreads = parseThreadsString == null ? 0 : Integer.parseInt(parseThreadsString);
+      // Translations from EN.data can be read from its EnTranslationTable.
+      useTranslationTable = "true".equals(keyValueArgs.remove("translationTable"));
+      // Wiktionary parsers log a summary of WikiTokenizer's errors, unless
+      // it's "none".
+      logTokenizerErrors = !"none".equals(keyValueArgs.remove("tokenizerErrors"));
+      
+      System.out.println("lang1=" + lang1);
+      System.out.println("lang2=" + lang2);
+      System.out.println("normalizerRules1=" + normalizerRules1);
+      System.out.println("normalizerRules2=" + normalizerRules2);
+      System.out.println("dictInfo=" + dictInfo);
+      System.out.println("dictOut=" + dictOutFilename);    
+      
+      dictionaryBuilder = new DictionaryBuilder(dictInfo, lang1, lang2, normalizerRules1, normalizerRules2, lang1Stoplist, lang2Stoplist);
     }
-    
-    final String printFile = keyValueArgs.remove("print");
-    
-    System.out.println("lang1=" + lang1);
-    System.out.println("lang2=" + lang2);
-    System.out.println("normalizerRules1=" + normalizerRules1);
-    System.out.println("normalizerRules2=" + normalizerRules2);
-    System.out.println("dictInfo=" + dictInfo);
-    System.out.println("dictOut=" + dictOutFilename);    
-    
-    final DictionaryBuilder dictionaryBuilder = new DictionaryBuilder(dictInfo, lang1, lang2, normalizerRules1, normalizerRules2, lang1Stoplist, lang2Stoplist);
-    
-    for (int i = 0; i < 100; ++i) {
-      final String prefix = "input" + i;
-      if (keyValueArgs.containsKey(prefix)) {
-        final File file = new File(keyValueArgs.remove(prefix));
-        System.out.println("Processing: " + file);
-        String charsetName = keyValueArgs.remove(prefix + "Charset");
-        if (charsetName == null) {
-          charsetName = "UTF8";
+
+    /**
+     * Hands the inputs that can be parsed together with other dictionaries'
+     * to sharedInputs, with IndexBuilders that stage what they add.
+     */
+    void stageSharedInputs(final Map<String, SharedInput> sharedInputs) {
+      int sourceCount = 0;
+      for (int i = 0; i < 100; ++i) {
+        final String prefix = "input" + i;
+        if (!keyValueArgs.containsKey(prefix)) {
+          continue;
         }
-        final Charset charset = Charset.forName(charsetName);
-        String inputName = keyValueArgs.remove(prefix + "Name");
-        if (inputName == null) {
-          fatalError("Must specify human readable name for: " + prefix + "Name");
+        // The index it will have once the inputs before it are parsed.
+        final int sourceIndex = sourceCount++;
+        final String format = keyValueArgs.get(prefix + "Format");
+        final String type = "enwiktionary".equals(format) ? keyValueArgs.get(prefix + "WiktionaryType") : null;
+        final boolean translations = EnTranslationToTranslationParser.NAME.equals(format) || "EnToTranslation".equals(type);
+        final boolean foreign = "EnForeign".equals(type) || "EnEnglish".equals(type);
+        if (!translations && !foreign) {
+          continue;
         }
-        String pageLimitString = keyValueArgs.remove(prefix + "PageLimit");
-        if (pageLimitString == null) {
-          pageLimitString = "-1";
+        final Input input = new Input(prefix, keyValueArgs);
+        final EntrySource entrySource = new EntrySource(sourceIndex, input.name, 0);
+        final List<IndexBuilder> staged = new ArrayList<IndexBuilder>();
+        for (final IndexBuilder indexBuilder : dictionaryBuilder.indexBuilders) {
+          staged.add(indexBuilder.stage());
         }
-        final int pageLimit = Integer.parseInt(pageLimitString);
-
-        final EntrySource entrySource = new EntrySource(dictionaryBuilder.dictionary.sources.size(), inputName, 0);
-        System.out.println("");
-        
-        String inputFormat = keyValueArgs.remove(prefix + "Format");
-        if ("tab_separated".equals(inputFormat)) {
-          final boolean flipColumns = "true".equals(keyValueArgs.remove(prefix + "FlipColumns"));
-          new DictFileParser(charset, flipColumns, DictFileParser.TAB, null, dictionaryBuilder, dictionaryBuilder.indexBuilders.toArray(new IndexBuilder[0]), null).parse(file, entrySource, pageLimit);
-        } else if ("chemnitz".equals(inputFormat)) {
-          final boolean flipColumns = "true".equals(keyValueArgs.remove(prefix + "FlipColumns"));
-          new DictFileParser(charset, flipColumns, DictFileParser.DOUBLE_COLON, DictFileParser.PIPE, dictionaryBuilder, dictionaryBuilder.indexBuilders.toArray(new IndexBuilder[0]), null).parse(file, entrySource, pageLimit);
-        } else if ("enwiktionary".equals(inputFormat)) {
-          final String type = keyValueArgs.remove(prefix + "WiktionaryType");
-          final Pattern langPattern = Pattern.compile(keyValueArgs.remove(prefix + "LangPattern"), Pattern.CASE_INSENSITIVE);
-          final Pattern langCodePattern = Pattern.compile(keyValueArgs.remove(prefix + "LangCodePattern"));
-          final int enIndex = Integer.parseInt(keyValueArgs.remove(prefix + "EnIndex")) - 1;
-            
-          if (enIndex < 0 || enIndex >= 2) {
+        String key = input.file.getAbsolutePath() + ":" + input.pageLimit + ":" + input.titles;
+        if (foreign) {
+          // What EnForeignParser keeps, and how it renders it, depends on these.
+          key += ":" + type + ":" + keyValueArgs.get(prefix + "LangPattern") + ":" + keyValueArgs.get(prefix + "LangCodePattern");
+        }
+        SharedInput sharedInput = sharedInputs.get(key);
+        if (translations) {
+          if (sharedInput == null) {
+            sharedInput = new SharedInput(input.file, input.pageLimit, input.titles, new EnTranslationFanOutParser(), null, null);
+            sharedInputs.put(key, sharedInput);
+          }
+          ((EnTranslationFanOutParser) sharedInput.parser).add(newWiktionaryParser(input, staged), entrySource);
+        } else {
+          final int enIndex = Integer.parseInt(keyValueArgs.get(prefix + "EnIndex")) - 1;
+          if (enIndex < 0 || enIndex >= staged.size()) {
             fatalError("Must be 1 or 2: " + prefix + "EnIndex");
           }
-          final Parser parser;
-          if ("EnToTranslation".equals(type)) {
-            parser = new EnToTranslationParser(dictionaryBuilder.indexBuilders.get(enIndex), dictionaryBuilder.indexBuilders.get(1-enIndex),
-                langPattern, langCodePattern, enIndex != 0);
-          } else if ("EnForeign".equals(type)) {
-            parser = new EnForeignParser(dictionaryBuilder.indexBuilders.get(enIndex), dictionaryBuilder.indexBuilders.get(1-enIndex),
-                langPattern, langCodePattern, enIndex != 0);
-          } else if ("EnEnglish".equals(type)) {
-              parser = new EnForeignParser(dictionaryBuilder.indexBuilders.get(enIndex), dictionaryBuilder.indexBuilders.get(enIndex),
-                  langPattern, langCodePattern, true);
+          // The roles: English, then foreign unless it's the same IndexBuilder.
+          final boolean english = "EnEnglish".equals(type);
+          final IndexBuilder[] targets = english ? new IndexBuilder[] {staged.get(enIndex)}
+              : new IndexBuilder[] {staged.get(enIndex), staged.get(1 - enIndex)};
+          final boolean swap = english || enIndex != 0;
+          if (sharedInput == null) {
+            final IndexBuilder.FanOut fanOut = new IndexBuilder.FanOut(entrySource, swap, targets);
+            final List<IndexBuilder> roles = new ArrayList<IndexBuilder>(staged);
+            roles.set(enIndex, fanOut.role(0));
+            if (!english) {
+              roles.set(1 - enIndex, fanOut.role(1));
+            }
+            sharedInput = new SharedInput(input.file, input.pageLimit, input.titles, newWiktionaryParser(input, roles), fanOut, entrySource);
+            sharedInputs.put(key, sharedInput);
           } else {
-            fatalError("Invalid WiktionaryType (use EnToTranslation or EnForeign or EnEnglish): " + type);
-            return;
+            for (final String arg : new String[] {"WiktionaryType", "LangPattern", "LangCodePattern", "EnIndex"}) {
+              keyValueArgs.remove(prefix + arg);
+            }
+            sharedInput.fanOut.addTargets(entrySource, swap, targets);
           }
-          parser.parse(file, entrySource, pageLimit);
-        } else if (EnTranslationToTranslationParser.NAME.equals(inputFormat)) {
-          final String code1 = keyValueArgs.remove(prefix + "LangPattern1");
-          final String code2 = keyValueArgs.remove(prefix + "LangPattern2");
-          if (code1 == null || code2 == null) {
-            fatalError("Must specify LangPattern1 and LangPattern2.");
-            return;
+        }
+        sharedInput.parseThreads = Math.max(sharedInput.parseThreads, parseThreads);
+        sharedInput.useTranslationTable |= useTranslationTable;
+        sharedInput.logTokenizerErrors |= logTokenizerErrors;
+        stagedInputs.put(prefix, new StagedInput(entrySource, staged));
+      }
+    }
+
+    void parseInputs() throws IOException {
+      for (int i = 0; i < 100; ++i) {
+        final String prefix = "input" + i;
+        final StagedInput stagedInput = stagedInputs.get(prefix);
+        if (stagedInput != null) {
+          System.out.println("Committing staged: " + prefix);
+          for (final IndexBuilder staged : stagedInput.staged) {
+            staged.takeStaged().commit();
           }
-          final Pattern codePattern1 = Pattern.compile(code1, Pattern.CASE_INSENSITIVE);
-          final Pattern codePattern2 = Pattern.compile(code2, Pattern.CASE_INSENSITIVE);
-          new EnTranslationToTranslationParser(dictionaryBuilder.indexBuilders, new Pattern[] {codePattern1, codePattern2}).parse(file, entrySource, pageLimit);
-        } else if (WholeSectionToHtmlParser.NAME.equals(inputFormat)) {
-          final int titleIndex = Integer.parseInt(keyValueArgs.remove(prefix + "TitleIndex")) - 1;
-          final String wiktionaryLang = keyValueArgs.remove(prefix + "WiktionaryLang");
-          final String webUrlTemplate = keyValueArgs.remove(prefix + "WebUrlTemplate");
-          String skipLang = keyValueArgs.remove(prefix + "SkipLang");
-          if (skipLang == null) skipLang = "";
-          new WholeSectionToHtmlParser(dictionaryBuilder.indexBuilders.get(titleIndex), null, wiktionaryLang, skipLang, webUrlTemplate).parse(file, entrySource, pageLimit);
-        } else {
-          fatalError("Invalid or missing input format: " + inputFormat);
+          dictionaryBuilder.dictionary.sources.add(stagedInput.entrySource);
+          continue;
+        }
+        if (keyValueArgs.containsKey(prefix)) {
+          final Input input = new Input(prefix, keyValueArgs);
+          System.out.println("Processing: " + input.file);
+          parseInput(input);
         }
-        
-        dictionaryBuilder.dictionary.sources.add(entrySource);
-        System.out.println("Done: " + file + "\n\n");
       }
     }
-   
-    dictionaryBuilder.build();
-    
-    if (printFile != null) {
-      final PrintStream out = new PrintStream(new File(printFile));
-      dictionaryBuilder.dictionary.print(out);
-      out.close();
+
+    private void parseInput(final Input input) throws IOException {
+      final String prefix = input.prefix;
+      final EntrySource entrySource = new EntrySource(dictionaryBuilder.dictionary.sources.size(), input.name, 0);
+      System.out.println("");
+      
+      final String inputFormat = input.format;
+      if ("tab_separated".equals(inputFormat)) {
+        final boolean flipColumns = "true".equals(keyValueArgs.remove(prefix + "FlipColumns"));
+        new DictFileParser(input.charset, flipColumns, DictFileParser.TAB, null, dictionaryBuilder, dictionaryBuilder.indexBuilders.toArray(new IndexBuilder[0]), null).parse(input.file, entrySource, input.pageLimit);
+      } else if ("chemnitz".equals(inputFormat)) {
+        final boolean flipColumns = "true".equals(keyValueArgs.remove(prefix + "FlipColumns"));
+        new DictFileParser(input.charset, flipColumns, DictFileParser.DOUBLE_COLON, DictFileParser.PIPE, dictionaryBuilder, dictionaryBuilder.indexBuilders.toArray(new IndexBuilder[0]), null).parse(input.file, entrySource, input.pageLimit);
+      } else {
+        final AbstractWiktionaryParser parser = newWiktionaryParser(input, dictionaryBuilder.indexBuilders);
+        configureWiktionaryParser(parser, input.titles, parseThreads, useTranslationTable, logTokenizerErrors);
+        parser.parse(input.file, entrySource, input.pageLimit);
+      }
+      
+      dictionaryBuilder.dictionary.sources.add(entrySource);
+      System.out.println("Done: " + input.file + "\n\n");
     }
-    
-    System.out.println("Writing dictionary to: " + dictOutFilename);
-    final RandomAccessFile dictOut = new RandomAccessFile(dictOutFilename, "rw");
-    dictOut.setLength(0);
-    dictionaryBuilder.dictionary.write(dictOut);
-    dictOut.close();
-    
-    if (!keyValueArgs.isEmpty()) {
-      System.err.println("WARNING: couldn't parse arguments: " + keyValueArgs);
-      System.exit(1);
+
+    /**
+     * @param indexBuilders the IndexBuilders the parser adds to, in the
+     * same order as dictionaryBuilder's.
+     */
+    private AbstractWiktionaryParser newWiktionaryParser(final Input input, final List<IndexBuilder> indexBuilders) {
+      final String prefix = input.prefix;
+      final String inputFormat = input.format;
+      if ("enwiktionary".equals(inputFormat)) {
+        final String type = keyValueArgs.remove(prefix + "WiktionaryType");
+        final Pattern langPattern = Pattern.compile(keyValueArgs.remove(prefix + "LangPattern"), Pattern.CASE_INSENSITIVE);
+        final Pattern langCodePattern = Pattern.compile(keyValueArgs.remove(prefix + "LangCodePattern"));
+        final int enIndex = Integer.parseInt(keyValueArgs.remove(prefix + "EnIndex")) - 1;
+          
+        if (enIndex < 0 || enIndex >= 2) {
+          fatalError("Must be 1 or 2: " + prefix + "EnIndex");
+        }
+        if ("EnToTranslation".equals(type)) {
+          return new EnToTranslationParser(indexBuilders.get(enIndex), indexBuilders.get(1-enIndex),
+              langPattern, langCodePattern, enIndex != 0);
+        } else if ("EnForeign".equals(type)) {
+          return new EnForeignParser(indexBuilders.get(enIndex), indexBuilders.get(1-enIndex),
+              langPattern, langCodePattern, enIndex != 0);
+        } else if ("EnEnglish".equals(type)) {
+          return new EnForeignParser(indexBuilders.get(enIndex), indexBuilders.get(enIndex),
+              langPattern, langCodePattern, true);
+        } else {
+          fatalError("Invalid WiktionaryType (use EnToTranslation or EnForeign or EnEnglish): " + type);
+          return null;
+        }
+      } else if (EnTranslationToTranslationParser.NAME.equals(inputFormat)) {
+        final String code1 = keyValueArgs.remove(prefix + "LangPattern1");
+        final String code2 = keyValueArgs.remove(prefix + "LangPattern2");
+        if (code1 == null || code2 == null) {
+          fatalError("Must specify LangPattern1 and LangPattern2.");
+          return null;
+        }
+        final Pattern codePattern1 = Pattern.compile(code1, Pattern.CASE_INSENSITIVE);
+        final Pattern codePattern2 = Pattern.compile(code2, Pattern.CASE_INSENSITIVE);
+        return new EnTranslationToTranslationParser(indexBuilders, new Pattern[] {codePattern1, codePattern2});
+      } else if (WholeSectionToHtmlParser.NAME.equals(inputFormat)) {
+        final int titleIndex = Integer.parseInt(keyValueArgs.remove(prefix + "TitleIndex")) - 1;
+        final String wiktionaryLang = keyValueArgs.remove(prefix + "WiktionaryLang");
+        final String webUrlTemplate = keyValueArgs.remove(prefix + "WebUrlTemplate");
+        String skipLang = keyValueArgs.remove(prefix + "SkipLang");
+        if (skipLang == null) skipLang = "";
+        return new WholeSectionToHtmlParser(indexBuilders.get(titleIndex), null, wiktionaryLang, skipLang, webUrlTemplate);
+      } else {
+        fatalError("Invalid or missing input format: " + inputFormat);
+        return null;
+      }
+    }
+
+    void finish() throws IOException {
+      dictionaryBuilder.build();
+      
+      if (printFile != null) {
+        final PrintStream out = new PrintStream(new File(printFile));
+        dictionaryBuilder.dictionary.print(out);
+        out.close();
+      }
+      
+      System.out.println("Writing dictionary to: " + dictOutFilename);
+      final RandomAccessFile dictOut = new RandomAccessFile(dictOutFilename, "rw");
+      dictOut.setLength(0);
+      dictionaryBuilder.dictionary.write(dictOut);
+      dictOut.close();
+      
+      if (!keyValueArgs.isEmpty()) {
+        System.err.println("WARNING: couldn't parse arguments: " + keyValueArgs);
+        System.exit(1);
+      }
     }
-  
   }
   
+  private static void configureWiktionaryParser(final AbstractWiktionaryParser parser, final String titles, final int threads,
+      final boolean useTranslationTable, final boolean logTokenizerErrors) {
+    parser.threads = threads;
+    parser.useTranslationTable = useTranslationTable;
+    if (!logTokenizerErrors) {
+      parser.tokenizerErrors = WikiTokenizer.IGNORE_ERRORS;
+    }
+    if (titles == null) {
+      return;
+    }
+    final int dots = titles.indexOf("..");
+    if (dots == -1) {
+      parser.firstTitle = titles;
+      parser.lastTitle = titles;
+    } else {
+      parser.firstTitle = dots == 0 ? null : titles.substring(0, dots);
+      parser.lastTitle = dots + 2 == titles.length() ? null : titles.substring(dots + 2);
+    }
+  }
+
   private static void fatalError(String string) {
     System.err.println(string);
     
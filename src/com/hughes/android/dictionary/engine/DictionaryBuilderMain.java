@@ -17,6 +17,7 @@ package com.hughes.android.dictionary.engine;
 import com.hughes.android.dictionary.parser.wiktionary.EnTranslationToTranslationParser;
 import com.hughes.android.dictionary.parser.wiktionary.WholeSectionToHtmlParser;
 import com.hughes.android.dictionary.parser.wiktionary.WiktionaryLangs;
+import com.hughes.util.Args;
 
 import junit.framework.TestCase;
 
@@ -311,6 +312,15 @@ public class DictionaryBuilderMain extends TestCase {
 
   public static void main(final String[] args) throws Exception {
     
+    // --sharedPasses=true builds the pairs with DictionaryBuilder.mainShared:
+    // the translations in EN.data are read once for all the pairs, instead
+    // of once per pair, and so is each XX.data that more than one pair
+    // parses the same way.  Everything those passes add, translations and
+    // XX.data entries alike, is held in memory until each pair's dictionary
+    // is built, so this needs room for all the pairs at once.
+    final Map<String,String> keyValueArgs = Args.keyValueArgs(args);
+    final boolean sharedPasses = "true".equals(keyValueArgs.remove("sharedPasses"));
+    
     final List<String[]> allPairs = new ArrayList<String[]>();
     
     allPairs.addAll(Arrays.asList(nonEnPairs));
@@ -323,6 +333,7 @@ public class DictionaryBuilderMain extends TestCase {
     
         
     final Set<List<String>> done = new LinkedHashSet<List<String>>();
+    final List<String[]> sharedArgs = new ArrayList<String[]>();
     boolean go = true;
     for (final String[] pair : allPairs) {
       Arrays.sort(pair);
@@ -342,7 +353,15 @@ public class DictionaryBuilderMain extends TestCase {
           continue;
       }
       
-      DictionaryBuilder.main(getMainArgs(pair).toArray(new String[0]));
+      if (sharedPasses) {
+        sharedArgs.add(getMainArgs(pair).toArray(new String[0]));
+      } else {
+        DictionaryBuilder.main(getMainArgs(pair).toArray(new String[0]));
+      }
+    }
+    
+    if (sharedPasses) {
+      DictionaryBuilder.mainShared(sharedArgs);
     }
     
   }    
@@ -19,8 +19,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
+import com.hughes.android.dictionary.parser.WikiTokenizer;
 import com.hughes.android.dictionary.parser.wiktionary.EnTranslationToTranslationParser;
 import com.hughes.android.dictionary.parser.wiktionary.WholeSectionToHtmlParser;
 import com.hughes.util.FileUtil;
@@ -113,17 +117,33 @@ public class DictionaryBuilderTest extends TestCase {
     wiktionaryTestWithEnTrans2Trans("wiktionary.de_fr.quickdic", "DE", "FR");
   }
 
+  public void testWiktionary_en_de2fr_parallel() throws Exception {
+    wiktionaryTestWithEnTrans2Trans("wiktionary.de_fr.quickdic", "DE", "FR", 4);
+  }
+
   public void wiktionaryTestWithEnTrans2Trans(final String name, final String lang1,
       final String lang2) throws Exception {
+    wiktionaryTestWithEnTrans2Trans(name, lang1, lang2, 0);
+  }
+
+  public void wiktionaryTestWithEnTrans2Trans(final String name, final String lang1,
+      final String lang2, final int parseThreads) throws Exception {
     final File result = new File(TEST_OUTPUTS + name);
     System.out.println("Writing to: " + result);
-    DictionaryBuilder.main(new String[] {
+    DictionaryBuilder.main(enTrans2TransArgs(result, name, lang1, lang2, parseThreads));
+    checkGolden(name, result); 
+  }
+
+  private static String[] enTrans2TransArgs(final File result, final String name, final String lang1,
+      final String lang2, final int parseThreads) {
+    return new String[] {
         "--dictOut=" + result.getAbsolutePath(),
         "--lang1=" + lang1,
         "--lang2=" + lang2,
         "--lang1Stoplist=" + STOPLISTS + "empty.txt",
         "--lang2Stoplist=" + STOPLISTS + "empty.txt",
         "--dictInfo=SomeWikiDataTrans2Trans",
+        "--parseThreads=" + parseThreads,
 
         "--input4=" + WIKISPLIT_EN + "EN.data",
         "--input4Name=" + name,
@@ -133,9 +153,7 @@ public class DictionaryBuilderTest extends TestCase {
         "--input4PageLimit=1000",
 
         "--print=" + result.getPath() + ".text",
-    });
-    
-    checkGolden(name, result); 
+    };
   }
 
   public void testWiktionary_WholeSection_DE() throws Exception {
@@ -151,7 +169,16 @@ public class DictionaryBuilderTest extends TestCase {
     enWiktionaryTestWithWholeSectionToHtml("enwiktionary.WholeSection.IT.quickdic", "IT", 800);
   }
 
+  public void testWiktionary_WholeSection_IT_parallel() throws Exception {
+    enWiktionaryTestWithWholeSectionToHtml("enwiktionary.WholeSection.IT.quickdic", "IT", 800, 4);
+  }
+
   public void enWiktionaryTestWithWholeSectionToHtml(final String name, final String langCode, final int pageLimit) throws Exception {
+    enWiktionaryTestWithWholeSectionToHtml(name, langCode, pageLimit, 0);
+  }
+
+  public void enWiktionaryTestWithWholeSectionToHtml(final String name, final String langCode, final int pageLimit,
+      final int parseThreads) throws Exception {
     final File result = new File(TEST_OUTPUTS + name);
     System.out.println("Writing to: " + result);
     DictionaryBuilder.main(new String[] {
@@ -161,6 +188,7 @@ public class DictionaryBuilderTest extends TestCase {
         "--lang1Stoplist=" + STOPLISTS + "empty.txt",
         "--lang2Stoplist=" + STOPLISTS + "empty.txt",
         "--dictInfo=SomeWikiDataWholeSection",
+        "--parseThreads=" + parseThreads,
 
         "--input4=" + WIKISPLIT_EN + langCode + ".data",
         "--input4Name=" + name,
@@ -270,19 +298,58 @@ public class DictionaryBuilderTest extends TestCase {
         "TH.data", "enwiktionary.thai", "Thai", "th", 1000);
   }
 
+  // The same dictionaries, parsed on several threads.
+  public void testWiktionary_DE_EN_parallel() throws Exception {
+    wiktionaryTestWithLangToEn("wiktionary.de_en.quickdic", "DE", "de.txt",
+        "EN.data", "enwiktionary.english", "German", "de", 1000, 4);
+  }
+
+  public void testWiktionary_DE_DE_parallel() throws Exception {
+    wiktionaryTestWithLangToEn("wiktionary.de_de.quickdic", "DE", "de.txt",
+        "DE.data", "enwiktionary.german", "German", "de", 1000, 4);
+  }
+
+  // The same dictionaries, tokenized with WikiTokenizer's regex scanner.
+  public void testWiktionary_regexScanner() throws Exception {
+    WikiTokenizer.useRegexScanner = true;
+    try {
+      testItConj();
+      testWiktionary_DE_EN();
+      testWiktionary_DE_DE();
+      testWiktionary_en_de2fr();
+    } finally {
+      WikiTokenizer.useRegexScanner = false;
+    }
+  }
+
   public void wiktionaryTestWithLangToEn(final String name, final String lang1,
       final String stoplist, final String data, final String dictName,
       final String langPattern, final String langCode, int pageLimit) throws Exception {
+    wiktionaryTestWithLangToEn(name, lang1, stoplist, data, dictName, langPattern, langCode, pageLimit, 0);
+  }
+
+  public void wiktionaryTestWithLangToEn(final String name, final String lang1,
+      final String stoplist, final String data, final String dictName,
+      final String langPattern, final String langCode, int pageLimit, final int parseThreads) throws Exception {
     final File result = new File(TEST_OUTPUTS + name);
     System.out.println("Writing to: " + result);
+    DictionaryBuilder.main(langToEnArgs(result, lang1, stoplist, data, dictName, langPattern, langCode,
+        pageLimit, parseThreads));
+    checkGolden(name, result); 
+  }
+
+  private static String[] langToEnArgs(final File result, final String lang1,
+      final String stoplist, final String data, final String dictName,
+      final String langPattern, final String langCode, int pageLimit, final int parseThreads) {
     final String type = data.equals("EN.data") ? "EnToTranslation" : "EnForeign";
-    DictionaryBuilder.main(new String[] {
+    return new String[] {
         "--dictOut=" + result.getAbsolutePath(),
         "--lang1=" + lang1,
         "--lang2=EN",
         "--lang1Stoplist=" + STOPLISTS + stoplist,
         "--lang2Stoplist=" + STOPLISTS + "en.txt",
         "--dictInfo=SomeWikiData",
+        "--parseThreads=" + parseThreads,
 
         "--input4=" + WIKISPLIT_EN + data,
         "--input4Name=" + dictName,
@@ -294,9 +361,160 @@ public class DictionaryBuilderTest extends TestCase {
         "--input4PageLimit=" + pageLimit,
 
         "--print=" + result.getPath() + ".text",
-    });
-    
-    checkGolden(name, result); 
+    };
+  }
+
+  // Two of the dictionaries above, with EN.data read once for both.
+  public void testWiktionary_sharedTranslationPass() throws Exception {
+    final String deEnName = "wiktionary.de_en.quickdic";
+    final String deFrName = "wiktionary.de_fr.quickdic";
+    final File deEn = new File(TEST_OUTPUTS + deEnName);
+    final File deFr = new File(TEST_OUTPUTS + deFrName);
+    DictionaryBuilder.mainShared(Arrays.asList(
+        langToEnArgs(deEn, "DE", "de.txt", "EN.data", "enwiktionary.english", "German", "de", 1000, 0),
+        enTrans2TransArgs(deFr, deFrName, "DE", "FR", 0)));
+    checkGolden(deEnName, deEn);
+    checkGolden(deFrName, deFr);
+  }
+
+  // One parse of DE.data, added to two dictionaries (one on several threads).
+  public void testWiktionary_sharedForeignPass() throws Exception {
+    final String name = "wiktionary.de_de.quickdic";
+    final File first = new File(TEST_OUTPUTS + name);
+    final File second = new File(TEST_OUTPUTS + "wiktionary.de_de.shared.quickdic");
+    DictionaryBuilder.mainShared(Arrays.asList(
+        langToEnArgs(first, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000, 0),
+        langToEnArgs(second, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000, 4)));
+    checkGolden(name, first);
+    checkGolden(name, second);
+  }
+
+  // One parse of DE.data, for DE->EN and for EN->DE, which has English as
+  // its first index, so the FanOut swaps the pairs it copies (whichever of
+  // the two gets the parser's own entries).
+  public void testWiktionary_sharedForeignPass_swapped() throws Exception {
+    final String name = "wiktionary.de_de.quickdic";
+    final File deEn = new File(TEST_OUTPUTS + name);
+    final File enDe = new File(TEST_OUTPUTS + "wiktionary.en_de.shared.quickdic");
+    final File enDeAlone = new File(TEST_OUTPUTS + "wiktionary.en_de.quickdic");
+    DictionaryBuilder.main(enToLangArgs(enDeAlone, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000));
+
+    DictionaryBuilder.mainShared(Arrays.asList(
+        langToEnArgs(deEn, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000, 0),
+        enToLangArgs(enDe, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000)));
+    checkGolden(name, deEn);
+    assertFilesEqual(enDeAlone.getPath() + ".text", enDe.getPath() + ".text");
+
+    DictionaryBuilder.mainShared(Arrays.asList(
+        enToLangArgs(enDe, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000),
+        langToEnArgs(deEn, "DE", "de.txt", "DE.data", "enwiktionary.german", "German", "de", 1000, 0)));
+    checkGolden(name, deEn);
+    assertFilesEqual(enDeAlone.getPath() + ".text", enDe.getPath() + ".text");
+  }
+
+  // One parse of EN.data's English entries, for an EN dictionary, where
+  // they go to the first index, and for DE->EN, where they go to the second.
+  public void testWiktionary_sharedEnglishPass() throws Exception {
+    final File en = new File(TEST_OUTPUTS + "wiktionary.en_en.shared.quickdic");
+    final File enAlone = new File(TEST_OUTPUTS + "wiktionary.en_en.quickdic");
+    final File deEn = new File(TEST_OUTPUTS + "wiktionary.de_en_en.shared.quickdic");
+    final File deEnAlone = new File(TEST_OUTPUTS + "wiktionary.de_en_en.quickdic");
+    DictionaryBuilder.main(enEnglishArgs(enAlone, null));
+    DictionaryBuilder.main(enEnglishArgs(deEnAlone, "DE"));
+
+    DictionaryBuilder.mainShared(Arrays.asList(enEnglishArgs(en, null), enEnglishArgs(deEn, "DE")));
+    assertFilesEqual(enAlone.getPath() + ".text", en.getPath() + ".text");
+    assertFilesEqual(deEnAlone.getPath() + ".text", deEn.getPath() + ".text");
+  }
+
+  private static String[] enToLangArgs(final File result, final String lang2,
+      final String stoplist, final String data, final String dictName,
+      final String langPattern, final String langCode, int pageLimit) {
+    return new String[] {
+        "--dictOut=" + result.getAbsolutePath(),
+        "--lang1=EN",
+        "--lang2=" + lang2,
+        "--lang1Stoplist=" + STOPLISTS + "en.txt",
+        "--lang2Stoplist=" + STOPLISTS + stoplist,
+        "--dictInfo=SomeWikiData",
+
+        "--input4=" + WIKISPLIT_EN + data,
+        "--input4Name=" + dictName,
+        "--input4Format=enwiktionary",
+        "--input4WiktionaryType=EnForeign",
+        "--input4LangPattern=" + langPattern,
+        "--input4LangCodePattern=" + langCode,
+        "--input4EnIndex=1",
+        "--input4PageLimit=" + pageLimit,
+
+        "--print=" + result.getPath() + ".text",
+    };
+  }
+
+  // EN.data's English entries, in an EN dictionary, or in a lang1->EN one if
+  // lang1 isn't null.
+  private static String[] enEnglishArgs(final File result, final String lang1) {
+    final List<String> args = new ArrayList<String>();
+    args.add("--dictOut=" + result.getAbsolutePath());
+    if (lang1 == null) {
+      args.add("--lang1=EN");
+      args.add("--lang1Stoplist=" + STOPLISTS + "en.txt");
+    } else {
+      args.add("--lang1=" + lang1);
+      args.add("--lang2=EN");
+      args.add("--lang1Stoplist=" + STOPLISTS + "empty.txt");
+      args.add("--lang2Stoplist=" + STOPLISTS + "en.txt");
+    }
+    args.addAll(Arrays.asList(
+        "--dictInfo=SomeWikiData",
+
+        "--input4=" + WIKISPLIT_EN + "EN.data",
+        "--input4Name=enwiktionary.english",
+        "--input4Format=enwiktionary",
+        "--input4WiktionaryType=EnEnglish",
+        "--input4LangPattern=English",
+        "--input4LangCodePattern=en",
+        "--input4EnIndex=" + (lang1 == null ? 1 : 2),
+        "--input4PageLimit=1000",
+
+        "--print=" + result.getPath() + ".text"));
+    return args.toArray(new String[args.size()]);
+  }
+
+  // The same dictionaries again, from EN.data's translation table.
+  public void testWiktionary_DE_EN_translationTable() throws Exception {
+    final String name = "wiktionary.de_en.quickdic";
+    final File result = new File(TEST_OUTPUTS + name);
+    try {
+      DictionaryBuilder.main(withArg(langToEnArgs(result, "DE", "de.txt", "EN.data", "enwiktionary.english",
+          "German", "de", 1000, 0), "--translationTable=true"));
+    } finally {
+      deleteTranslationTable();
+    }
+    checkGolden(name, result);
+  }
+
+  public void testWiktionary_en_de2fr_translationTable() throws Exception {
+    final String name = "wiktionary.de_fr.quickdic";
+    final File result = new File(TEST_OUTPUTS + name);
+    try {
+      DictionaryBuilder.main(withArg(enTrans2TransArgs(result, name, "DE", "FR", 0), "--translationTable=true"));
+    } finally {
+      deleteTranslationTable();
+    }
+    checkGolden(name, result);
+  }
+
+  // The table is kept next to EN.data, which isn't the tests' to write to.
+  private static void deleteTranslationTable() {
+    new File(WIKISPLIT_EN + "EN.data.translations").delete();
+    new File(WIKISPLIT_EN + "EN.data.translations.tmp").delete();
+  }
+
+  private static String[] withArg(final String[] args, final String arg) {
+    final String[] result = Arrays.copyOf(args, args.length + 1);
+    result[args.length] = arg;
+    return result;
   }
 
   public void testGermanCombined() throws Exception {
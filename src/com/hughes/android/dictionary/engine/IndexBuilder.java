@@ -19,6 +19,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,11 +37,201 @@ public class IndexBuilder {
 
   final SortedMap<String, TokenData> tokenToData;
 
+  // Only for builders made by stage(): the builder their postings are for,
+  // and the postings, in order, that haven't been taken yet.
+  private final IndexBuilder target;
+  private List<Posting> staged;
+
   IndexBuilder(final DictionaryBuilder dictionaryBuilder, final String shortName, final String longName, final Language language, final String normalizerRules, final Set<String> stoplist, final boolean swapPairEntries) {
     this.dictionaryBuilder = dictionaryBuilder;
     index = new Index(dictionaryBuilder.dictionary, shortName, longName, language, normalizerRules, swapPairEntries, stoplist);
     tokenToData = new TreeMap<String, TokenData>(index.getSortComparator());
     this.stoplist = stoplist;
+    this.target = null;
+  }
+
+  private IndexBuilder(final IndexBuilder target, final List<Posting> staged, final Set<String> stoplist) {
+    this.dictionaryBuilder = target.dictionaryBuilder;
+    this.index = target.index;
+    this.stoplist = stoplist;
+    this.tokenToData = new TreeMap<String, TokenData>(index.getSortComparator());
+    this.target = target;
+    this.staged = staged;
+  }
+  
+  /**
+   * A builder that looks like this one to a parser, but only records what's
+   * added to it.  The records are taken with takeStaged() and added to this
+   * builder with {@link Staged#commit()}, which lets several parsers work
+   * at once and still add to this builder in a fixed order.
+   */
+  public IndexBuilder stage() {
+    return new IndexBuilder(this, new ArrayList<Posting>(), stoplist);
+  }
+
+  /**
+   * @return everything added to this staging builder since the last call.
+   */
+  public Staged takeStaged() {
+    if (target == null) {
+      throw new IllegalStateException("Not a staging IndexBuilder.");
+    }
+    final Staged result = new Staged(target, staged);
+    staged = new ArrayList<Posting>();
+    tokenToData.clear();
+    return result;
+  }
+
+  /**
+   * What was added to a staging builder.  Only one thread may commit to a
+   * builder at a time.
+   */
+  public static final class Staged {
+    private final IndexBuilder target;
+    private final List<Posting> postings;
+
+    private Staged(final IndexBuilder target, final List<Posting> postings) {
+      this.target = target;
+      this.postings = postings;
+    }
+
+    public void commit() {
+      for (final Posting posting : postings) {
+        posting.commit(target, posting.indexedEntry);
+      }
+    }
+  }
+
+  /**
+   * IndexBuilders for one parser to add to, whose postings can then be
+   * added to several dictionaries' IndexBuilders, so a file that several
+   * dictionaries need is only parsed once.
+   *
+   * Each of the parser's IndexBuilders plays a role (e.g. the English
+   * index and the foreign one), and each set of targets has an IndexBuilder
+   * for every role; one IndexBuilder can play several.  The first set of
+   * targets gets the parser's entries, the others copies of them with their
+   * own EntrySource, and their pairs swapped if they want the other
+   * orientation.  Only PairEntries can be copied.
+   */
+  public static final class FanOut {
+    private final List<Posting> postings = new ArrayList<Posting>();
+    private final List<IndexBuilder> roles = new ArrayList<IndexBuilder>();
+    private final List<Targets> targets = new ArrayList<Targets>();
+
+    /**
+     * @param firstTargets what the parser adds to, one per role.  The
+     *        parser must be given entrySource, and swap if it has one.
+     */
+    public FanOut(final EntrySource entrySource, final boolean swap, final IndexBuilder... firstTargets) {
+      for (final IndexBuilder indexBuilder : firstTargets) {
+        // The stoplist is each target's to apply.
+        roles.add(new IndexBuilder(indexBuilder, postings, Collections.<String>emptySet()));
+      }
+      addTargets(entrySource, swap, firstTargets);
+    }
+
+    /**
+     * @return the IndexBuilder for the parser to use for a role.
+     */
+    public IndexBuilder role(final int role) {
+      return roles.get(role);
+    }
+
+    public void addTargets(final EntrySource entrySource, final boolean swap, final IndexBuilder... indexBuilders) {
+      if (indexBuilders.length != roles.size()) {
+        throw new IllegalArgumentException("Need an IndexBuilder for each of " + roles.size() + " roles.");
+      }
+      targets.add(new Targets(entrySource, swap, indexBuilders));
+    }
+
+    /**
+     * Adds everything the parser added since the last call to every set of
+     * targets, in order.
+     */
+    public void commit() {
+      final boolean firstSwap = targets.get(0).swap;
+      for (int i = 0; i < targets.size(); ++i) {
+        final Targets target = targets.get(i);
+        final Map<IndexedEntry, IndexedEntry> copies = new IdentityHashMap<IndexedEntry, IndexedEntry>();
+        for (final Posting posting : postings) {
+          final IndexBuilder indexBuilder = target.indexBuilders[roles.indexOf(posting.from)];
+          if (i == 0) {
+            posting.commit(indexBuilder, posting.indexedEntry);
+            continue;
+          }
+          if (posting.indexedEntry == null) {
+            throw new IllegalStateException("Only PairEntries can be fanned out: " + posting.token);
+          }
+          IndexedEntry copy = copies.get(posting.indexedEntry);
+          if (copy == null) {
+            copy = copy(posting.indexedEntry, target.entrySource, target.swap != firstSwap);
+            copies.put(posting.indexedEntry, copy);
+          }
+          posting.commit(indexBuilder, copy);
+        }
+      }
+      postings.clear();
+    }
+
+    private static IndexedEntry copy(final IndexedEntry indexedEntry, final EntrySource entrySource, final boolean swap) {
+      if (!(indexedEntry.entry instanceof PairEntry)) {
+        throw new IllegalStateException("Only PairEntries can be fanned out: " + indexedEntry.entry);
+      }
+      final PairEntry pairEntry = new PairEntry(entrySource);
+      for (final PairEntry.Pair pair : ((PairEntry) indexedEntry.entry).pairs) {
+        pairEntry.pairs.add(swap ? new PairEntry.Pair(pair.lang2, pair.lang1) : new PairEntry.Pair(pair.lang1, pair.lang2));
+      }
+      final IndexedEntry copy = new IndexedEntry(pairEntry);
+      copy.isValid = indexedEntry.isValid;
+      return copy;
+    }
+
+    private static final class Targets {
+      final EntrySource entrySource;
+      final boolean swap;
+      final IndexBuilder[] indexBuilders;
+
+      Targets(final EntrySource entrySource, final boolean swap, final IndexBuilder[] indexBuilders) {
+        this.entrySource = entrySource;
+        this.swap = swap;
+        this.indexBuilders = indexBuilders;
+      }
+    }
+  }
+
+  // One call on a staging builder.
+  private static final class Posting {
+    // The staging builder it was made on.
+    final IndexBuilder from;
+    final String token;
+    final EntryTypeName entryTypeName;
+    final IndexedEntry indexedEntry;
+    final HtmlEntry htmlEntry;
+    final TokenData tokenData;
+
+    Posting(final IndexBuilder from, final String token, final EntryTypeName entryTypeName, final IndexedEntry indexedEntry,
+        final HtmlEntry htmlEntry, final TokenData tokenData) {
+      this.from = from;
+      this.token = token;
+      this.entryTypeName = entryTypeName;
+      this.indexedEntry = indexedEntry;
+      this.htmlEntry = htmlEntry;
+      this.tokenData = tokenData;
+    }
+
+    // target may itself be a staging builder.
+    void commit(final IndexBuilder target, final IndexedEntry indexedEntry) {
+      if (tokenData != null) {
+        final TokenData targetTokenData = target.getOrCreateTokenData(token);
+        targetTokenData.hasMainEntry |= tokenData.hasMainEntry;
+        targetTokenData.htmlEntries.addAll(tokenData.htmlEntries);
+      } else if (htmlEntry != null) {
+        target.addHtmlEntry(token, htmlEntry);
+      } else {
+        target.addEntryWithToken(indexedEntry, token, entryTypeName);
+      }
+    }
   }
   
   public void build() {
@@ -133,10 +324,29 @@ public class IndexBuilder {
     if (tokenData == null) {
       tokenData = new TokenData(token);
       tokenToData.put(token, tokenData);
+      if (target != null) {
+        // Whatever the caller does to it is copied over on commit.
+        staged.add(new Posting(this, token, null, null, null, tokenData));
+      }
     }
     return tokenData;
   }
 
+  /**
+   * Makes htmlEntry the main entry for token, and adds it to the
+   * dictionary.
+   */
+  public void addHtmlEntry(final String token, final HtmlEntry htmlEntry) {
+    if (target != null) {
+      staged.add(new Posting(this, token, null, null, htmlEntry, null));
+      return;
+    }
+    final TokenData tokenData = getOrCreateTokenData(token);
+    tokenData.hasMainEntry = true;
+    htmlEntry.addToDictionary(index.dict);
+    tokenData.htmlEntries.add(htmlEntry);
+  }
+
   private List<IndexedEntry> getOrCreateEntries(final String token, final EntryTypeName entryTypeName) {
     final TokenData tokenData = getOrCreateTokenData(token);
     List<IndexedEntry> entries = tokenData.typeToEntries.get(entryTypeName);
@@ -157,10 +367,19 @@ public class IndexBuilder {
     }
     assert indexedEntry != null;
     for (final String token : tokens) {
-      if (entryTypeName.overridesStopList || !stoplist.contains(token)) {
+      addEntryWithToken(indexedEntry, token, entryTypeName);
+    }    
+  }
+
+  private void addEntryWithToken(final IndexedEntry indexedEntry, final String token,
+      final EntryTypeName entryTypeName) {
+    if (entryTypeName.overridesStopList || !stoplist.contains(token)) {
+      if (target != null) {
+        staged.add(new Posting(this, token, entryTypeName, indexedEntry, null, null));
+      } else {
         getOrCreateEntries(token, entryTypeName).add(indexedEntry);
       }
-    }    
+    }
   }
 
   public void addEntryWithString(final IndexedEntry indexedEntry, final String untokenizedString,
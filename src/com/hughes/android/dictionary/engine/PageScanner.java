@@ -0,0 +1,490 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the <page>s out of a byte range of a MediaWiki XML dump, without a
+ * full XML parser.
+ *
+ * The range owns every page whose <page> tag starts inside it; the last one
+ * is read to its end even if that's past the range.  Since '<' is always
+ * escaped inside character data, a range can start anywhere and the scanner
+ * just skips ahead to the next tag.
+ *
+ * Only what WiktionarySplitter looks at is decoded: the title, ns and text
+ * elements.  Decoding follows what the SAX parser reports: line endings are
+ * normalized to '\n', and entity and character references are expanded.
+ */
+final class PageScanner {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final class Page {
+    final String title;
+    // Empty if the dump doesn't have <ns> elements.
+    final String ns;
+    // The page's <id> and its revision's <id> and <sha1>, empty if missing.
+    final String id;
+    final String revisionId;
+    final String sha1;
+    // null if the TextFilter didn't want it.
+    final String text;
+
+    Page(final String title, final String ns, final String id, final String revisionId,
+        final String sha1, final String text) {
+      this.title = title;
+      this.ns = ns;
+      this.id = id;
+      this.revisionId = revisionId;
+      this.sha1 = sha1;
+      this.text = text;
+    }
+  }
+
+  /**
+   * Decides whether a page's text is worth decoding, from what comes before
+   * it in the dump.
+   */
+  interface TextFilter {
+    boolean wantText(String title, String ns, String id, String revisionId) throws IOException;
+  }
+
+  static final TextFilter MAIN_NAMESPACE = new TextFilter() {
+    @Override
+    public boolean wantText(final String title, final String ns, final String id, final String revisionId) {
+      return WiktionarySplitter.isMainNamespace(title, ns);
+    }
+  };
+
+  private final InputStream in;
+  private final long end;
+  private final TextFilter textFilter;
+  private final byte[] buffer = new byte[1024 * 1024];
+  private int bufferPos = 0;
+  private int bufferLength = 0;
+  // File offset of buffer[0].
+  private long bufferOffset;
+
+  // Returned by readTagName for comments and the like, which it skips
+  // entirely.
+  private static final String SKIPPED = "!";
+
+  private final Bytes title = new Bytes();
+  private final Bytes ns = new Bytes();
+  private final Bytes id = new Bytes();
+  private final Bytes revisionId = new Bytes();
+  private final Bytes sha1 = new Bytes();
+  private final Bytes text = new Bytes();
+
+  PageScanner(final File file, final long start, final long end) throws IOException {
+    this(open(file, start), start, end, MAIN_NAMESPACE);
+  }
+
+  /**
+   * @param in positioned at start.
+   */
+  PageScanner(final InputStream in, final long start, final long end, final TextFilter textFilter) {
+    this.in = in;
+    this.bufferOffset = start;
+    this.end = end;
+    this.textFilter = textFilter;
+  }
+
+  private static InputStream open(final File file, final long start) throws IOException {
+    final FileInputStream in = new FileInputStream(file);
+    in.getChannel().position(start);
+    return in;
+  }
+
+  void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * @return the next page starting before the end of the range, or null.
+   */
+  Page next() throws IOException {
+    while (true) {
+      if (!skipContent()) {
+        return null;
+      }
+      final long tagStart = position();
+      read();
+      final String name = readTagName();
+      if (name.equals("page")) {
+        if (tagStart >= end) {
+          return null;
+        }
+        if (!skipTag()) {
+          return readPage();
+        }
+      } else if (name != SKIPPED) {
+        skipTag();
+      }
+    }
+  }
+
+  /**
+   * The offset just past what has been read; right after next() returns,
+   * that's the end of the page's </page> tag.
+   */
+  long position() {
+    return bufferOffset + bufferPos;
+  }
+
+  private Page readPage() throws IOException {
+    title.length = 0;
+    ns.length = 0;
+    id.length = 0;
+    revisionId.length = 0;
+    sha1.length = 0;
+    // Start with "\n" to better match certain strings, as WiktionarySplitter
+    // does.
+    text.length = 0;
+    text.append('\n');
+    boolean keepText = true;
+    boolean inRevision = false;
+    while (true) {
+      if (!skipContent()) {
+        throw new EOFException("Unterminated <page>.");
+      }
+      read();
+      final String name = readTagName();
+      if (name == SKIPPED) {
+        continue;
+      }
+      if (name.equals("/page")) {
+        skipTag();
+        break;
+      }
+      if (name.equals("/revision")) {
+        inRevision = false;
+      }
+      if (name.equals("text")) {
+        // <title>, <ns> and the <id>s come before <text>.  Empty pages have a
+        // self-closing <text/>, so ask before skipping the tag.
+        keepText = textFilter.wantText(title.toString(), ns.toString(), id.toString(), revisionId.toString());
+      }
+      if (skipTag()) {
+        // Self-closing, no content.
+        continue;
+      }
+      if (name.equals("title")) {
+        readContent(title);
+      } else if (name.equals("ns")) {
+        readContent(ns);
+      } else if (name.equals("revision")) {
+        inRevision = true;
+      } else if (name.equals("id")) {
+        // The first <id> in a <revision> is its own, later ones are the
+        // contributor's.
+        if (!inRevision && id.length == 0) {
+          readContent(id);
+        } else if (inRevision && revisionId.length == 0) {
+          readContent(revisionId);
+        }
+      } else if (name.equals("sha1")) {
+        readContent(sha1);
+      } else if (name.equals("text")) {
+        readContent(keepText ? text : null);
+      }
+    }
+    return new Page(title.toString(), ns.toString(), id.toString(), revisionId.toString(),
+        sha1.toString(), keepText ? text.toString() : null);
+  }
+
+  // -----------------------------------------------------------------------
+
+  private int peek() throws IOException {
+    if (bufferPos == bufferLength) {
+      bufferOffset += bufferLength;
+      bufferPos = 0;
+      bufferLength = Math.max(0, in.read(buffer));
+      if (bufferLength == 0) {
+        return -1;
+      }
+    }
+    return buffer[bufferPos] & 0xff;
+  }
+
+  private int read() throws IOException {
+    final int b = peek();
+    if (b != -1) {
+      ++bufferPos;
+    }
+    return b;
+  }
+
+  private int readOrThrow() throws IOException {
+    final int b = read();
+    if (b == -1) {
+      throw new EOFException("Truncated XML.");
+    }
+    return b;
+  }
+
+  /**
+   * Skips to the next '<'.
+   * @return false at the end of the file.
+   */
+  private boolean skipContent() throws IOException {
+    while (true) {
+      while (bufferPos < bufferLength) {
+        if (buffer[bufferPos] == '<') {
+          return true;
+        }
+        ++bufferPos;
+      }
+      if (peek() == -1) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Reads the name of a tag whose '<' has been read.  End tags come back as
+   * "/name".  Comments, CDATA outside content and processing instructions
+   * are skipped entirely and come back as SKIPPED.
+   */
+  private String readTagName() throws IOException {
+    final StringBuilder name = new StringBuilder();
+    while (true) {
+      final int b = peek();
+      if (b == -1 || b == '>' || b == ' ' || b == '\t' || b == '\n' || b == '\r'
+          || (b == '/' && name.length() > 0)) {
+        break;
+      }
+      read();
+      name.append((char) b);
+      if (name.length() == 3 && name.toString().equals("!--")) {
+        skipPast("-->");
+        return SKIPPED;
+      }
+      if (name.length() == 8 && name.toString().equals("![CDATA[")) {
+        skipPast("]]>");
+        return SKIPPED;
+      }
+    }
+    if (name.length() > 0 && name.charAt(0) == '?') {
+      skipPast("?>");
+      return SKIPPED;
+    }
+    return name.toString();
+  }
+
+  /**
+   * Skips to just past the '>' that ends a tag.
+   * @return whether the tag was self-closing.
+   */
+  private boolean skipTag() throws IOException {
+    int last = -1;
+    int quote = -1;
+    while (true) {
+      final int b = readOrThrow();
+      if (quote != -1) {
+        if (b == quote) {
+          quote = -1;
+        }
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '>') {
+        return last == '/';
+      }
+      last = b;
+    }
+  }
+
+  private void skipPast(final String terminator) throws IOException {
+    int matched = 0;
+    while (matched < terminator.length()) {
+      final int b = readOrThrow();
+      if (b == terminator.charAt(matched)) {
+        ++matched;
+      } else if (b != terminator.charAt(0)) {
+        // The terminators are a run of one character and then '>', so
+        // another of that character keeps the match going.
+        matched = 0;
+      }
+    }
+  }
+
+  /**
+   * Reads character data up to the next tag (including CDATA sections and
+   * comments inside it) into out, or just skips it if out is null.
+   */
+  private void readContent(final Bytes out) throws IOException {
+    while (true) {
+      if (out == null) {
+        if (!skipContent()) {
+          throw new EOFException("Truncated XML.");
+        }
+      }
+      if (peek() == '<') {
+        if (startsWith("<![CDATA[")) {
+          bufferPos += "<![CDATA[".length();
+          readCdata(out);
+          continue;
+        }
+        if (startsWith("<!--")) {
+          bufferPos += "<!--".length();
+          skipPast("-->");
+          continue;
+        }
+        // Leave the '<' for the caller.
+        return;
+      }
+      final int b = readOrThrow();
+      if (b == '\r') {
+        if (peek() == '\n') {
+          read();
+        }
+        out.append('\n');
+      } else if (b == '&') {
+        out.appendCodePoint(readReference());
+      } else {
+        out.append(b);
+      }
+    }
+  }
+
+  private void readCdata(final Bytes out) throws IOException {
+    while (true) {
+      final int b = readOrThrow();
+      if (b == ']' && startsWith("]>")) {
+        bufferPos += "]>".length();
+        return;
+      }
+      if (out == null) {
+        continue;
+      }
+      if (b == '\r') {
+        if (peek() == '\n') {
+          read();
+        }
+        out.append('\n');
+      } else {
+        out.append(b);
+      }
+    }
+  }
+
+  /**
+   * Makes sure at least prefix.length() bytes are in the buffer, if the file
+   * has them, and checks whether they are prefix.
+   */
+  private boolean startsWith(final String prefix) throws IOException {
+    if (bufferLength - bufferPos < prefix.length()) {
+      System.arraycopy(buffer, bufferPos, buffer, 0, bufferLength - bufferPos);
+      bufferOffset += bufferPos;
+      bufferLength -= bufferPos;
+      bufferPos = 0;
+      while (bufferLength < prefix.length()) {
+        final int n = in.read(buffer, bufferLength, buffer.length - bufferLength);
+        if (n <= 0) {
+          return false;
+        }
+        bufferLength += n;
+      }
+    }
+    for (int i = 0; i < prefix.length(); ++i) {
+      if (buffer[bufferPos + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads an entity or character reference whose '&' has been read.
+   */
+  private int readReference() throws IOException {
+    final StringBuilder name = new StringBuilder();
+    int b;
+    while ((b = readOrThrow()) != ';') {
+      if (name.length() > 10) {
+        throw new IOException("Bad reference: &" + name);
+      }
+      name.append((char) b);
+    }
+    final String reference = name.toString();
+    if (reference.equals("lt")) {
+      return '<';
+    } else if (reference.equals("gt")) {
+      return '>';
+    } else if (reference.equals("amp")) {
+      return '&';
+    } else if (reference.equals("quot")) {
+      return '"';
+    } else if (reference.equals("apos")) {
+      return '\'';
+    }
+    try {
+      if (reference.startsWith("#x")) {
+        return Integer.parseInt(reference.substring(2), 16);
+      } else if (reference.startsWith("#")) {
+        return Integer.parseInt(reference.substring(1));
+      }
+    } catch (NumberFormatException e) {
+    }
+    throw new IOException("Bad reference: &" + reference + ";");
+  }
+
+  /**
+   * A growable UTF-8 buffer.
+   */
+  static final class Bytes {
+    byte[] bytes = new byte[4096];
+    int length = 0;
+
+    void append(final int b) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      bytes[length++] = (byte) b;
+    }
+
+    void appendCodePoint(final int codePoint) {
+      if (codePoint < 0x80) {
+        append(codePoint);
+      } else if (codePoint < 0x800) {
+        append(0xc0 | (codePoint >> 6));
+        append(0x80 | (codePoint & 0x3f));
+      } else if (codePoint < 0x10000) {
+        append(0xe0 | (codePoint >> 12));
+        append(0x80 | ((codePoint >> 6) & 0x3f));
+        append(0x80 | (codePoint & 0x3f));
+      } else {
+        append(0xf0 | (codePoint >> 18));
+        append(0x80 | ((codePoint >> 12) & 0x3f));
+        append(0x80 | ((codePoint >> 6) & 0x3f));
+        append(0x80 | (codePoint & 0x3f));
+      }
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, 0, length, UTF8);
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class PageScannerTest extends TestCase {
+
+  static final String XML =
+      "<?xml version=\"1.0\"?>\r\n" +
+      "<mediawiki><siteinfo><sitename>Wiktionary</sitename></siteinfo>\n" +
+      "  <page>\n" +
+      "    <title>q&amp;a</title>\n" +
+      "    <ns>0</ns>\n" +
+      "    <id>7</id>\n" +
+      "    <revision><id>70</id><contributor><id>1</id></contributor>\n" +
+      "    <text xml:space=\"preserve\" note='a>b'>==English==\r\n&lt;b&gt; &#233;&#x1F600;&#13;<!-- c --><![CDATA[<x>]]></text><sha1>abc</sha1></revision>\n" +
+      "  </page>\n" +
+      "  <page>\n" +
+      "    <title>Template:x</title>\n" +
+      "    <ns>10</ns>\n" +
+      "    <revision><text xml:space=\"preserve\">{{skipped}}</text></revision>\n" +
+      "  </page>\n" +
+      "  <page>\n" +
+      "    <title>deleted</title>\n" +
+      "    <ns>0</ns>\n" +
+      "    <revision><text deleted=\"deleted\" /></revision>\n" +
+      "  </page>\n" +
+      "</mediawiki>\n";
+
+  public void testPages() throws IOException {
+    final File file = writeXml();
+    final List<PageScanner.Page> pages = scan(file, 0, file.length());
+    assertEquals(3, pages.size());
+    assertEquals("q&a", pages.get(0).title);
+    assertEquals("0", pages.get(0).ns);
+    assertEquals("7", pages.get(0).id);
+    assertEquals("70", pages.get(0).revisionId);
+    assertEquals("abc", pages.get(0).sha1);
+    assertEquals("\n==English==\n<b> é😀\r<x>", pages.get(0).text);
+    assertEquals("Template:x", pages.get(1).title);
+    assertEquals("10", pages.get(1).ns);
+    assertEquals("", pages.get(1).id);
+    assertNull(pages.get(1).text);
+    assertEquals("\n", pages.get(2).text);
+  }
+
+  public void testRanges() throws IOException {
+    final File file = writeXml();
+    // Every split point gives each page to exactly one range.
+    for (long split = 0; split <= file.length(); ++split) {
+      final List<String> titles = new ArrayList<String>();
+      for (final PageScanner.Page page : scan(file, 0, split)) {
+        titles.add(page.title);
+      }
+      for (final PageScanner.Page page : scan(file, split, file.length())) {
+        titles.add(page.title);
+      }
+      assertEquals("split=" + split, "[q&a, Template:x, deleted]", titles.toString());
+    }
+  }
+
+  private static File writeXml() throws IOException {
+    final File file = File.createTempFile("PageScannerTest", ".xml");
+    file.deleteOnExit();
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(XML.getBytes("UTF-8"));
+    out.close();
+    return file;
+  }
+
+  private static List<PageScanner.Page> scan(final File file, final long start, final long end) throws IOException {
+    final List<PageScanner.Page> pages = new ArrayList<PageScanner.Page>();
+    final PageScanner scanner = new PageScanner(file, start, end);
+    try {
+      PageScanner.Page page;
+      while ((page = scanner.next()) != null) {
+        pages.add(page);
+      }
+    } finally {
+      scanner.close();
+    }
+    return pages;
+  }
+
+}
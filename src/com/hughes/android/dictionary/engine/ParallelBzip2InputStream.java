@@ -0,0 +1,225 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.hughes.android.dictionary.engine.Bzip2Decoder.BitInput;
+import com.hughes.android.dictionary.engine.Bzip2Decoder.Block;
+
+/**
+ * Decompresses a bzip2 file on a pool of threads, handing the bytes back in
+ * order.
+ *
+ * A scanner thread walks the compressed file looking for the bit patterns
+ * that start blocks and end streams, and submits every block it finds to the
+ * pool.  The magic numbers can also turn up by chance inside compressed data;
+ * such false starts fail to decode or fail their CRC, and are skipped because
+ * the real block before them ends past them.  This works the same for the
+ * single-stream and the multistream dumps.
+ */
+final class ParallelBzip2InputStream extends InputStream {
+
+  private static final long MAGIC_MASK = (1L << Bzip2Decoder.MAGIC_BITS) - 1;
+
+  // Bounds how far decompression can get ahead of the reader.
+  static final int BLOCKS_PER_THREAD = 4;
+
+  /**
+   * A place in the file where a block or an end-of-stream marker may start.
+   */
+  private static final class Candidate {
+    // Bit offset of the magic number.
+    final long bit;
+    final boolean endOfStream;
+    final Future<Block> block;
+
+    Candidate(final long bit, final boolean endOfStream, final Future<Block> block) {
+      this.bit = bit;
+      this.endOfStream = endOfStream;
+      this.block = block;
+    }
+  }
+
+  private static final Candidate END = new Candidate(-1, true, null);
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final ExecutorService decoders;
+  private final BlockingQueue<Candidate> candidates;
+  private final Thread scanner;
+  private volatile IOException scanFailure = null;
+
+  // Where the next block (or end of stream) has to start.
+  private long nextBit;
+  private Block block = null;
+  private int blockPos = 0;
+  private boolean eof = false;
+
+  ParallelBzip2InputStream(final File file, final int numThreads) throws IOException {
+    this.file = file;
+    this.randomAccessFile = new RandomAccessFile(file, "r");
+    this.channel = randomAccessFile.getChannel();
+    Bzip2Decoder.readStreamHeader(BitInput.open(channel, 0));
+    this.nextBit = 32;
+    this.decoders = Executors.newFixedThreadPool(numThreads);
+    this.candidates = new ArrayBlockingQueue<Candidate>(numThreads * BLOCKS_PER_THREAD);
+    this.scanner = new Thread("ParallelBzip2InputStream.scanner") {
+      @Override
+      public void run() {
+        scan();
+      }
+    };
+    scanner.setDaemon(true);
+    scanner.start();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return block.bytes[blockPos++] & 0xff;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int n = Math.min(len, block.length - blockPos);
+    System.arraycopy(block.bytes, blockPos, b, off, n);
+    blockPos += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    scanner.interrupt();
+    decoders.shutdownNow();
+    randomAccessFile.close();
+  }
+
+  private boolean fill() throws IOException {
+    while (!eof && (block == null || blockPos == block.length)) {
+      final Candidate candidate;
+      try {
+        candidate = candidates.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      if (candidate == END) {
+        if (scanFailure != null) {
+          throw scanFailure;
+        }
+        if (nextBit != -1) {
+          throw new IOException("Truncated bzip2 input: " + file);
+        }
+        eof = true;
+        break;
+      }
+      if (candidate.bit < nextBit) {
+        // Inside the block we just read: a false start.
+        if (candidate.block != null) {
+          candidate.block.cancel(false);
+        }
+        continue;
+      }
+      if (candidate.bit != nextBit || nextBit == -1) {
+        throw new IOException("Bad bzip2 input, no block at bit " + nextBit + ": " + file);
+      }
+      if (candidate.endOfStream) {
+        // Skip the stream CRC and padding; the next stream's first block
+        // comes right after its "BZh[1-9]" header.
+        final long streamEnd = (candidate.bit + Bzip2Decoder.MAGIC_BITS + 32 + 7) & ~7L;
+        nextBit = streamEnd < channel.size() * 8 ? streamEnd + 32 : -1;
+        continue;
+      }
+      try {
+        block = candidate.block.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+      }
+      blockPos = 0;
+      nextBit = block.endBit;
+    }
+    return !eof;
+  }
+
+  /**
+   * Runs on the scanner thread.
+   */
+  private void scan() {
+    try {
+      final InputStream in = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+      try {
+        long bit = 0;
+        long window = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+          for (int i = 7; i >= 0; --i) {
+            window = (window << 1) | ((b >>> i) & 1);
+            ++bit;
+            final long magic = window & MAGIC_MASK;
+            if (magic == Bzip2Decoder.BLOCK_MAGIC && bit >= Bzip2Decoder.MAGIC_BITS) {
+              final long blockBit = bit;
+              final Future<Block> future = decoders.submit(new Callable<Block>() {
+                @Override
+                public Block call() throws IOException {
+                  return Bzip2Decoder.decodeBlock(BitInput.open(channel, blockBit), Bzip2Decoder.MAX_BLOCK_SIZE);
+                }
+              });
+              candidates.put(new Candidate(blockBit - Bzip2Decoder.MAGIC_BITS, false, future));
+            } else if (magic == Bzip2Decoder.EOS_MAGIC && bit >= Bzip2Decoder.MAGIC_BITS) {
+              candidates.put(new Candidate(bit - Bzip2Decoder.MAGIC_BITS, true, null));
+            }
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (InterruptedException e) {
+      return;
+    } catch (IOException e) {
+      scanFailure = e;
+    }
+    try {
+      candidates.put(END);
+    } catch (InterruptedException e) {
+      // Closed.
+    }
+  }
+
+}
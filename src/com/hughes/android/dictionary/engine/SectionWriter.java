@@ -0,0 +1,251 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Section;
+
+/**
+ * Writes sections to a split file, encoding them straight from the page's
+ * chars into a direct ByteBuffer that goes to a channel, so a section is
+ * never copied into a String or a byte[] on the way out.
+ *
+ * The bytes are exactly what DataOutputStream wrote: writeUTF(title),
+ * writeUTF(heading), writeInt(length) and then the text as
+ * String.getBytes("UTF8") would encode it.  Writers opened with
+ * {@link #openBlocks} send that stream through a
+ * {@link SplitFile.BlockChannel}, and position() counts it uncompressed.
+ */
+final class SectionWriter {
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  // Direct buffers are expensive to allocate, so closed writers give theirs
+  // back for the next dump.
+  private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  private final WritableByteChannel channel;
+  // Non-null if channel is one.
+  private final SplitFile.BlockChannel blocks;
+  private ByteBuffer buffer;
+  private long position;
+
+  SectionWriter(final WritableByteChannel channel, final long position) {
+    this(channel, position, null);
+  }
+
+  private SectionWriter(final WritableByteChannel channel, final long position, final SplitFile.BlockChannel blocks) {
+    this.channel = channel;
+    this.blocks = blocks;
+    this.position = position;
+    final ByteBuffer pooled = bufferPool.poll();
+    this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  static SectionWriter open(final File file, final boolean append) throws IOException {
+    final FileChannel channel = new FileOutputStream(file, append).getChannel();
+    return new SectionWriter(channel, channel.position());
+  }
+
+  /**
+   * Opens file in the block format of {@link SplitFile}.
+   */
+  static SectionWriter openBlocks(final File file, final boolean append) throws IOException {
+    final SplitFile.BlockChannel channel = SplitFile.BlockChannel.open(file, append);
+    return new SectionWriter(channel, channel.length(), channel);
+  }
+
+  /**
+   * @return how many bytes are in the file, counting the buffered ones.
+   */
+  long position() {
+    return position;
+  }
+
+  void writeSection(final Section section) throws IOException {
+    putUTF(section.title, 0, section.title.length());
+    putUTF(section.heading, 0, section.heading.length());
+    final int length = utf8Length(section.page, section.textStart, section.textEnd);
+    ensure(4);
+    buffer.putInt(length);
+    position += 4;
+    putUtf8(section.page, section.textStart, section.textEnd);
+  }
+
+  void write(final byte[] bytes, final int offset, final int length) throws IOException {
+    int written = 0;
+    while (written < length) {
+      if (!buffer.hasRemaining()) {
+        flushBuffer();
+      }
+      final int n = Math.min(buffer.remaining(), length - written);
+      buffer.put(bytes, offset + written, n);
+      written += n;
+    }
+    position += length;
+  }
+
+  /**
+   * Appends count bytes of from, starting at fromPosition, without bringing
+   * them into the JVM.
+   */
+  void copy(final FileChannel from, final long fromPosition, final long count) throws IOException {
+    flushBuffer();
+    long copied = 0;
+    while (copied < count) {
+      final long n = from.transferTo(fromPosition + copied, count - copied, channel);
+      if (n <= 0) {
+        throw new IOException("Couldn't copy " + count + " bytes at " + fromPosition);
+      }
+      copied += n;
+    }
+    position += count;
+  }
+
+  /**
+   * Gets everything written so far into the file, ending the current block
+   * if there is one.  Must be called between sections.
+   */
+  void flush() throws IOException {
+    flushBuffer();
+    if (blocks != null) {
+      blocks.endBlock();
+    }
+  }
+
+  void close() throws IOException {
+    try {
+      flushBuffer();
+    } finally {
+      channel.close();
+      // flushBuffer() leaves it half written if the channel failed.
+      buffer.clear();
+      bufferPool.add(buffer);
+      buffer = null;
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  private void flushBuffer() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private void ensure(final int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flushBuffer();
+    }
+  }
+
+  /**
+   * Same as DataOutputStream.writeUTF: a length, then modified UTF-8 (no
+   * surrogate pairs, '\0' as two bytes).
+   */
+  private void putUTF(final CharSequence chars, final int start, final int end) throws IOException {
+    int length = 0;
+    for (int i = start; i < end; ++i) {
+      final char c = chars.charAt(i);
+      length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+    }
+    if (length > 65535) {
+      throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+    }
+    ensure(2);
+    buffer.putShort((short) length);
+    for (int i = start; i < end; ++i) {
+      final char c = chars.charAt(i);
+      ensure(3);
+      if (c >= 0x0001 && c <= 0x007F) {
+        buffer.put((byte) c);
+      } else if (c > 0x07FF) {
+        buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else {
+        buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    position += 2 + length;
+  }
+
+  /**
+   * What String.getBytes("UTF8") would give for chars[start, end), where an
+   * unpaired surrogate becomes '?'.
+   */
+  static int utf8Length(final CharSequence chars, final int start, final int end) {
+    int length = 0;
+    for (int i = start; i < end; ++i) {
+      final char c = chars.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        length += 4;
+        ++i;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private void putUtf8(final CharSequence chars, final int start, final int end) throws IOException {
+    for (int i = start; i < end; ++i) {
+      final char c = chars.charAt(i);
+      ensure(4);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+        position += 1;
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+        position += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        position += 4;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        buffer.put((byte) '?');
+        position += 1;
+      } else {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+        position += 3;
+      }
+    }
+  }
+
+}
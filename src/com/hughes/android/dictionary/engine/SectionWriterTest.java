@@ -0,0 +1,128 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Section;
+
+public class SectionWriterTest extends TestCase {
+
+  public void testSameAsDataOutputStream() throws IOException {
+    final String[] texts = {
+        "",
+        "plain ascii",
+        "\u0000nul and é and €",
+        "pair 😀 end",
+        "lone high \ud83d x",
+        "lone low \ude00 x",
+        "high at end \ud83d",
+    };
+    for (final String text : texts) {
+      assertSame(text, "\n==" + text + "==", "[" + text + "]");
+    }
+  }
+
+  public void testLongerThanBuffer() throws IOException {
+    final StringBuilder text = new StringBuilder();
+    while (text.length() < 3 * SectionWriter.BUFFER_SIZE) {
+      text.append("xé€😀");
+    }
+    assertSame("title", "==heading==", text.toString());
+  }
+
+  public void testTitleTooLong() throws IOException {
+    final char[] title = new char[40000];
+    Arrays.fill(title, 'é');
+    try {
+      write(new String(title), "==heading==", "");
+      fail();
+    } catch (UTFDataFormatException e) {
+    }
+  }
+
+  public void testFailedClose() throws IOException {
+    // Like a pipeline worker's channel, interrupted part way through a write.
+    final SectionWriter writer = new SectionWriter(new WritableByteChannel() {
+      boolean interrupted = false;
+
+      @Override
+      public int write(final ByteBuffer src) throws IOException {
+        if (interrupted) {
+          throw new ClosedByInterruptException();
+        }
+        interrupted = true;
+        src.get();
+        return 1;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return false;
+      }
+
+      @Override
+      public void close() {
+      }
+    }, 0);
+    writer.writeSection(new Section("lost", "lost text").set("==lost==", 0, 4));
+    try {
+      writer.close();
+      fail();
+    } catch (ClosedByInterruptException e) {
+    }
+    // The next writer gets the same buffer, which mustn't still hold the
+    // section that couldn't be written.
+    assertSame("title", "==heading==", "text");
+  }
+
+  private static void assertSame(final String title, final String heading, final String text) throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(expected);
+    out.writeUTF(title);
+    out.writeUTF(heading);
+    final byte[] bytes = text.getBytes("UTF8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.close();
+    final byte[] actual = write(title, heading, text);
+    assertTrue(text, Arrays.equals(expected.toByteArray(), actual));
+  }
+
+  private static byte[] write(final String title, final String heading, final String text) throws IOException {
+    // The text is cut out of the middle of a page.
+    final String page = "before" + text + "after";
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final SectionWriter writer = new SectionWriter(Channels.newChannel(bytes), 0);
+    try {
+      writer.writeSection(new Section(title, page).set(heading, 6, 6 + text.length()));
+    } finally {
+      writer.close();
+    }
+    assertEquals(bytes.size(), writer.position());
+    return bytes.toByteArray();
+  }
+
+}
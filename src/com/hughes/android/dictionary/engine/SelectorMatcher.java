@@ -0,0 +1,201 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+
+/**
+ * Finds every Selector whose pattern matches a heading in one pass over the
+ * heading.
+ *
+ * Most selector patterns are plain language names ("German"), alternations of
+ * names ("Slovene|Slovenian") or Pattern.quote()d templates
+ * ("{{langue|fr}}").  Those are compiled into a single Aho-Corasick automaton.
+ * The few that are real regexes ("Malay$") are still run one at a time.
+ *
+ * Selectors compile with Pattern.CASE_INSENSITIVE and no UNICODE_CASE, so the
+ * automaton folds ASCII letters only, exactly as the regexes do.
+ */
+final class SelectorMatcher {
+
+  private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+  final List<Selector> selectors;
+
+  // Aho-Corasick automaton; node 0 is the root.
+  private final List<Map<Character, Integer>> transitions = new ArrayList<Map<Character, Integer>>();
+  private final List<Integer> failure = new ArrayList<Integer>();
+  // For each node, the selector indices of every literal ending there
+  // (including those reached through failure links).
+  private final List<int[]> outputs = new ArrayList<int[]>();
+
+  // Selector indices that have to be matched with their own Pattern.
+  private final int[] regexSelectors;
+
+  SelectorMatcher(final List<Selector> selectors) {
+    this.selectors = selectors;
+    newNode();
+    final List<Integer> regexSelectors = new ArrayList<Integer>();
+    for (int i = 0; i < selectors.size(); ++i) {
+      final List<String> literals = literals(selectors.get(i).pattern.pattern());
+      if (literals == null) {
+        regexSelectors.add(i);
+        continue;
+      }
+      for (final String literal : literals) {
+        addLiteral(literal, i);
+      }
+    }
+    this.regexSelectors = new int[regexSelectors.size()];
+    for (int i = 0; i < this.regexSelectors.length; ++i) {
+      this.regexSelectors[i] = regexSelectors.get(i);
+    }
+    buildFailureLinks();
+  }
+
+  /**
+   * @return the selectors matching heading, in the order they were given.
+   */
+  List<Selector> matches(final String heading) {
+    boolean[] matched = null;
+    int node = 0;
+    for (int i = 0; i < heading.length(); ++i) {
+      final char c = fold(heading.charAt(i));
+      Integer next;
+      while ((next = transitions.get(node).get(c)) == null && node != 0) {
+        node = failure.get(node);
+      }
+      node = next == null ? 0 : next;
+      final int[] output = outputs.get(node);
+      if (output.length > 0) {
+        if (matched == null) {
+          matched = new boolean[selectors.size()];
+        }
+        for (final int selector : output) {
+          matched[selector] = true;
+        }
+      }
+    }
+    for (final int selector : regexSelectors) {
+      if ((matched == null || !matched[selector])
+          && selectors.get(selector).pattern.matcher(heading).find()) {
+        if (matched == null) {
+          matched = new boolean[selectors.size()];
+        }
+        matched[selector] = true;
+      }
+    }
+    if (matched == null) {
+      return Collections.emptyList();
+    }
+    final List<Selector> result = new ArrayList<Selector>(2);
+    for (int i = 0; i < matched.length; ++i) {
+      if (matched[i]) {
+        result.add(selectors.get(i));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the literal strings the pattern is an alternation of, or null if
+   *         it uses any other regex syntax.
+   */
+  static List<String> literals(final String pattern) {
+    if (pattern.startsWith("\\Q") && pattern.endsWith("\\E")
+        && pattern.indexOf("\\E") == pattern.length() - 2) {
+      final String literal = pattern.substring(2, pattern.length() - 2);
+      return literal.length() == 0 ? null : Collections.singletonList(literal);
+    }
+    final List<String> literals = Arrays.asList(pattern.split("\\|", -1));
+    for (final String literal : literals) {
+      if (literal.length() == 0) {
+        return null;
+      }
+      for (int i = 0; i < literal.length(); ++i) {
+        if (REGEX_META.indexOf(literal.charAt(i)) != -1) {
+          return null;
+        }
+      }
+    }
+    return literals;
+  }
+
+  static char fold(final char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private int newNode() {
+    transitions.add(new HashMap<Character, Integer>());
+    failure.add(0);
+    outputs.add(new int[0]);
+    return transitions.size() - 1;
+  }
+
+  private void addLiteral(final String literal, final int selector) {
+    int node = 0;
+    for (int i = 0; i < literal.length(); ++i) {
+      final char c = fold(literal.charAt(i));
+      Integer next = transitions.get(node).get(c);
+      if (next == null) {
+        next = newNode();
+        transitions.get(node).put(c, next);
+      }
+      node = next;
+    }
+    outputs.set(node, append(outputs.get(node), selector));
+  }
+
+  private void buildFailureLinks() {
+    final LinkedList<Integer> queue = new LinkedList<Integer>(transitions.get(0).values());
+    while (!queue.isEmpty()) {
+      final int node = queue.removeFirst();
+      for (final Map.Entry<Character, Integer> transition : transitions.get(node).entrySet()) {
+        final int child = transition.getValue();
+        int fail = failure.get(node);
+        Integer next;
+        while ((next = transitions.get(fail).get(transition.getKey())) == null && fail != 0) {
+          fail = failure.get(fail);
+        }
+        final int childFailure = next == null || next == child ? 0 : next;
+        failure.set(child, childFailure);
+        for (final int selector : outputs.get(childFailure)) {
+          outputs.set(child, append(outputs.get(child), selector));
+        }
+        queue.addLast(child);
+      }
+    }
+  }
+
+  private static int[] append(final int[] array, final int value) {
+    for (final int existing : array) {
+      if (existing == value) {
+        return array;
+      }
+    }
+    final int[] result = Arrays.copyOf(array, array.length + 1);
+    result[array.length] = value;
+    return result;
+  }
+
+}
@@ -0,0 +1,87 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+import com.hughes.android.dictionary.parser.wiktionary.WiktionaryLangs;
+
+public class SelectorMatcherTest extends TestCase {
+
+  public void testLiterals() {
+    assertEquals(Arrays.asList("German"), SelectorMatcher.literals("German"));
+    assertEquals(Arrays.asList("Slovene", "Slovenian"), SelectorMatcher.literals("Slovene|Slovenian"));
+    assertEquals(Arrays.asList("{{langue|fr}}"), SelectorMatcher.literals("\\Q{{langue|fr}}\\E"));
+    assertNull(SelectorMatcher.literals("Malay$"));
+    assertNull(SelectorMatcher.literals("\\{\\{-(it|scn|nap|cal|lmo)-\\}\\}"));
+    assertNull(SelectorMatcher.literals("a||b"));
+  }
+
+  public void testMatchesInSelectorOrder() {
+    final List<Selector> selectors = selectors("en");
+    final SelectorMatcher matcher = new SelectorMatcher(selectors);
+    assertEquals(Arrays.asList("EL", "grc"), names(matcher.matches("==Ancient Greek==")));
+    assertEquals(Arrays.asList("EN"), names(matcher.matches("==english==")));
+    assertEquals(Arrays.asList("SL"), names(matcher.matches("==Slovenian==")));
+    assertEquals(Arrays.asList("MS"), names(matcher.matches("==Malay")));
+    assertEquals(Arrays.asList("ML"), names(matcher.matches("==Malayalam==")));
+    assertEquals(Arrays.asList(), names(matcher.matches("===Etymology===")));
+  }
+
+  public void testSameAsPatterns() {
+    final String[] headings = {
+        "==Ancient Greek==", "==Old English==", "== Serbo-Croatian ==",
+        "==Malay", "==Malay==", "==GERMAN==", "==Deutsch==", "=={{langue|fr}}==",
+        "== {{-scn-}} ==", "== {{-grc-}} ==", "==Französisch==", "==FRANZÖSISCH==",
+        "==Mandarin Chinese==", "==Sinhalese==", "",
+    };
+    for (final String wikiCode : WiktionaryLangs.wikiCodeToIsoCodeToWikiName.keySet()) {
+      final List<Selector> selectors = selectors(wikiCode);
+      final SelectorMatcher matcher = new SelectorMatcher(selectors);
+      for (final String heading : headings) {
+        final List<Selector> expected = new ArrayList<Selector>();
+        for (final Selector selector : selectors) {
+          if (selector.pattern.matcher(heading).find()) {
+            expected.add(selector);
+          }
+        }
+        assertEquals(wikiCode + ":" + heading, expected, matcher.matches(heading));
+      }
+    }
+  }
+
+  private static List<Selector> selectors(final String wikiCode) {
+    final List<Selector> selectors = new ArrayList<Selector>();
+    for (final Map.Entry<String, String> entry : WiktionaryLangs.wikiCodeToIsoCodeToWikiName.get(wikiCode).entrySet()) {
+      selectors.add(new Selector(entry.getKey(), entry.getValue()));
+    }
+    return selectors;
+  }
+
+  private static List<String> names(final List<Selector> selectors) {
+    final List<String> names = new ArrayList<String>();
+    for (final Selector selector : selectors) {
+      names.add(selector.outFilename);
+    }
+    return names;
+  }
+
+}
@@ -0,0 +1,102 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * How far a WiktionarySplitter run had gotten: every page before
+ * inputOffset (in the uncompressed dump) has been split, and the sections
+ * for them are exactly the first outputLengths bytes of each output.
+ */
+final class SplitCheckpoint {
+
+  final long inputLength;
+  final int pageCount;
+  final long inputOffset;
+  final Map<String, Long> outputLengths;
+
+  SplitCheckpoint(final long inputLength, final int pageCount, final long inputOffset,
+      final Map<String, Long> outputLengths) {
+    this.inputLength = inputLength;
+    this.pageCount = pageCount;
+    this.inputOffset = inputOffset;
+    this.outputLengths = outputLengths;
+  }
+
+  /**
+   * @return null if there's no checkpoint.
+   */
+  static SplitCheckpoint read(final File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final Properties properties = new Properties();
+    final InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    final Map<String, Long> outputLengths = new LinkedHashMap<String, Long>();
+    for (final String key : properties.stringPropertyNames()) {
+      if (key.startsWith("output.")) {
+        outputLengths.put(key.substring("output.".length()), Long.parseLong(properties.getProperty(key)));
+      }
+    }
+    return new SplitCheckpoint(
+        Long.parseLong(properties.getProperty("inputLength")),
+        Integer.parseInt(properties.getProperty("pageCount")),
+        Long.parseLong(properties.getProperty("inputOffset")),
+        outputLengths);
+  }
+
+  /**
+   * Replaces file atomically, so a crash while writing leaves the previous
+   * checkpoint.
+   */
+  void write(final File file) throws IOException {
+    final Properties properties = new Properties();
+    properties.setProperty("inputLength", Long.toString(inputLength));
+    properties.setProperty("pageCount", Integer.toString(pageCount));
+    properties.setProperty("inputOffset", Long.toString(inputOffset));
+    for (final Map.Entry<String, Long> entry : outputLengths.entrySet()) {
+      properties.setProperty("output." + entry.getKey(), entry.getValue().toString());
+    }
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      properties.store((OutputStream) out, "WiktionarySplitter checkpoint");
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Couldn't write checkpoint: " + file);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,650 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The files WiktionarySplitter writes, one per selector.
+ *
+ * Either way, the content is a stream of sections, each one writeUTF(title),
+ * writeUTF(heading), writeInt(length) and length bytes of UTF-8 text.  The
+ * legacy format is just that stream.  The block format cuts the stream into
+ * blocks of whole sections and deflates each one:
+ *
+ *   MAGIC, int VERSION
+ *   per block: int uncompressedLength, int compressedLength,
+ *              int sectionCount, compressedLength bytes
+ *   int END_OF_BLOCKS
+ *   per block: long offset (of its header), int uncompressedLength,
+ *              int compressedLength, int sectionCount
+ *   int blockCount, long offset of the index, END_MAGIC
+ *
+ * The trailing index lets a reader find blocks without reading the file;
+ * the block headers let a file whose index never got written (a crashed
+ * or checkpointed run) still be read.
+ */
+public final class SplitFile {
+
+  // Can't be the start of a legacy file, which starts with the writeUTF()
+  // length of a title, and titles are nowhere near 65535 bytes.
+  static final byte[] MAGIC = { (byte) 0xff, (byte) 0xff, 'Q', 'D', 'S', 'P', 'L', 'T' };
+  static final byte[] END_MAGIC = { 'Q', 'D', 'S', 'P', 'L', 'T', 'I', 'X' };
+  public static final int VERSION = 1;
+
+  static final int HEADER_LENGTH = MAGIC.length + 4;
+  static final int BLOCK_HEADER_LENGTH = 12;
+  static final int INDEX_ENTRY_LENGTH = 20;
+  static final int FOOTER_LENGTH = 12 + END_MAGIC.length;
+  static final int END_OF_BLOCKS = -1;
+
+  // Uncompressed, blocks are cut at the first section boundary past this.
+  static final int BLOCK_SIZE = 256 * 1024;
+
+  static final class Block {
+    // Of the block header.
+    final long offset;
+    // Where the block's sections start in the uncompressed stream.
+    final long start;
+    final int uncompressedLength;
+    final int compressedLength;
+    final int sectionCount;
+
+    Block(final long offset, final long start, final int uncompressedLength, final int compressedLength,
+        final int sectionCount) {
+      this.offset = offset;
+      this.start = start;
+      this.uncompressedLength = uncompressedLength;
+      this.compressedLength = compressedLength;
+      this.sectionCount = sectionCount;
+    }
+
+    long dataOffset() {
+      return offset + BLOCK_HEADER_LENGTH;
+    }
+  }
+
+  /**
+   * @return the file's sections as the legacy stream, whichever format it's
+   *         in.
+   */
+  public static InputStream openSections(final File file) throws IOException {
+    final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+    boolean ok = false;
+    try {
+      in.mark(MAGIC.length);
+      final byte[] magic = new byte[MAGIC.length];
+      int n = 0;
+      int read;
+      while (n < magic.length && (read = in.read(magic, n, magic.length - n)) != -1) {
+        n += read;
+      }
+      final InputStream result;
+      if (n == magic.length && Arrays.equals(magic, MAGIC)) {
+        final DataInputStream dis = new DataInputStream(in);
+        checkVersion(dis.readInt(), file);
+        result = new BlockInputStream(dis);
+      } else {
+        in.reset();
+        result = in;
+      }
+      ok = true;
+      return result;
+    } finally {
+      if (!ok) {
+        in.close();
+      }
+    }
+  }
+
+  public static boolean isBlockFile(final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < MAGIC.length) {
+        return false;
+      }
+      final byte[] magic = new byte[MAGIC.length];
+      raf.readFully(magic);
+      return Arrays.equals(magic, MAGIC);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void checkVersion(final int version, final File file) throws IOException {
+    if (version != VERSION) {
+      throw new IOException("Unsupported split file version " + version + ", expected " + VERSION + ": " + file);
+    }
+  }
+
+  static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      final int n = channel.read(buffer, position);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      position += n;
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Reads the index of a block file, from the trailer if it has one, or
+   * else by walking the block headers (and stopping at a truncated block).
+   */
+  static List<Block> readIndex(final FileChannel channel, final File file) throws IOException {
+    final long length = channel.size();
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    readFully(channel, header, 0);
+    final byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a block split file: " + file);
+    }
+    checkVersion(header.getInt(), file);
+
+    final List<Block> blocks = new ArrayList<Block>();
+    if (length >= HEADER_LENGTH + 4 + FOOTER_LENGTH) {
+      final ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+      readFully(channel, footer, length - FOOTER_LENGTH);
+      final int blockCount = footer.getInt();
+      final long indexOffset = footer.getLong();
+      footer.get(magic);
+      if (Arrays.equals(magic, END_MAGIC)) {
+        final ByteBuffer index = ByteBuffer.allocate(blockCount * INDEX_ENTRY_LENGTH);
+        readFully(channel, index, indexOffset);
+        long start = 0;
+        for (int i = 0; i < blockCount; ++i) {
+          final Block block = new Block(index.getLong(), start, index.getInt(), index.getInt(), index.getInt());
+          blocks.add(block);
+          start += block.uncompressedLength;
+        }
+        return blocks;
+      }
+    }
+
+    long offset = HEADER_LENGTH;
+    long start = 0;
+    final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+    while (offset + BLOCK_HEADER_LENGTH <= length) {
+      blockHeader.clear();
+      readFully(channel, blockHeader, offset);
+      final int uncompressedLength = blockHeader.getInt();
+      if (uncompressedLength == END_OF_BLOCKS) {
+        break;
+      }
+      final int compressedLength = blockHeader.getInt();
+      if (offset + BLOCK_HEADER_LENGTH + compressedLength > length) {
+        break;
+      }
+      final Block block = new Block(offset, start, uncompressedLength, compressedLength, blockHeader.getInt());
+      blocks.add(block);
+      offset = block.dataOffset() + compressedLength;
+      start += uncompressedLength;
+    }
+    return blocks;
+  }
+
+  /**
+   * @return the index of the block holding offset.
+   */
+  static int findBlock(final List<Block> blocks, final long offset) throws EOFException {
+    int low = 0;
+    int high = blocks.size() - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final Block candidate = blocks.get(mid);
+      if (offset < candidate.start) {
+        high = mid - 1;
+      } else if (offset >= candidate.start + candidate.uncompressedLength) {
+        low = mid + 1;
+      } else {
+        return mid;
+      }
+    }
+    throw new EOFException("Offset " + offset + " is past the end of the split file.");
+  }
+
+  static void inflate(final Inflater inflater, final byte[] compressed, final int compressedLength,
+      final byte[] out, final int uncompressedLength) throws IOException {
+    inflater.reset();
+    inflater.setInput(compressed, 0, compressedLength);
+    try {
+      int n = 0;
+      while (n < uncompressedLength) {
+        final int inflated = inflater.inflate(out, n, uncompressedLength - n);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        n += inflated;
+      }
+      if (n != uncompressedLength || !inflater.finished()) {
+        throw new IOException("Corrupt block: got " + n + " of " + uncompressedLength + " bytes.");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block: " + e.getMessage());
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Reads the blocks of a block file in order, as the legacy stream.
+   */
+  static final class BlockInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockLength = 0;
+    private int blockPos = 0;
+    private boolean done = false;
+
+    // Positioned just after the file header.
+    BlockInputStream(final DataInputStream in) {
+      this.in = in;
+    }
+
+    private boolean nextBlock() throws IOException {
+      while (blockPos == blockLength) {
+        if (done) {
+          return false;
+        }
+        final int uncompressedLength;
+        try {
+          uncompressedLength = in.readInt();
+        } catch (EOFException e) {
+          // No index: the file was being written when it was read, or the
+          // run that wrote it stopped.
+          done = true;
+          return false;
+        }
+        if (uncompressedLength == END_OF_BLOCKS) {
+          done = true;
+          return false;
+        }
+        final int compressedLength = in.readInt();
+        in.readInt();
+        if (compressed.length < compressedLength) {
+          compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+        if (block.length < uncompressedLength) {
+          block = new byte[uncompressedLength];
+        }
+        inflate(inflater, compressed, compressedLength, block, uncompressedLength);
+        blockLength = uncompressedLength;
+        blockPos = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextBlock()) {
+        return -1;
+      }
+      return block[blockPos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextBlock()) {
+        return -1;
+      }
+      final int n = Math.min(len, blockLength - blockPos);
+      System.arraycopy(block, blockPos, b, off, n);
+      blockPos += n;
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      if (n <= 0 || !nextBlock()) {
+        return 0;
+      }
+      final int skipped = (int) Math.min(n, blockLength - blockPos);
+      blockPos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return blockLength - blockPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      in.close();
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Takes the legacy stream, in whatever pieces it comes, and writes it as a
+   * block file.  It follows the section lengths in the stream so that blocks
+   * only end between sections.
+   */
+  static final class BlockChannel implements WritableByteChannel {
+    private final FileChannel file;
+    private final Deflater deflater = new Deflater();
+    private final List<Block> blocks;
+    private long fileOffset;
+    private long start;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private int blockSections = 0;
+    private byte[] compressed = new byte[BLOCK_SIZE / 2];
+
+    // Where we are in the current section: which length field (title,
+    // heading, text), how much of it has been seen, and how many bytes of
+    // that field's content are still to come.
+    private int field = 0;
+    private int fieldBytes = 0;
+    private long fieldValue = 0;
+    private long contentLeft = 0;
+
+    private BlockChannel(final FileChannel file, final List<Block> blocks, final long fileOffset) {
+      this.file = file;
+      this.blocks = blocks;
+      this.fileOffset = fileOffset;
+      for (final Block written : blocks) {
+        start += written.uncompressedLength;
+      }
+    }
+
+    /**
+     * If append, keeps the blocks already in file and drops anything after
+     * them (a truncated block, or the index).
+     */
+    static BlockChannel open(final File file, final boolean append) throws IOException {
+      if (append && file.length() > 0) {
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        boolean ok = false;
+        try {
+          final List<Block> blocks = readIndex(channel, file);
+          final long end = blocks.isEmpty() ? HEADER_LENGTH
+              : blocks.get(blocks.size() - 1).dataOffset() + blocks.get(blocks.size() - 1).compressedLength;
+          channel.truncate(end);
+          channel.position(end);
+          ok = true;
+          return new BlockChannel(channel, new ArrayList<Block>(blocks), end);
+        } finally {
+          if (!ok) {
+            channel.close();
+          }
+        }
+      }
+      final FileChannel channel = new FileOutputStream(file).getChannel();
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.put(MAGIC).putInt(VERSION).flip();
+      writeFully(channel, header);
+      return new BlockChannel(channel, new ArrayList<Block>(), HEADER_LENGTH);
+    }
+
+    /**
+     * @return the length of the uncompressed stream so far.
+     */
+    long length() {
+      return start + blockLength;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return file.isOpen();
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+      final int n = src.remaining();
+      while (src.hasRemaining()) {
+        if (contentLeft > 0) {
+          final int take = (int) Math.min(contentLeft, src.remaining());
+          ensureCapacity(take);
+          src.get(block, blockLength, take);
+          blockLength += take;
+          contentLeft -= take;
+        } else {
+          ensureCapacity(1);
+          final byte b = src.get();
+          block[blockLength++] = b;
+          fieldValue = (fieldValue << 8) | (b & 0xff);
+          if (++fieldBytes < (field == 2 ? 4 : 2)) {
+            continue;
+          }
+          contentLeft = fieldValue;
+          fieldBytes = 0;
+          fieldValue = 0;
+          ++field;
+        }
+        if (field == 3 && contentLeft == 0) {
+          field = 0;
+          ++blockSections;
+          if (blockLength >= BLOCK_SIZE) {
+            writeBlock();
+          }
+        }
+      }
+      return n;
+    }
+
+    /**
+     * Ends the current block, so that everything so far is in the file.
+     */
+    void endBlock() throws IOException {
+      if (field != 0 || fieldBytes != 0) {
+        throw new IOException("Can't end a block in the middle of a section.");
+      }
+      writeBlock();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        endBlock();
+        final ByteBuffer trailer = ByteBuffer.allocate(4 + blocks.size() * INDEX_ENTRY_LENGTH + FOOTER_LENGTH);
+        trailer.putInt(END_OF_BLOCKS);
+        for (final Block written : blocks) {
+          trailer.putLong(written.offset);
+          trailer.putInt(written.uncompressedLength);
+          trailer.putInt(written.compressedLength);
+          trailer.putInt(written.sectionCount);
+        }
+        trailer.putInt(blocks.size());
+        trailer.putLong(fileOffset + 4);
+        trailer.put(END_MAGIC);
+        trailer.flip();
+        writeFully(file, trailer);
+      } finally {
+        deflater.end();
+        file.close();
+      }
+    }
+
+    private void ensureCapacity(final int more) {
+      if (blockLength + more > block.length) {
+        block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + more));
+      }
+    }
+
+    private void writeBlock() throws IOException {
+      if (blockLength == 0) {
+        return;
+      }
+      deflater.reset();
+      deflater.setInput(block, 0, blockLength);
+      deflater.finish();
+      int compressedLength = 0;
+      while (!deflater.finished()) {
+        if (compressedLength == compressed.length) {
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+        compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+      }
+      final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+      header.putInt(blockLength).putInt(compressedLength).putInt(blockSections).flip();
+      writeFully(file, header);
+      writeFully(file, ByteBuffer.wrap(compressed, 0, compressedLength));
+
+      blocks.add(new Block(fileOffset, start, blockLength, compressedLength, blockSections));
+      fileOffset += BLOCK_HEADER_LENGTH + compressedLength;
+      start += blockLength;
+      blockLength = 0;
+      blockSections = 0;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Random access to the legacy stream of a split file in either format,
+   * by offset in that stream.
+   */
+  abstract static class Reader {
+
+    static Reader open(final File file) throws IOException {
+      if (isBlockFile(file)) {
+        return new BlockReader(file);
+      }
+      return new LegacyReader(file);
+    }
+
+    /**
+     * Appends length bytes of the stream, starting at offset, to out.
+     */
+    abstract void copyTo(final long offset, final long length, final SectionWriter out) throws IOException;
+
+    abstract void close() throws IOException;
+  }
+
+  static final class LegacyReader extends Reader {
+    private final FileChannel channel;
+
+    LegacyReader(final File file) throws IOException {
+      this.channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    @Override
+    void copyTo(final long offset, final long length, final SectionWriter out) throws IOException {
+      out.copy(channel, offset, length);
+    }
+
+    @Override
+    void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  static final class BlockReader extends Reader {
+    private final FileChannel channel;
+    final List<Block> blocks;
+    private final Inflater inflater = new Inflater();
+    // The last block inflated, since callers mostly read forward.
+    private int current = -1;
+    private byte[] block = new byte[0];
+    private ByteBuffer compressed = ByteBuffer.allocate(0);
+
+    BlockReader(final File file) throws IOException {
+      this.channel = new RandomAccessFile(file, "r").getChannel();
+      boolean ok = false;
+      try {
+        this.blocks = readIndex(channel, file);
+        ok = true;
+      } finally {
+        if (!ok) {
+          channel.close();
+        }
+      }
+    }
+
+    int findBlock(final long offset) throws IOException {
+      return SplitFile.findBlock(blocks, offset);
+    }
+
+    /**
+     * @return the uncompressed bytes of block i, good until the next call.
+     */
+    byte[] inflateBlock(final int i) throws IOException {
+      if (i != current) {
+        final Block wanted = blocks.get(i);
+        if (compressed.capacity() < wanted.compressedLength) {
+          compressed = ByteBuffer.allocate(wanted.compressedLength);
+        }
+        compressed.clear();
+        compressed.limit(wanted.compressedLength);
+        readFully(channel, compressed, wanted.dataOffset());
+        if (block.length < wanted.uncompressedLength) {
+          block = new byte[wanted.uncompressedLength];
+        }
+        inflate(inflater, compressed.array(), wanted.compressedLength, block, wanted.uncompressedLength);
+        current = i;
+      }
+      return block;
+    }
+
+    @Override
+    void copyTo(long offset, long length, final SectionWriter out) throws IOException {
+      while (length > 0) {
+        final int i = findBlock(offset);
+        final Block containing = blocks.get(i);
+        final byte[] bytes = inflateBlock(i);
+        final int from = (int) (offset - containing.start);
+        final int n = (int) Math.min(length, containing.uncompressedLength - from);
+        out.write(bytes, from, n);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    @Override
+    void close() throws IOException {
+      inflater.end();
+      channel.close();
+    }
+  }
+
+  private SplitFile() {
+  }
+
+}
@@ -0,0 +1,185 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Section;
+
+public class SplitFileTest extends TestCase {
+
+  // Enough sections for several blocks.
+  static final int NUM_SECTIONS = 3000;
+
+  static String text(final int i) {
+    final StringBuilder text = new StringBuilder("\n");
+    for (int j = 0; j < i % 97; ++j) {
+      text.append("line ").append(i).append(" é€😀 ").append(j).append('\n');
+    }
+    return text.toString();
+  }
+
+  public void testBlocks() throws IOException {
+    final File file = tempFile();
+    write(SectionWriter.openBlocks(file, false), 0, NUM_SECTIONS);
+    assertTrue(SplitFile.isBlockFile(file));
+    assertEquals(NUM_SECTIONS, readTitles(file).size());
+    assertTrue(file.length() < legacyBytes(0, NUM_SECTIONS).length / 2);
+
+    final SplitFile.BlockReader reader = (SplitFile.BlockReader) SplitFile.Reader.open(file);
+    try {
+      assertTrue(reader.blocks.size() > 2);
+      int sections = 0;
+      for (final SplitFile.Block block : reader.blocks) {
+        sections += block.sectionCount;
+      }
+      assertEquals(NUM_SECTIONS, sections);
+      // Random access gives back the same bytes as the legacy stream.
+      final byte[] legacy = legacyBytes(0, NUM_SECTIONS);
+      final ByteArrayOutputStream copied = new ByteArrayOutputStream();
+      final SectionWriter out = new SectionWriter(Channels.newChannel(copied), 0);
+      final int start = legacy.length / 3;
+      reader.copyTo(start, legacy.length / 2, out);
+      out.close();
+      final byte[] expected = new byte[legacy.length / 2];
+      System.arraycopy(legacy, start, expected, 0, expected.length);
+      assertTrue(Arrays.equals(expected, copied.toByteArray()));
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testLegacy() throws IOException {
+    final File file = tempFile();
+    write(SectionWriter.open(file, false), 0, 10);
+    assertFalse(SplitFile.isBlockFile(file));
+    assertEquals(10, readTitles(file).size());
+    assertEquals(legacyBytes(0, 10).length, file.length());
+  }
+
+  public void testTruncatedAndAppended() throws IOException {
+    final File file = tempFile();
+    final SectionWriter writer = SectionWriter.openBlocks(file, false);
+    write(writer, 0, NUM_SECTIONS / 2, false);
+    // Like a checkpoint.
+    writer.flush();
+    final long checkpoint = file.length();
+    write(writer, NUM_SECTIONS / 2, NUM_SECTIONS, false);
+    writer.flush();
+    // A crash in the middle of writing a block, before the index.
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(file.length() - 10);
+    raf.close();
+    final List<String> titles = readTitles(file);
+    assertTrue(titles.size() >= NUM_SECTIONS / 2 && titles.size() < NUM_SECTIONS);
+
+    // Resuming drops everything after the checkpoint.
+    final RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+    truncate.setLength(checkpoint);
+    truncate.close();
+    final SectionWriter resumed = SectionWriter.openBlocks(file, true);
+    assertEquals(legacyBytes(0, NUM_SECTIONS / 2).length, resumed.position());
+    write(resumed, NUM_SECTIONS / 2, NUM_SECTIONS);
+    assertEquals(NUM_SECTIONS, readTitles(file).size());
+  }
+
+  public void testVersion() throws IOException {
+    final File file = tempFile();
+    write(SectionWriter.openBlocks(file, false), 0, 1);
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(SplitFile.MAGIC.length);
+    raf.writeInt(SplitFile.VERSION + 1);
+    raf.close();
+    try {
+      SplitFile.openSections(file);
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static File tempFile() throws IOException {
+    final File file = File.createTempFile("SplitFileTest", ".data");
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static void write(final SectionWriter out, final int from, final int to) throws IOException {
+    write(out, from, to, true);
+  }
+
+  private static void write(final SectionWriter out, final int from, final int to,
+      final boolean close) throws IOException {
+    for (int i = from; i < to; ++i) {
+      final String text = text(i);
+      out.writeSection(new Section("title" + i, text).set("==Heading" + i + "==", 0, text.length()));
+    }
+    if (close) {
+      out.close();
+    }
+  }
+
+  private static byte[] legacyBytes(final int from, final int to) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final SectionWriter out = new SectionWriter(Channels.newChannel(bytes), 0);
+    for (int i = from; i < to; ++i) {
+      final String text = text(i);
+      out.writeSection(new Section("title" + i, text).set("==Heading" + i + "==", 0, text.length()));
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads file the way AbstractWiktionaryParser does, checking each section.
+   */
+  private static List<String> readTitles(final File file) throws IOException {
+    final List<String> titles = new ArrayList<String>();
+    final DataInputStream dis = new DataInputStream(SplitFile.openSections(file));
+    try {
+      while (true) {
+        final String title;
+        try {
+          title = dis.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        final int i = titles.size();
+        assertEquals("title" + i, title);
+        assertEquals("==Heading" + i + "==", dis.readUTF());
+        final byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        assertEquals(text(i), new String(bytes, "UTF8"));
+        titles.add(title);
+      }
+    } finally {
+      dis.close();
+    }
+    return titles;
+  }
+
+}
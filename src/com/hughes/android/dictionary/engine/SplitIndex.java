@@ -0,0 +1,210 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Where each title's sections are in a split file, sorted by title, so a
+ * page (or a range of them) can be read without scanning the whole split.
+ * It lives next to the split in a ".index" file.
+ *
+ * Offsets are in the uncompressed stream of sections, which is what
+ * {@link SplitSectionReader#seek} takes for either split format.
+ *
+ * Format: MAGIC, VERSION, the length and modification time of the split
+ * it was made from, the entry count, then (title, offset, length) per
+ * section in sorted order.
+ */
+public final class SplitIndex {
+
+  static final String MAGIC = "WiktionarySplitter index";
+  static final int VERSION = 1;
+
+  public static final class Entry {
+    public final String title;
+    public final long offset;
+    public final int length;
+
+    Entry(final String title, final long offset, final int length) {
+      this.title = title;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public String toString() {
+      return title + "@" + offset + "+" + length;
+    }
+  }
+
+  // By title, then where the section is, so a page's sections stay in
+  // split order.
+  static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(final Entry a, final Entry b) {
+      final int titles = a.title.compareTo(b.title);
+      if (titles != 0) {
+        return titles;
+      }
+      return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+    }
+  };
+
+  private final List<Entry> entries;
+
+  private SplitIndex(final List<Entry> entries) {
+    this.entries = entries;
+  }
+
+  public static File indexFile(final File split) {
+    return new File(split.getPath() + ".index");
+  }
+
+  /**
+   * Reads split's index, or makes it (and writes it) if it's missing or was
+   * made from a different version of the split.
+   */
+  public static SplitIndex open(final File split) throws IOException {
+    final SplitIndex index = read(split);
+    return index != null ? index : write(split);
+  }
+
+  /**
+   * Scans split, without decoding any text, and writes its index.
+   */
+  public static SplitIndex write(final File split) throws IOException {
+    final List<Entry> entries = new ArrayList<Entry>();
+    final SplitSectionReader reader = SplitSectionReader.open(split);
+    try {
+      while (reader.next()) {
+        entries.add(new Entry(reader.title(), reader.offset(), reader.length()));
+      }
+    } finally {
+      reader.close();
+    }
+    Collections.sort(entries, ORDER);
+
+    // Written aside and renamed, so a run that dies part way through doesn't
+    // leave an index that looks current.
+    final File file = indexFile(split);
+    final File tmp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(split.length());
+      out.writeLong(split.lastModified());
+      out.writeInt(entries.size());
+      for (final Entry entry : entries) {
+        out.writeUTF(entry.title);
+        out.writeLong(entry.offset);
+        out.writeInt(entry.length);
+      }
+    } finally {
+      out.close();
+    }
+    if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+      throw new IOException("Couldn't replace: " + file);
+    }
+    return new SplitIndex(entries);
+  }
+
+  /**
+   * @return null if there's no index for split, or it's stale, or it can't
+   *         be read all the way through.
+   */
+  static SplitIndex read(final File split) throws IOException {
+    final File file = indexFile(split);
+    if (!file.exists()) {
+      return null;
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (!in.readUTF().equals(MAGIC) || in.readInt() != VERSION
+          || in.readLong() != split.length() || in.readLong() != split.lastModified()) {
+        return null;
+      }
+      final int count = in.readInt();
+      // Each entry takes at least 14 bytes.
+      if (count < 0 || count > file.length() / 14) {
+        return null;
+      }
+      final List<Entry> entries = new ArrayList<Entry>(count);
+      for (int i = 0; i < count; ++i) {
+        entries.add(new Entry(in.readUTF(), in.readLong(), in.readInt()));
+      }
+      return new SplitIndex(entries);
+    } catch (IOException e) {
+      // Cut short, or garbled.  Indexes are written aside and renamed, but
+      // not always by this version.
+      System.err.println("Unreadable index, rewriting it: " + file + ": " + e);
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  public List<Entry> entries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * @return the sections titled title, in split order.
+   */
+  public List<Entry> find(final String title) {
+    return range(title, title);
+  }
+
+  /**
+   * @return the sections whose titles are from first to last, both
+   *         included.  A null bound is open.
+   */
+  public List<Entry> range(final String first, final String last) {
+    final int from = first == null ? 0 : firstAtLeast(first, false);
+    final int to = last == null ? entries.size() : firstAtLeast(last, true);
+    return Collections.unmodifiableList(entries.subList(from, Math.max(from, to)));
+  }
+
+  // The first entry whose title is >= title, or > title if after.
+  private int firstAtLeast(final String title, final boolean after) {
+    int low = 0;
+    int high = entries.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      final int c = entries.get(mid).title.compareTo(title);
+      if (c < 0 || (after && c == 0)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+}
@@ -0,0 +1,139 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Section;
+
+public class SplitIndexTest extends TestCase {
+
+  static final int NUM_SECTIONS = SplitFileTest.NUM_SECTIONS;
+
+  // Out of order, and every title has two sections.
+  static String title(final int i) {
+    return "title" + (i * 7 % NUM_SECTIONS) / 2;
+  }
+
+  public void testBlocks() throws IOException {
+    check(write(true));
+  }
+
+  public void testLegacy() throws IOException {
+    check(write(false));
+  }
+
+  public void testStale() throws IOException {
+    final File file = write(true);
+    assertNull(SplitIndex.read(file));
+    SplitIndex.write(file);
+    assertNotNull(SplitIndex.read(file));
+    // A new split, as if from another run.
+    write(file, false);
+    assertNull(SplitIndex.read(file));
+    check(file);
+  }
+
+  public void testTruncated() throws IOException {
+    final File file = write(false);
+    SplitIndex.write(file);
+    final File index = SplitIndex.indexFile(file);
+    assertFalse(new File(index.getPath() + ".tmp").exists());
+    // As if the run that wrote it died part way through; the header still
+    // matches the split.
+    for (final long length : new long[] { index.length() / 2, 40 }) {
+      final RandomAccessFile raf = new RandomAccessFile(index, "rw");
+      try {
+        raf.setLength(length);
+      } finally {
+        raf.close();
+      }
+      assertNull(SplitIndex.read(file));
+      check(file);
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static void check(final File file) throws IOException {
+    final SplitIndex index = SplitIndex.open(file);
+    assertEquals(NUM_SECTIONS, index.entries().size());
+    assertEquals(NUM_SECTIONS, SplitIndex.open(file).entries().size());
+
+    final SplitSectionReader reader = SplitSectionReader.open(file);
+    try {
+      // Backwards, to make it seek.
+      final List<SplitIndex.Entry> entries = index.find("title123");
+      assertEquals(2, entries.size());
+      assertTrue(entries.get(0).offset < entries.get(1).offset);
+      for (int i = entries.size() - 1; i >= 0; --i) {
+        reader.seek(entries.get(i).offset);
+        assertTrue(reader.next());
+        assertEquals("title123", reader.title());
+        assertEquals(entries.get(i).length, reader.length());
+        final int n = Integer.parseInt(reader.heading().replaceAll("[^0-9]", ""));
+        assertEquals(SplitFileTest.text(n), reader.text());
+      }
+      assertTrue(index.find("title1500").isEmpty());
+      assertTrue(index.find("nope").isEmpty());
+
+      final List<SplitIndex.Entry> range = index.range("title10", "title11");
+      String last = "title10";
+      for (final SplitIndex.Entry entry : range) {
+        assertTrue(entry.title.compareTo(last) >= 0);
+        assertTrue(entry.title.compareTo("title11") <= 0);
+        last = entry.title;
+      }
+      // title10, title100..title109, title1000..title1099, title11.
+      assertEquals(2 * (1 + 10 + 100 + 1), range.size());
+      assertEquals(NUM_SECTIONS, index.range(null, null).size());
+      assertTrue(index.range("title2", "title1").isEmpty());
+
+      long end = 0;
+      for (final SplitIndex.Entry entry : index.entries()) {
+        end = Math.max(end, entry.offset + entry.length);
+      }
+      reader.seek(end);
+      assertFalse(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static File write(final boolean blocks) throws IOException {
+    final File file = File.createTempFile("SplitIndexTest", ".data");
+    file.deleteOnExit();
+    SplitIndex.indexFile(file).deleteOnExit();
+    write(file, blocks);
+    return file;
+  }
+
+  private static void write(final File file, final boolean blocks) throws IOException {
+    final SectionWriter out = blocks ? SectionWriter.openBlocks(file, false) : SectionWriter.open(file, false);
+    for (int i = 0; i < NUM_SECTIONS; ++i) {
+      final String text = SplitFileTest.text(i);
+      out.writeSection(new Section(title(i), text).set("==Heading" + i + "==", 0, text.length()));
+    }
+    out.close();
+    // Make sure the modification time moves.
+    file.setLastModified(file.lastModified() + 1000);
+  }
+
+}
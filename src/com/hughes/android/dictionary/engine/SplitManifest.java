@@ -0,0 +1,270 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+
+/**
+ * Records, for every article an incremental WiktionarySplitter run split,
+ * the revision it saw and where its sections went in each output, so the
+ * next run can copy the sections of unchanged pages instead of re-splitting
+ * them.
+ *
+ * Pages are recorded in dump order, which is page id order, so the next run
+ * can walk the old manifest alongside the new dump.
+ *
+ * Format: a header (MAGIC, VERSION, the selectors' output names and
+ * patterns), then for each page: true, id, revision, section count, and
+ * (selector index, offset, length) per section; then false, and the length
+ * of each output as the run left it.  Those lengths are how a manifest
+ * that doesn't go with the outputs (because they were rewritten by a
+ * run that wasn't incremental, say) is spotted.
+ */
+final class SplitManifest {
+
+  static final String MAGIC = "WiktionarySplitter manifest";
+  // Bump this when a change to the splitter changes what a page splits into,
+  // so old manifests aren't trusted.
+  static final int VERSION = 2;
+
+  static final class Section {
+    final int selectorIndex;
+    final long offset;
+    final int length;
+
+    Section(final int selectorIndex, final long offset, final int length) {
+      this.selectorIndex = selectorIndex;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  static final class Page {
+    final long id;
+    final String revision;
+    final List<Section> sections;
+
+    Page(final long id, final String revision, final List<Section> sections) {
+      this.id = id;
+      this.revision = revision;
+      this.sections = sections;
+    }
+  }
+
+  /**
+   * What identifies a page's content: its revision id, or its sha1 for dumps
+   * without revision ids.
+   */
+  static String revision(final String revisionId, final String sha1) {
+    return revisionId.length() > 0 ? revisionId : "sha1:" + sha1;
+  }
+
+  /**
+   * @return the page id, or -1 if it's missing.
+   */
+  static long parseId(final String id) {
+    try {
+      return Long.parseLong(id.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void writeHeader(final DataOutputStream out, final List<Selector> selectors) throws IOException {
+    out.writeUTF(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(selectors.size());
+    for (final Selector selector : selectors) {
+      out.writeUTF(selector.outFilename);
+      out.writeUTF(selector.pattern.pattern());
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Walks an old manifest in step with a new dump.
+   */
+  static final class Reader {
+    private final DataInputStream in;
+    private Page next;
+
+    private Reader(final DataInputStream in) throws IOException {
+      this.in = in;
+      this.next = readPage();
+    }
+
+    /**
+     * @return null, with the reason printed, if there's no manifest, it
+     *         was written for different selectors, or the outputs aren't
+     *         the ones it was written with.
+     */
+    static Reader open(final File file, final List<Selector> selectors) throws IOException {
+      if (!file.exists()) {
+        System.out.println("No manifest, splitting every page: " + file);
+        return null;
+      }
+      if (!outputsMatch(file, selectors)) {
+        System.out.println("Outputs have changed since the manifest was written, splitting every page: " + file);
+        return null;
+      }
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      boolean ok = false;
+      try {
+        if (!in.readUTF().equals(MAGIC) || in.readInt() != VERSION || in.readInt() != selectors.size()) {
+          System.out.println("Old or different manifest, splitting every page: " + file);
+          return null;
+        }
+        for (final Selector selector : selectors) {
+          if (!in.readUTF().equals(selector.outFilename) || !in.readUTF().equals(selector.pattern.pattern())
+              || !new File(selector.outFilename).exists()) {
+            System.out.println("Selectors have changed, splitting every page: " + file);
+            return null;
+          }
+        }
+        final Reader reader = new Reader(in);
+        ok = true;
+        return reader;
+      } finally {
+        if (!ok) {
+          in.close();
+        }
+      }
+    }
+
+    private static boolean outputsMatch(final File file, final List<Selector> selectors) throws IOException {
+      final RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        final long trailer = in.length() - 8L * selectors.size();
+        if (trailer < 0) {
+          return false;
+        }
+        in.seek(trailer);
+        for (final Selector selector : selectors) {
+          if (in.readLong() != new File(selector.outFilename).length()) {
+            return false;
+          }
+        }
+        return true;
+      } finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Pages must be looked up in increasing id order.
+     * @return the old manifest's entry for id, or null.
+     */
+    Page find(final long id) throws IOException {
+      if (id < 0) {
+        return null;
+      }
+      while (next != null && next.id < id) {
+        next = readPage();
+      }
+      return next != null && next.id == id ? next : null;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+
+    private Page readPage() throws IOException {
+      if (!in.readBoolean()) {
+        return null;
+      }
+      final long id = in.readLong();
+      final String revision = in.readUTF();
+      final int numSections = in.readInt();
+      final List<Section> sections = new ArrayList<Section>(numSections);
+      for (int i = 0; i < numSections; ++i) {
+        sections.add(new Section(in.readInt(), in.readLong(), in.readInt()));
+      }
+      return new Page(id, revision, sections);
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  static final class Writer {
+    private final DataOutputStream out;
+    private final List<Section> sections = new ArrayList<Section>();
+    private long id;
+    private String revision;
+
+    Writer(final File file, final List<Selector> selectors) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      writeHeader(out, selectors);
+    }
+
+    void startPage(final long id, final String revision) {
+      this.id = id;
+      this.revision = revision;
+      sections.clear();
+    }
+
+    void addSection(final int selectorIndex, final long offset, final int length) {
+      sections.add(new Section(selectorIndex, offset, length));
+    }
+
+    /**
+     * Pages without an id can't be found again, so they aren't recorded.
+     */
+    void endPage() throws IOException {
+      if (id < 0) {
+        return;
+      }
+      out.writeBoolean(true);
+      out.writeLong(id);
+      out.writeUTF(revision);
+      out.writeInt(sections.size());
+      for (final Section section : sections) {
+        out.writeInt(section.selectorIndex);
+        out.writeLong(section.offset);
+        out.writeInt(section.length);
+      }
+    }
+
+    /**
+     * @param outputs the outputs as they are now, finished.
+     */
+    void close(final List<File> outputs) throws IOException {
+      try {
+        out.writeBoolean(false);
+        for (final File output : outputs) {
+          out.writeLong(output.length());
+        }
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private SplitManifest() {
+  }
+
+}
@@ -0,0 +1,286 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+
+/**
+ * Where a WiktionarySplitter run spends its time and what it produces.
+ *
+ * Times are summed over every thread that did the work, so with chunks or
+ * a pipeline they can add up to more than the wall clock.  "parse" is time
+ * spent reading pages out of the XML, "extract" is time spent in splitPage
+ * finding sections, and "write" is time spent encoding and writing them
+ * (or copying them, for reused pages).
+ *
+ * Safe to update from several threads.
+ */
+final class SplitMetrics {
+
+  // How many of the biggest pages to remember.
+  static final int LARGEST_PAGES = 10;
+
+  static final class PageSize {
+    final String title;
+    final int chars;
+
+    PageSize(final String title, final int chars) {
+      this.title = title;
+      this.chars = chars;
+    }
+  }
+
+  private static final Comparator<PageSize> SMALLEST_FIRST = new Comparator<PageSize>() {
+    @Override
+    public int compare(final PageSize a, final PageSize b) {
+      return a.chars < b.chars ? -1 : (a.chars == b.chars ? 0 : 1);
+    }
+  };
+
+  final String input;
+  final List<Selector> selectors;
+  private final Map<Selector, Integer> selectorIndices = new HashMap<Selector, Integer>();
+
+  private volatile long startNanos = System.nanoTime();
+  final AtomicLong pages = new AtomicLong();
+  final AtomicLong articles = new AtomicLong();
+  final AtomicLong rejectedNamespace = new AtomicLong();
+  final AtomicLong reusedPages = new AtomicLong();
+  final AtomicLong inputBytes = new AtomicLong();
+  final AtomicLong parseNanos = new AtomicLong();
+  final AtomicLong splitNanos = new AtomicLong();
+  // The part of splitNanos that sinks spent writing.
+  final AtomicLong sinkNanos = new AtomicLong();
+  final AtomicLong writeNanos = new AtomicLong();
+  final AtomicLongArray selectorSections;
+  final AtomicLongArray selectorBytes;
+
+  private final PriorityQueue<PageSize> largestPages = new PriorityQueue<PageSize>(LARGEST_PAGES, SMALLEST_FIRST);
+  // Pages no bigger than this can't get into largestPages.
+  private volatile int largestPagesMin = -1;
+
+  SplitMetrics(final String input, final List<Selector> selectors) {
+    this.input = input;
+    this.selectors = selectors;
+    for (int i = 0; i < selectors.size(); ++i) {
+      selectorIndices.put(selectors.get(i), i);
+    }
+    this.selectorSections = new AtomicLongArray(selectors.size());
+    this.selectorBytes = new AtomicLongArray(selectors.size());
+  }
+
+  /**
+   * Restarts the clock, for splitters that were created a while before
+   * they ran.
+   */
+  void start() {
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Counts the bytes read through in as input.
+   */
+  InputStream count(final InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+          inputBytes.incrementAndGet();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n > 0) {
+          inputBytes.addAndGet(n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+        inputBytes.addAndGet(skipped);
+        return skipped;
+      }
+    };
+  }
+
+  void parsed(final long nanos) {
+    parseNanos.addAndGet(nanos);
+  }
+
+  void page(final boolean article, final boolean mainNamespace) {
+    pages.incrementAndGet();
+    if (article) {
+      articles.incrementAndGet();
+    }
+    if (!mainNamespace) {
+      rejectedNamespace.incrementAndGet();
+    }
+  }
+
+  /**
+   * A page went through splitPage, which took nanos including writing.
+   */
+  void split(final String title, final int chars, final long nanos) {
+    splitNanos.addAndGet(nanos);
+    if (chars <= largestPagesMin) {
+      return;
+    }
+    synchronized (largestPages) {
+      largestPages.add(new PageSize(title, chars));
+      if (largestPages.size() > LARGEST_PAGES) {
+        largestPages.poll();
+      }
+      if (largestPages.size() == LARGEST_PAGES) {
+        largestPagesMin = largestPages.peek().chars;
+      }
+    }
+  }
+
+  void reused() {
+    reusedPages.incrementAndGet();
+  }
+
+  /**
+   * A section was written by a splitPage sink, which took nanos.
+   */
+  void section(final Selector selector, final long bytes, final long nanos) {
+    copied(selector, bytes, nanos);
+    sinkNanos.addAndGet(nanos);
+  }
+
+  /**
+   * A section was copied from an old split, outside of splitPage.
+   */
+  void copied(final Selector selector, final long bytes, final long nanos) {
+    final int index = selectorIndices.get(selector);
+    selectorSections.incrementAndGet(index);
+    selectorBytes.addAndGet(index, bytes);
+    wrote(nanos);
+  }
+
+  /**
+   * Time spent writing outside of splitPage.
+   */
+  void wrote(final long nanos) {
+    writeNanos.addAndGet(nanos);
+  }
+
+  // -----------------------------------------------------------------------
+
+  double seconds() {
+    return Math.max(1, System.nanoTime() - startNanos) / 1e9;
+  }
+
+  // Splitting time that wasn't spent writing.
+  long extractNanos() {
+    return splitNanos.get() - sinkNanos.get();
+  }
+
+  List<PageSize> largestPages() {
+    final List<PageSize> result;
+    synchronized (largestPages) {
+      result = new ArrayList<PageSize>(largestPages);
+    }
+    Collections.sort(result, Collections.reverseOrder(SMALLEST_FIRST));
+    return result;
+  }
+
+  String progressLine() {
+    final double seconds = seconds();
+    final long parse = parseNanos.get();
+    final long extract = extractNanos();
+    final long write = writeNanos.get();
+    final double total = Math.max(1, parse + extract + write);
+    return String.format(Locale.US,
+        "%s: %d pages (%d articles, %d rejected by namespace), %.0f pages/s, %.1f MB/s, parse %.0f%% extract %.0f%% write %.0f%%",
+        input, pages.get(), articles.get(), rejectedNamespace.get(),
+        pages.get() / seconds, inputBytes.get() / seconds / (1 << 20),
+        100 * parse / total, 100 * extract / total, 100 * write / total);
+  }
+
+  String toJson() {
+    final double seconds = seconds();
+    final StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"input\": ").append(quote(input)).append(",\n");
+    json.append(String.format(Locale.US, "  \"seconds\": %.3f,\n", seconds));
+    json.append("  \"pages\": ").append(pages.get()).append(",\n");
+    json.append("  \"articles\": ").append(articles.get()).append(",\n");
+    json.append("  \"rejectedNamespace\": ").append(rejectedNamespace.get()).append(",\n");
+    json.append("  \"reusedPages\": ").append(reusedPages.get()).append(",\n");
+    json.append("  \"inputBytes\": ").append(inputBytes.get()).append(",\n");
+    json.append(String.format(Locale.US, "  \"pagesPerSecond\": %.1f,\n", pages.get() / seconds));
+    json.append(String.format(Locale.US, "  \"inputMBPerSecond\": %.3f,\n", inputBytes.get() / seconds / (1 << 20)));
+    json.append("  \"nanos\": {\"parse\": ").append(parseNanos.get())
+        .append(", \"extract\": ").append(extractNanos())
+        .append(", \"write\": ").append(writeNanos.get()).append("},\n");
+    json.append("  \"selectors\": [");
+    for (int i = 0; i < selectors.size(); ++i) {
+      json.append(i == 0 ? "\n" : ",\n");
+      json.append("    {\"file\": ").append(quote(selectors.get(i).outFilename))
+          .append(", \"pattern\": ").append(quote(selectors.get(i).pattern.pattern()))
+          .append(", \"sections\": ").append(selectorSections.get(i))
+          .append(", \"bytes\": ").append(selectorBytes.get(i)).append("}");
+    }
+    json.append("\n  ],\n");
+    json.append("  \"largestPages\": [");
+    final List<PageSize> largest = largestPages();
+    for (int i = 0; i < largest.size(); ++i) {
+      json.append(i == 0 ? "\n" : ",\n");
+      json.append("    {\"title\": ").append(quote(largest.get(i).title))
+          .append(", \"chars\": ").append(largest.get(i).chars).append("}");
+    }
+    json.append("\n  ]\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  static String quote(final String s) {
+    final StringBuilder result = new StringBuilder(s.length() + 2);
+    result.append('"');
+    for (int i = 0; i < s.length(); ++i) {
+      final char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        result.append('\\').append(c);
+      } else if (c < 0x20) {
+        result.append(String.format("\\u%04x", (int) c));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append('"').toString();
+  }
+
+}
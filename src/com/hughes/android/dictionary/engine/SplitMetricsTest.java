@@ -0,0 +1,69 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+
+public class SplitMetricsTest extends TestCase {
+
+  public void testCounts() {
+    final Selector en = new Selector("EN.data", "English");
+    final Selector de = new Selector("DE.data", "German");
+    final SplitMetrics metrics = new SplitMetrics("dump.xml", Arrays.asList(en, de));
+    metrics.page(true, true);
+    metrics.page(false, false);
+    metrics.page(false, true);
+    metrics.section(en, 10, 5);
+    metrics.section(en, 20, 5);
+    metrics.copied(de, 7, 3);
+    metrics.split("a", 100, 30);
+    assertEquals(3, metrics.pages.get());
+    assertEquals(1, metrics.articles.get());
+    assertEquals(1, metrics.rejectedNamespace.get());
+    assertEquals(2, metrics.selectorSections.get(0));
+    assertEquals(30, metrics.selectorBytes.get(0));
+    assertEquals(7, metrics.selectorBytes.get(1));
+    // The copy happened outside splitPage, so it isn't taken from extract.
+    assertEquals(20, metrics.extractNanos());
+    assertEquals(13, metrics.writeNanos.get());
+  }
+
+  public void testLargestPages() {
+    final SplitMetrics metrics = new SplitMetrics("dump.xml", Arrays.<Selector>asList());
+    for (int i = 0; i < 3 * SplitMetrics.LARGEST_PAGES; ++i) {
+      // Out of order.
+      final int chars = (i * 7) % (3 * SplitMetrics.LARGEST_PAGES);
+      metrics.split("p" + chars, chars, 1);
+    }
+    final List<SplitMetrics.PageSize> largest = metrics.largestPages();
+    assertEquals(SplitMetrics.LARGEST_PAGES, largest.size());
+    assertEquals(3 * SplitMetrics.LARGEST_PAGES - 1, largest.get(0).chars);
+    assertEquals(2 * SplitMetrics.LARGEST_PAGES, largest.get(largest.size() - 1).chars);
+  }
+
+  public void testJson() {
+    final SplitMetrics metrics = new SplitMetrics("dump.xml", Arrays.asList(new Selector("EN.data", "English")));
+    metrics.split("say \"hi\"\\\n", 5, 1);
+    final String json = metrics.toJson();
+    assertTrue(json, json.contains("{\"title\": \"say \\\"hi\\\"\\\\\\u000a\", \"chars\": 5}"));
+    assertTrue(json, json.contains("{\"file\": \"EN.data\", \"pattern\": \"English\", \"sections\": 0, \"bytes\": 0}"));
+  }
+
+}
@@ -0,0 +1,203 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.xml.sax.SAXException;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Section;
+import com.hughes.android.dictionary.engine.WiktionarySplitter.SectionSink;
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+
+/**
+ * Moves section extraction off the SAX thread.
+ *
+ * The SAX thread only submits (title, text) pages.  A pool of workers finds
+ * the matching sections and encodes them, and a single writer thread takes
+ * the results back in page order and appends them to the Selector outputs,
+ * so the split files come out exactly as they do from the serial path.
+ */
+final class SplitPipeline {
+
+  // Bounds how far the SAX thread can get ahead of the writer.
+  static final int PAGES_PER_WORKER = 64;
+
+  static final class EncodedSection {
+    final Selector selector;
+    final byte[] bytes;
+
+    EncodedSection(final Selector selector, final byte[] bytes) {
+      this.selector = selector;
+      this.bytes = bytes;
+    }
+  }
+
+  // Marks the end of the input for the writer.
+  private static final Future<List<EncodedSection>> END = new FutureTask<List<EncodedSection>>(
+      new Callable<List<EncodedSection>>() {
+        @Override
+        public List<EncodedSection> call() {
+          return null;
+        }
+      });
+
+  final SelectorMatcher selectorMatcher;
+  final SplitMetrics metrics;
+  final ExecutorService workers;
+  final BlockingQueue<Future<List<EncodedSection>>> pages;
+  final Thread writer;
+
+  volatile Exception failure = null;
+  // Set by abort(): the writer drops whatever is still queued.
+  volatile boolean aborted = false;
+
+  SplitPipeline(final SelectorMatcher selectorMatcher, final SplitMetrics metrics, final int numWorkers) {
+    this.selectorMatcher = selectorMatcher;
+    this.metrics = metrics;
+    this.workers = Executors.newFixedThreadPool(numWorkers);
+    this.pages = new ArrayBlockingQueue<Future<List<EncodedSection>>>(numWorkers * PAGES_PER_WORKER);
+    this.writer = new Thread("SplitPipeline.writer") {
+      @Override
+      public void run() {
+        write();
+      }
+    };
+    writer.start();
+  }
+
+  /**
+   * Called on the SAX thread.  Blocks if the workers or the writer have
+   * fallen behind.
+   */
+  void submit(final String title, final String text) throws SAXException {
+    if (failure != null) {
+      throw new SAXException(failure);
+    }
+    final Future<List<EncodedSection>> future = workers.submit(new Callable<List<EncodedSection>>() {
+      @Override
+      public List<EncodedSection> call() throws IOException {
+        return encodePage(title, text);
+      }
+    });
+    try {
+      pages.put(future);
+    } catch (InterruptedException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * Waits for every submitted page to be written.  Doesn't close the
+   * Selector outputs.
+   */
+  void finish() throws Exception {
+    try {
+      pages.put(END);
+      writer.join();
+    } finally {
+      workers.shutdownNow();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Stops without writing the pages still queued, after the parse failed.
+   * Doesn't close the Selector outputs.
+   * @return what failed in the workers or the writer, or null.
+   */
+  Exception abort() throws InterruptedException {
+    aborted = true;
+    try {
+      // The writer is dropping pages now, so there's room for END soon.
+      pages.put(END);
+      writer.join();
+    } finally {
+      workers.shutdownNow();
+    }
+    return failure;
+  }
+
+  List<EncodedSection> encodePage(final String title, final String text) throws IOException {
+    final List<EncodedSection> result = new ArrayList<EncodedSection>();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final SectionWriter out = new SectionWriter(Channels.newChannel(bytes), 0);
+    final long start = System.nanoTime();
+    try {
+      WiktionarySplitter.splitPage(selectorMatcher, title, text, new SectionSink() {
+        @Override
+        public void onSection(final Selector selector, final Section section) throws IOException {
+          final long sectionStart = System.nanoTime();
+          bytes.reset();
+          out.writeSection(section);
+          out.flush();
+          result.add(new EncodedSection(selector, bytes.toByteArray()));
+          metrics.section(selector, bytes.size(), System.nanoTime() - sectionStart);
+        }
+      });
+    } finally {
+      out.close();
+    }
+    metrics.split(title, text.length(), System.nanoTime() - start);
+    return result;
+  }
+
+  private void write() {
+    while (true) {
+      final Future<List<EncodedSection>> future;
+      try {
+        future = pages.take();
+      } catch (InterruptedException e) {
+        failure = e;
+        return;
+      }
+      if (future == END) {
+        return;
+      }
+      if (failure != null || aborted) {
+        // Keep draining so the SAX thread never blocks on a full queue.
+        future.cancel(true);
+        continue;
+      }
+      try {
+        final List<EncodedSection> encodedSections = future.get();
+        final long start = System.nanoTime();
+        for (final EncodedSection encodedSection : encodedSections) {
+          encodedSection.selector.out.write(encodedSection.bytes, 0, encodedSection.bytes.length);
+        }
+        metrics.wrote(System.nanoTime() - start);
+      } catch (ExecutionException e) {
+        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      } catch (Exception e) {
+        failure = e;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,400 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the sections of a split file (either {@link SplitFile} format) from
+ * a memory map, one at a time.  The reader is itself the current section:
+ * next() only finds where its parts are, and title(), heading() and text()
+ * decode them when they're asked for.  A section that's rejected by its
+ * heading never has its text decoded or even copied.
+ *
+ * Block files are inflated a block at a time into a buffer that's reused,
+ * and their sections are read from there.
+ */
+public final class SplitSectionReader {
+
+  // How much of a legacy file to map at once.
+  static final int WINDOW_SIZE = 64 << 20;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final FileChannel channel;
+  private final long fileLength;
+  private final boolean blocks;
+  private final int windowSize;
+
+  // The mapped part of the file.
+  private ByteBuffer window = ByteBuffer.allocate(0);
+  private long windowStart = 0;
+  // Where the next section or block header starts in the file.
+  private long filePosition;
+
+  // For block files.
+  private final Inflater inflater;
+  private byte[] compressed = new byte[0];
+  private byte[] block = new byte[0];
+  private ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+  // Where the inflated block and the one after it start in the
+  // uncompressed stream.
+  private long blockStart = 0;
+  private long nextBlockStart = 0;
+  // Read the first time seek() needs it.
+  private List<SplitFile.Block> index;
+
+  // The current section, as offsets into buffer.
+  private ByteBuffer buffer;
+  private long sectionOffset;
+  private int sectionStart;
+  private int sectionEnd;
+  private int titleStart;
+  private int titleLength;
+  private int headingStart;
+  private int headingLength;
+  private int textStart;
+  private int textLength;
+
+  private String title;
+  private String heading;
+  private String text;
+  private final CharsetDecoder decoder = UTF8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  private SplitSectionReader(final File file, final int windowSize) throws IOException {
+    this.file = file;
+    this.windowSize = windowSize;
+    this.channel = new RandomAccessFile(file, "r").getChannel();
+    this.fileLength = channel.size();
+    boolean ok = false;
+    try {
+      this.blocks = SplitFile.isBlockFile(file);
+      if (blocks) {
+        final ByteBuffer header = map(0, SplitFile.HEADER_LENGTH);
+        header.position(header.position() + SplitFile.MAGIC.length);
+        final int version = header.getInt();
+        if (version != SplitFile.VERSION) {
+          throw new IOException("Unsupported split file version " + version + ", expected " + SplitFile.VERSION + ": " + file);
+        }
+        this.inflater = new Inflater();
+        this.filePosition = SplitFile.HEADER_LENGTH;
+        this.buffer = blockBuffer;
+        this.sectionEnd = 0;
+      } else {
+        this.inflater = null;
+        this.filePosition = 0;
+      }
+      ok = true;
+    } finally {
+      if (!ok) {
+        channel.close();
+      }
+    }
+  }
+
+  public static SplitSectionReader open(final File file) throws IOException {
+    return new SplitSectionReader(file, WINDOW_SIZE);
+  }
+
+  static SplitSectionReader open(final File file, final int windowSize) throws IOException {
+    return new SplitSectionReader(file, windowSize);
+  }
+
+  /**
+   * Moves to the next section.
+   * @return false at the end of the file.
+   */
+  public boolean next() throws IOException {
+    title = null;
+    heading = null;
+    text = null;
+    if (blocks) {
+      if (sectionEnd == buffer.limit() && !nextBlock()) {
+        return false;
+      }
+      findSection(sectionEnd);
+      sectionOffset = blockStart + sectionStart;
+      return true;
+    }
+    if (filePosition == fileLength) {
+      return false;
+    }
+    // Map enough for the two lengths and the int, then for the whole
+    // section.
+    buffer = map(filePosition, 2);
+    final int titleBytes = buffer.getShort(buffer.position()) & 0xffff;
+    buffer = map(filePosition, 2 + titleBytes + 2);
+    final int headingBytes = buffer.getShort(buffer.position() + 2 + titleBytes) & 0xffff;
+    final int headerBytes = 2 + titleBytes + 2 + headingBytes + 4;
+    buffer = map(filePosition, headerBytes);
+    final int textBytes = buffer.getInt(buffer.position() + headerBytes - 4);
+    buffer = map(filePosition, headerBytes + textBytes);
+    findSection(buffer.position());
+    sectionOffset = filePosition;
+    filePosition += sectionEnd - sectionStart;
+    return true;
+  }
+
+  /**
+   * Makes the section at offset the next one.  Offsets are in the
+   * uncompressed stream of sections, like the ones in a {@link SplitIndex}.
+   */
+  public void seek(final long offset) throws IOException {
+    if (!blocks) {
+      if (offset < 0 || offset > fileLength) {
+        throw new EOFException("Offset " + offset + " is past the end of " + file);
+      }
+      filePosition = offset;
+      return;
+    }
+    if (index == null) {
+      index = SplitFile.readIndex(channel, file);
+    }
+    final SplitFile.Block last = index.isEmpty() ? null : index.get(index.size() - 1);
+    if (offset == (last == null ? 0 : last.start + last.uncompressedLength)) {
+      // The end.
+      filePosition = fileLength;
+      blockBuffer.limit(0);
+      buffer = blockBuffer;
+      sectionEnd = 0;
+      return;
+    }
+    final SplitFile.Block block = index.get(SplitFile.findBlock(index, offset));
+    filePosition = block.offset;
+    nextBlockStart = block.start;
+    nextBlock();
+    sectionEnd = (int) (offset - blockStart);
+  }
+
+  /**
+   * @return where the current section starts in the uncompressed stream of
+   *         sections.
+   */
+  public long offset() {
+    return sectionOffset;
+  }
+
+  /**
+   * @return the length of the current section, title and heading included,
+   *         in the uncompressed stream.
+   */
+  public int length() {
+    return sectionEnd - sectionStart;
+  }
+
+  public String title() throws IOException {
+    if (title == null) {
+      title = decodeUTF(buffer, titleStart, titleLength);
+    }
+    return title;
+  }
+
+  public String heading() throws IOException {
+    if (heading == null) {
+      heading = decodeUTF(buffer, headingStart, headingLength);
+    }
+    return heading;
+  }
+
+  /**
+   * Decodes the text the first time it's called.
+   */
+  public String text() throws IOException {
+    if (text == null) {
+      if (buffer.hasArray()) {
+        text = new String(buffer.array(), buffer.arrayOffset() + textStart, textLength, "UTF8");
+      } else {
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(textStart + textLength).position(textStart);
+        decoder.reset();
+        final CharBuffer chars = decoder.decode(bytes);
+        text = chars.toString();
+      }
+    }
+    return text;
+  }
+
+  /**
+   * @return the length of the text in UTF-8 bytes, without decoding it.
+   */
+  public int textBytes() {
+    return textLength;
+  }
+
+  public void close() throws IOException {
+    if (inflater != null) {
+      inflater.end();
+    }
+    window = null;
+    buffer = null;
+    channel.close();
+  }
+
+  // -----------------------------------------------------------------------
+
+  private void findSection(final int start) throws IOException {
+    sectionStart = start;
+    int pos = start;
+    titleLength = unsignedShort(pos);
+    titleStart = pos + 2;
+    pos = titleStart + titleLength;
+    headingLength = unsignedShort(pos);
+    headingStart = pos + 2;
+    pos = headingStart + headingLength;
+    if (pos + 4 > buffer.limit()) {
+      throw new EOFException("Truncated section in " + file);
+    }
+    textLength = buffer.getInt(pos);
+    textStart = pos + 4;
+    sectionEnd = textStart + textLength;
+    if (textLength < 0 || sectionEnd > buffer.limit()) {
+      throw new EOFException("Truncated section in " + file);
+    }
+  }
+
+  private int unsignedShort(final int pos) throws EOFException {
+    if (pos + 2 > buffer.limit()) {
+      throw new EOFException("Truncated section in " + file);
+    }
+    return buffer.getShort(pos) & 0xffff;
+  }
+
+  /**
+   * Inflates the next block into blockBuffer.
+   * @return false if there are no more.
+   */
+  private boolean nextBlock() throws IOException {
+    while (true) {
+      if (filePosition + SplitFile.BLOCK_HEADER_LENGTH > fileLength) {
+        // No index: the run that wrote the file stopped.
+        return false;
+      }
+      final ByteBuffer header = map(filePosition, 4);
+      final int uncompressedLength = header.getInt(header.position());
+      if (uncompressedLength == SplitFile.END_OF_BLOCKS) {
+        return false;
+      }
+      final ByteBuffer fullHeader = map(filePosition, SplitFile.BLOCK_HEADER_LENGTH);
+      final int compressedLength = fullHeader.getInt(fullHeader.position() + 4);
+      final long dataStart = filePosition + SplitFile.BLOCK_HEADER_LENGTH;
+      if (dataStart + compressedLength > fileLength) {
+        return false;
+      }
+      if (compressed.length < compressedLength) {
+        compressed = new byte[compressedLength];
+      }
+      final ByteBuffer data = map(dataStart, compressedLength);
+      data.get(compressed, 0, compressedLength);
+      if (block.length < uncompressedLength) {
+        block = Arrays.copyOf(block, Math.max(uncompressedLength, block.length * 2));
+        blockBuffer = ByteBuffer.wrap(block);
+      }
+      SplitFile.inflate(inflater, compressed, compressedLength, block, uncompressedLength);
+      filePosition = dataStart + compressedLength;
+      blockStart = nextBlockStart;
+      nextBlockStart += uncompressedLength;
+      blockBuffer.clear();
+      blockBuffer.limit(uncompressedLength);
+      buffer = blockBuffer;
+      sectionEnd = 0;
+      if (uncompressedLength > 0) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return a buffer whose position is at position in the file, with at
+   *         least length bytes after it.
+   */
+  private ByteBuffer map(final long position, final int length) throws IOException {
+    if (position + length > fileLength) {
+      throw new EOFException("Truncated section in " + file);
+    }
+    if (position < windowStart || position + length > windowStart + window.capacity()) {
+      final long size = Math.min(fileLength - position, Math.max(windowSize, length));
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+      windowStart = position;
+    }
+    final ByteBuffer result = window.duplicate();
+    result.position((int) (position - windowStart));
+    return result;
+  }
+
+  /**
+   * The same as DataInputStream.readUTF, from bytes that are already in
+   * memory.
+   */
+  static String decodeUTF(final ByteBuffer bytes, final int start, final int length) throws UTFDataFormatException {
+    final char[] chars = new char[length];
+    int count = 0;
+    int i = start;
+    final int end = start + length;
+    while (i < end) {
+      final int c = bytes.get(i) & 0xff;
+      switch (c >> 4) {
+        case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+          chars[count++] = (char) c;
+          i += 1;
+          break;
+        case 12: case 13: {
+          if (i + 2 > end) {
+            throw new UTFDataFormatException("malformed input: partial character at end");
+          }
+          final int c2 = bytes.get(i + 1);
+          if ((c2 & 0xC0) != 0x80) {
+            throw new UTFDataFormatException("malformed input around byte " + (i - start));
+          }
+          chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+          i += 2;
+          break;
+        }
+        case 14: {
+          if (i + 3 > end) {
+            throw new UTFDataFormatException("malformed input: partial character at end");
+          }
+          final int c2 = bytes.get(i + 1);
+          final int c3 = bytes.get(i + 2);
+          if (((c2 & 0xC0) != 0x80) || ((c3 & 0xC0) != 0x80)) {
+            throw new UTFDataFormatException("malformed input around byte " + (i - start));
+          }
+          chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+          i += 3;
+          break;
+        }
+        default:
+          throw new UTFDataFormatException("malformed input around byte " + (i - start));
+      }
+    }
+    return new String(chars, 0, count);
+  }
+
+}
@@ -0,0 +1,101 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Section;
+
+public class SplitSectionReaderTest extends TestCase {
+
+  public void testBlocks() throws IOException {
+    final File file = write(true, SplitFileTest.NUM_SECTIONS);
+    check(SplitSectionReader.open(file), SplitFileTest.NUM_SECTIONS);
+  }
+
+  public void testLegacy() throws IOException {
+    final File file = write(false, SplitFileTest.NUM_SECTIONS);
+    check(SplitSectionReader.open(file), SplitFileTest.NUM_SECTIONS);
+    // Sections that don't fit in what's mapped, and ones that are bigger
+    // than all of it.
+    check(SplitSectionReader.open(file, 1000), SplitFileTest.NUM_SECTIONS);
+    check(SplitSectionReader.open(file, 10), SplitFileTest.NUM_SECTIONS);
+  }
+
+  public void testSkippedText() throws IOException {
+    final File file = write(true, 200);
+    final SplitSectionReader reader = SplitSectionReader.open(file, 1000);
+    try {
+      int i = 0;
+      while (reader.next()) {
+        assertEquals("==Heading" + i + "==", reader.heading());
+        if (i % 7 == 0) {
+          assertEquals(SplitFileTest.text(i), reader.text());
+          // Decoded once.
+          assertSame(reader.text(), reader.text());
+        }
+        assertEquals(SectionWriter.utf8Length(SplitFileTest.text(i), 0, SplitFileTest.text(i).length()), reader.textBytes());
+        ++i;
+      }
+      assertEquals(200, i);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testEmpty() throws IOException {
+    check(SplitSectionReader.open(tempFile()), 0);
+    check(SplitSectionReader.open(write(true, 0)), 0);
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static File tempFile() throws IOException {
+    final File file = File.createTempFile("SplitSectionReaderTest", ".data");
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static File write(final boolean blocks, final int count) throws IOException {
+    final File file = tempFile();
+    final SectionWriter out = blocks ? SectionWriter.openBlocks(file, false) : SectionWriter.open(file, false);
+    for (int i = 0; i < count; ++i) {
+      final String text = SplitFileTest.text(i);
+      out.writeSection(new Section("title" + i, text).set("==Heading" + i + "==", 0, text.length()));
+    }
+    out.close();
+    return file;
+  }
+
+  private static void check(final SplitSectionReader reader, final int count) throws IOException {
+    try {
+      int i = 0;
+      while (reader.next()) {
+        assertEquals("title" + i, reader.title());
+        assertEquals("==Heading" + i + "==", reader.heading());
+        assertEquals(SplitFileTest.text(i), reader.text());
+        ++i;
+      }
+      assertEquals(count, i);
+      assertFalse(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+}
@@ -14,16 +14,30 @@
 
 package com.hughes.android.dictionary.engine;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -34,191 +48,883 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import com.hughes.android.dictionary.parser.wiktionary.WiktionaryLangs;
+import com.hughes.util.Args;
 
 public class WiktionarySplitter extends org.xml.sax.helpers.DefaultHandler {
 
-  // The matches the whole line, otherwise regexes don't work well on French:
-  // {{=uk=}}
-  static final Pattern headingStart = Pattern.compile("^(=+)[^=].*$", Pattern.MULTILINE);
+  final File input;
+  final List<Selector> currentSelectors;
+  final SelectorMatcher selectorMatcher;
+  final Options options;
+  final SplitMetrics metrics;
+  SplitPipeline pipeline = null;
   
-  final Map<String,List<Selector>> pathToSelectors = new LinkedHashMap<String, List<Selector>>();
-  List<Selector> currentSelectors = null;
-  
-  StringBuilder titleBuilder;
-  StringBuilder textBuilder;
+  // Reused for every page.
+  final StringBuilder titleBuilder = new StringBuilder();
+  final StringBuilder nsBuilder = new StringBuilder();
+  final StringBuilder textBuilder = new StringBuilder();
   StringBuilder currentBuilder = null;
+  // When the SAX parser started on the current page.
+  long parseStartNanos;
 
   public static void main(final String[] args) throws Exception {
-    final WiktionarySplitter wiktionarySplitter = new WiktionarySplitter();
-    wiktionarySplitter.go();
+    final Map<String,String> keyValueArgs = Args.keyValueArgs(args);
+    
+    final Options options = new Options();
+    options.threads = intArg(keyValueArgs, "threads", options.threads);
+    options.pipelineThreads = intArg(keyValueArgs, "pipelineThreads", options.pipelineThreads);
+    options.bz2Threads = intArg(keyValueArgs, "bz2Threads", options.bz2Threads);
+    options.chunkThreads = intArg(keyValueArgs, "chunkThreads", options.chunkThreads);
+    options.checkpointPages = intArg(keyValueArgs, "checkpointPages", options.checkpointPages);
+    options.resume = "true".equals(keyValueArgs.remove("resume"));
+    options.incremental = "true".equals(keyValueArgs.remove("incremental"));
+    final String splitFormat = keyValueArgs.remove("splitFormat");
+    if (splitFormat != null) {
+      if (!splitFormat.equals("blocks") && !splitFormat.equals("legacy")) {
+        System.err.println("WARNING: splitFormat must be blocks or legacy: " + splitFormat);
+        System.exit(1);
+      }
+      options.blockFormat = splitFormat.equals("blocks");
+    }
+    options.writeIndex = !"false".equals(keyValueArgs.remove("splitIndex"));
+    
+    if (!keyValueArgs.isEmpty()) {
+      System.err.println("WARNING: couldn't parse arguments: " + keyValueArgs);
+      System.exit(1);
+    }
+    
+    go(getPathToSelectors(), options);
   }
   
-  private WiktionarySplitter() {
+  private static int intArg(final Map<String,String> keyValueArgs, final String key, final int defaultValue) {
+    final String value = keyValueArgs.remove(key);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+  
+  /**
+   * How to run the split.
+   */
+  static final class Options {
+    // Each dump is independent, so they can be split on their own threads.
+    int threads = 1;
+    // Within a dump, hand section extraction and encoding to a pool of workers.
+    int pipelineThreads = 0;
+    // Decompress .bz2 dumps on a pool of threads instead of the SAX thread.
+    int bz2Threads = 0;
+    // Cut an uncompressed dump into ranges of pages and split them on this
+    // many threads, without SAX.
+    int chunkThreads = 0;
+    // Write a checkpoint every this many pages.
+    int checkpointPages = 0;
+    // Pick up from the last checkpoint, if there is one.
+    boolean resume = false;
+    // Reuse the sections of pages that haven't changed since the last
+    // incremental run.
+    boolean incremental = false;
+    // Write the compressed, indexed format of SplitFile instead of a flat
+    // stream of sections.
+    boolean blockFormat = true;
+    // Write a SplitIndex next to each output.
+    boolean writeIndex = true;
+  }
+  
+  static Map<String,List<Selector>> getPathToSelectors() {
+    final Map<String,List<Selector>> pathToSelectors = new LinkedHashMap<String, List<Selector>>();
     List<Selector> selectors;
     for (final String code : WiktionaryLangs.wikiCodeToIsoCodeToWikiName.keySet()) {
       //if (!code.equals("fr")) {continue;}
       selectors = new ArrayList<WiktionarySplitter.Selector>();
-      pathToSelectors.put(String.format("data/inputs/%swiktionary-pages-articles.xml", code), selectors);
+      pathToSelectors.put(getInputPath(code), selectors);
       for (final Map.Entry<String, String> entry : WiktionaryLangs.wikiCodeToIsoCodeToWikiName.get(code).entrySet()) {
         final String dir = String.format("data/inputs/wikiSplit/%s", code);
         new File(dir).mkdirs();
         selectors.add(new Selector(String.format("%s/%s.data", dir, entry.getKey()), entry.getValue()));
       }
     }
+    return pathToSelectors;
+  }
+  
+  /**
+   * Uses the decompressed dump if there is one, otherwise the .bz2 as
+   * downloaded (either the plain or the multistream one).
+   */
+  static String getInputPath(final String code) {
+    final String xml = String.format("data/inputs/%swiktionary-pages-articles.xml", code);
+    for (final String path : new String[] {
+        xml,
+        xml + ".bz2",
+        String.format("data/inputs/%swiktionary-pages-articles-multistream.xml.bz2", code)}) {
+      if (new File(path).exists()) {
+        return path;
+      }
+    }
+    return xml;
   }
 
-  private void go() throws Exception {
+  /**
+   * Splits every dump in pathToSelectors, running at most options.threads of
+   * them at once.  Each dump gets its own SAX parser and its own Selector
+   * output streams.  If options.pipelineThreads > 0, each dump also gets a
+   * {@link SplitPipeline} with that many workers, and if
+   * options.bz2Threads > 0, .bz2 dumps are decompressed by a
+   * {@link ParallelBzip2InputStream} with that many threads.  If
+   * options.chunkThreads > 0, uncompressed dumps are split by
+   * {@link #splitChunks()} instead of SAX.
+   */
+  static void go(final Map<String,List<Selector>> pathToSelectors, final Options options) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, options.threads));
+    try {
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final Map.Entry<String, List<Selector>> pathToSelectorsEntry : pathToSelectors.entrySet()) {
+        final WiktionarySplitter wiktionarySplitter = new WiktionarySplitter(
+            new File(pathToSelectorsEntry.getKey()), pathToSelectorsEntry.getValue(), options);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            wiktionarySplitter.split();
+            return null;
+          }
+        }));
+      }
+      for (final Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  private WiktionarySplitter(final File input, final List<Selector> selectors, final Options options) {
+    this.input = input;
+    this.currentSelectors = selectors;
+    this.selectorMatcher = new SelectorMatcher(selectors);
+    this.options = options;
+    this.metrics = new SplitMetrics(input.getPath(), selectors);
+  }
+  
+  private InputStream openInput() throws IOException {
+    if (!input.getName().endsWith(".bz2")) {
+      return new BufferedInputStream(new FileInputStream(input));
+    }
+    if (options.bz2Threads > 0) {
+      return new ParallelBzip2InputStream(input, options.bz2Threads);
+    }
+    return new Bzip2InputStream(new FileInputStream(input));
+  }
+
+  private void split() throws Exception {
+    metrics.start();
+    splitDump();
+    if (options.writeIndex) {
+      writeIndexes();
+    }
+    reportMetrics();
+  }
+
+  private void writeIndexes() throws IOException {
+    for (final Selector selector : currentSelectors) {
+      final SplitIndex index = SplitIndex.write(new File(selector.outFilename));
+      System.out.println("Wrote index: " + SplitIndex.indexFile(new File(selector.outFilename)) + ", sections=" + index.entries().size());
+    }
+  }
+  
+  /**
+   * Prints the final progress line and writes the whole report as JSON
+   * next to the input.
+   */
+  private void reportMetrics() throws IOException {
+    final File file = new File(input.getPath() + ".metrics.json");
+    final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write(metrics.toJson());
+    } finally {
+      out.close();
+    }
+    System.out.println(metrics.progressLine());
+    System.out.println("Wrote metrics: " + file);
+  }
+
+  private void splitDump() throws Exception {
+    if (options.incremental) {
+      if (options.chunkThreads > 0 || options.pipelineThreads > 0 || options.checkpointPages > 0 || options.resume) {
+        System.err.println("Incremental splits run on one thread without checkpoints, ignoring chunkThreads, pipelineThreads, checkpointPages and resume: " + input);
+      }
+      splitIncrementally();
+      return;
+    }
+    
     final SAXParser parser = SAXParserFactoryImpl.newInstance().newSAXParser();
 
     // Configure things.
-    for (final Map.Entry<String, List<Selector>> pathToSelectorsEntry : pathToSelectors.entrySet()) {
-      
-      currentSelectors = pathToSelectorsEntry.getValue();
-      
-      for (final Selector selector : currentSelectors) {
-        selector.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(selector.outFilename)));
+    // The next incremental run would copy sections from the wrong places in
+    // the outputs we're about to overwrite.
+    getManifestFile().delete();
+    final SplitCheckpoint checkpoint = options.resume ? readCheckpoint() : null;
+    if (!options.resume) {
+      // It would be about the outputs we're about to overwrite.
+      getCheckpointFile().delete();
+    }
+    for (final Selector selector : currentSelectors) {
+      if (checkpoint != null) {
+        // Drop whatever was written after the checkpoint.
+        final RandomAccessFile file = new RandomAccessFile(selector.outFilename, "rw");
+        try {
+          file.setLength(checkpoint.outputLengths.get(selector.outFilename));
+        } finally {
+          file.close();
+        }
       }
-  
-      // Do it.
-      try {
-        parser.parse(new File(pathToSelectorsEntry.getKey()), this);
-      } catch (Exception e) {
-        System.err.println("Exception during parse, lastPageTitle=" + lastPageTitle + ", titleBuilder=" + titleBuilder.toString());
-        throw e;
+      selector.out = openOutput(new File(selector.outFilename), checkpoint != null);
+    }
+
+    if (options.checkpointPages > 0 || options.resume) {
+      if (options.chunkThreads > 0 || options.pipelineThreads > 0) {
+        System.err.println("Checkpointed splits run on one thread, ignoring chunkThreads and pipelineThreads: " + input);
       }
-      
-      // Shutdown.
+      splitWithCheckpoints(checkpoint);
       for (final Selector selector : currentSelectors) {
         selector.out.close();
       }
-      
+      return;
+    }
+
+    if (options.chunkThreads > 0) {
+      if (!input.getName().endsWith(".bz2")) {
+        splitChunks();
+        for (final Selector selector : currentSelectors) {
+          selector.out.close();
+        }
+        return;
+      }
+      System.err.println("Can't cut a compressed dump into chunks, using SAX: " + input);
+    }
+
+    if (options.pipelineThreads > 0) {
+      pipeline = new SplitPipeline(selectorMatcher, metrics, options.pipelineThreads);
+    }
+
+    // Do it.
+    final InputStream in = metrics.count(openInput());
+    parseStartNanos = System.nanoTime();
+    try {
+      parser.parse(in, this);
+    } catch (Exception e) {
+      System.err.println("Exception during parse, input=" + input + ", lastPageTitle=" + lastPageTitle + ", titleBuilder=" + titleBuilder.toString());
+      if (pipeline != null) {
+        // Don't write the rest of the queue, and don't let what the pipeline
+        // failed with hide e.
+        try {
+          final Exception failure = pipeline.abort();
+          if (failure != null && failure != e && failure != e.getCause()) {
+            e.addSuppressed(failure);
+          }
+        } catch (InterruptedException ie) {
+          e.addSuppressed(ie);
+        }
+      }
+      throw e;
+    } finally {
+      in.close();
+    }
+    if (pipeline != null) {
+      pipeline.finish();
+    }
+    
+    // Shutdown.
+    for (final Selector selector : currentSelectors) {
+      selector.out.close();
     }
   }
 
-  String lastPageTitle = null;
-  int pageCount = 0;
-  private void endPage() {
-    final String title = titleBuilder.toString();
+  private SectionWriter openOutput(final File file, final boolean append) throws IOException {
+    return options.blockFormat ? SectionWriter.openBlocks(file, append) : SectionWriter.open(file, append);
+  }
+  
+  File getCheckpointFile() {
+    return new File(input.getPath() + ".checkpoint");
+  }
+  
+  /**
+   * @return null if there's no usable checkpoint.
+   */
+  private SplitCheckpoint readCheckpoint() throws IOException {
+    final SplitCheckpoint checkpoint = SplitCheckpoint.read(getCheckpointFile());
+    if (checkpoint == null) {
+      System.out.println("No checkpoint, starting from the beginning: " + input);
+      return null;
+    }
+    if (checkpoint.inputLength != input.length()) {
+      throw new IOException("Input has changed since the checkpoint was written: " + input);
+    }
+    for (final Selector selector : currentSelectors) {
+      final Long length = checkpoint.outputLengths.get(selector.outFilename);
+      if (length == null || new File(selector.outFilename).length() < length) {
+        throw new IOException("Output is missing data from before the checkpoint: " + selector.outFilename);
+      }
+    }
+    System.out.println("Resuming " + input + " at page " + checkpoint.pageCount + ", offset " + checkpoint.inputOffset);
+    return checkpoint;
+  }
+  
+  /**
+   * Splits the dump with a {@link PageScanner}, which knows where each page
+   * ends in the input, writing a checkpoint every options.checkpointPages
+   * pages.  Starts after checkpoint, if it isn't null.
+   */
+  private void splitWithCheckpoints(final SplitCheckpoint checkpoint) throws IOException {
+    final long start = checkpoint == null ? 0 : checkpoint.inputOffset;
+    if (checkpoint != null) {
+      pageCount.set(checkpoint.pageCount);
+    }
+    final InputStream in = openInput();
+    try {
+      // For .bz2 dumps this still has to decompress everything before start.
+      for (long skipped = 0; skipped < start; ) {
+        final long n = in.skip(start - skipped);
+        if (n <= 0) {
+          throw new IOException("Input is shorter than the checkpoint offset: " + input);
+        }
+        skipped += n;
+      }
+      final PageScanner scanner = new PageScanner(in, start, Long.MAX_VALUE, PageScanner.MAIN_NAMESPACE);
+      PageScanner.Page page;
+      while ((page = nextPage(scanner)) != null) {
+        if (acceptPage(page.title, page.ns)) {
+          splitPage(page.title, page.text, writeToSelector);
+        }
+        if (options.checkpointPages > 0 && pageCount.get() % options.checkpointPages == 0) {
+          writeCheckpoint(scanner.position());
+        }
+      }
+      // A final checkpoint, so resuming a finished dump does nothing.
+      writeCheckpoint(scanner.position());
+    } catch (IOException e) {
+      System.err.println("Exception during parse, input=" + input + ", lastPageTitle=" + lastPageTitle);
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+  
+  private void writeCheckpoint(final long inputOffset) throws IOException {
+    final Map<String, Long> outputLengths = new LinkedHashMap<String, Long>();
+    for (final Selector selector : currentSelectors) {
+      selector.out.flush();
+      outputLengths.put(selector.outFilename, new File(selector.outFilename).length());
+    }
+    new SplitCheckpoint(input.length(), pageCount.get(), inputOffset, outputLengths).write(getCheckpointFile());
+  }
+  
+  File getManifestFile() {
+    return new File(input.getPath() + ".manifest");
+  }
+  
+  private static File newFile(final String path) {
+    return new File(path + ".new");
+  }
+  
+  private static void replace(final File from, final File to) throws IOException {
+    if (!from.renameTo(to)) {
+      to.delete();
+      if (!from.renameTo(to)) {
+        throw new IOException("Couldn't rename " + from + " to " + to);
+      }
+    }
+  }
+  
+  /**
+   * Splits the dump, copying the sections of pages whose revision hasn't
+   * changed since the last incremental run straight out of the old outputs,
+   * as recorded in the {@link SplitManifest}.  Unchanged pages don't even
+   * have their text decoded.  The new outputs and manifest are written next
+   * to the old ones and replace them at the end: the old manifest goes
+   * first and the new one comes last, so a run that dies part way through
+   * leaves outputs with no manifest, never a manifest that doesn't go with
+   * them.
+   */
+  private void splitIncrementally() throws IOException {
+    final SplitManifest.Reader previous = SplitManifest.Reader.open(getManifestFile(), currentSelectors);
+    final SplitFile.Reader[] oldOutputs = new SplitFile.Reader[currentSelectors.size()];
+    final Map<Selector, Integer> selectorIndices = new HashMap<Selector, Integer>();
+    for (int i = 0; i < currentSelectors.size(); ++i) {
+      final Selector selector = currentSelectors.get(i);
+      selectorIndices.put(selector, i);
+      if (previous != null) {
+        oldOutputs[i] = SplitFile.Reader.open(new File(selector.outFilename));
+      }
+      selector.out = openOutput(newFile(selector.outFilename), false);
+    }
+    final SplitManifest.Writer manifest = new SplitManifest.Writer(newFile(getManifestFile().getPath()), currentSelectors);
+    
+    // Set by textFilter when the page being read hasn't changed.
+    final SplitManifest.Page[] unchanged = new SplitManifest.Page[1];
+    final PageScanner.TextFilter textFilter = new PageScanner.TextFilter() {
+      @Override
+      public boolean wantText(final String title, final String ns, final String id, final String revisionId) throws IOException {
+        if (!isMainNamespace(title, ns)) {
+          return false;
+        }
+        if (previous != null && revisionId.length() > 0) {
+          final SplitManifest.Page old = previous.find(SplitManifest.parseId(id));
+          if (old != null && old.revision.equals(revisionId)) {
+            unchanged[0] = old;
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+    
+    int reused = 0;
+    int resplit = 0;
+    final InputStream in = openInput();
+    try {
+      final PageScanner scanner = new PageScanner(in, 0, Long.MAX_VALUE, textFilter);
+      PageScanner.Page page;
+      while ((page = nextPage(scanner)) != null) {
+        SplitManifest.Page old = unchanged[0];
+        unchanged[0] = null;
+        if (!acceptPage(page.title, page.ns)) {
+          continue;
+        }
+        final long id = SplitManifest.parseId(page.id);
+        final String revision = SplitManifest.revision(page.revisionId, page.sha1);
+        if (old == null && previous != null && page.revisionId.length() == 0) {
+          // Only a sha1, which comes after the text.
+          old = previous.find(id);
+          if (old != null && !old.revision.equals(revision)) {
+            old = null;
+          }
+        }
+        
+        manifest.startPage(id, revision);
+        if (old != null) {
+          for (final SplitManifest.Section section : old.sections) {
+            final long start = System.nanoTime();
+            final Selector selector = currentSelectors.get(section.selectorIndex);
+            manifest.addSection(section.selectorIndex, selector.out.position(), section.length);
+            oldOutputs[section.selectorIndex].copyTo(section.offset, section.length, selector.out);
+            metrics.copied(selector, section.length, System.nanoTime() - start);
+          }
+          metrics.reused();
+          ++reused;
+        } else {
+          splitPage(page.title, page.text, new SectionSink() {
+            @Override
+            public void onSection(final Selector selector, final Section section) throws IOException {
+              final long start = selector.out.position();
+              writeSection(selector.out, selector, section);
+              manifest.addSection(selectorIndices.get(selector), start, (int) (selector.out.position() - start));
+            }
+          });
+          ++resplit;
+        }
+        manifest.endPage();
+      }
+    } catch (IOException e) {
+      System.err.println("Exception during parse, input=" + input + ", lastPageTitle=" + lastPageTitle);
+      throw e;
+    } finally {
+      in.close();
+      if (previous != null) {
+        previous.close();
+      }
+      for (final SplitFile.Reader oldOutput : oldOutputs) {
+        if (oldOutput != null) {
+          oldOutput.close();
+        }
+      }
+    }
+    
+    final List<File> outputs = new ArrayList<File>();
+    for (final Selector selector : currentSelectors) {
+      selector.out.close();
+      outputs.add(newFile(selector.outFilename));
+    }
+    manifest.close(outputs);
+    if (getManifestFile().exists() && !getManifestFile().delete()) {
+      throw new IOException("Couldn't delete " + getManifestFile());
+    }
+    for (final Selector selector : currentSelectors) {
+      replace(newFile(selector.outFilename), new File(selector.outFilename));
+    }
+    replace(newFile(getManifestFile().getPath()), getManifestFile());
+    System.out.println("Incremental split of " + input + ": reused " + reused + " pages, split " + resplit + " pages.");
+  }
+  
+  // More chunks than threads, so one slow chunk doesn't hold up the end.
+  static final int CHUNKS_PER_THREAD = 4;
+  
+  /**
+   * Splits the dump as byte ranges of pages, read by {@link PageScanner}s on
+   * options.chunkThreads threads.  Each range writes its sections to its own
+   * shard of every Selector output, and the shards are then appended to the
+   * outputs in file order, so the result is the same as the SAX split.
+   */
+  private void splitChunks() throws Exception {
+    final int numChunks = options.chunkThreads * CHUNKS_PER_THREAD;
+    final long length = input.length();
+    // A chunk with no sections for a selector doesn't write its shard, so
+    // one left by a run that died would be merged as if it were this run's.
+    deleteShards(numChunks);
+    try {
+      splitChunks(numChunks, length);
+    } finally {
+      // Only left if the split or the merge failed.
+      deleteShards(numChunks);
+    }
+  }
+  
+  private void splitChunks(final int numChunks, final long length) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(options.chunkThreads);
+    try {
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < numChunks; ++i) {
+        final int chunk = i;
+        final long start = length * i / numChunks;
+        final long end = length * (i + 1) / numChunks;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            splitChunk(chunk, start, end);
+            return null;
+          }
+        }));
+      }
+      for (final Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          System.err.println("Exception during chunk split, input=" + input + ", lastPageTitle=" + lastPageTitle);
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      // Chunks still running after a failure would write shards after
+      // they've been deleted.
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    for (final Selector selector : currentSelectors) {
+      for (int chunk = 0; chunk < numChunks; ++chunk) {
+        final File shard = shardFile(selector, chunk);
+        if (!shard.exists()) {
+          continue;
+        }
+        final FileInputStream in = new FileInputStream(shard);
+        try {
+          selector.out.copy(in.getChannel(), 0, shard.length());
+        } finally {
+          in.close();
+        }
+        shard.delete();
+      }
+    }
+  }
+  
+  static File shardFile(final Selector selector, final int chunk) {
+    return new File(selector.outFilename + ".shard" + chunk);
+  }
+  
+  private void deleteShards(final int numChunks) {
+    for (final Selector selector : currentSelectors) {
+      for (int chunk = 0; chunk < numChunks; ++chunk) {
+        shardFile(selector, chunk).delete();
+      }
+    }
+  }
+  
+  private void splitChunk(final int chunk, final long start, final long end) throws IOException {
+    // Only selectors that get a section have a shard.
+    final Map<Selector, SectionWriter> shards = new LinkedHashMap<Selector, SectionWriter>();
+    final PageScanner scanner = new PageScanner(input, start, end);
+    try {
+      PageScanner.Page page;
+      while ((page = nextPage(scanner)) != null) {
+        if (!acceptPage(page.title, page.ns)) {
+          continue;
+        }
+        splitPage(page.title, page.text, new SectionSink() {
+          @Override
+          public void onSection(final Selector selector, final Section section) throws IOException {
+            SectionWriter out = shards.get(selector);
+            if (out == null) {
+              // Shards are the legacy stream, which the merge copies into
+              // the output (and its blocks, if it has them).
+              out = SectionWriter.open(shardFile(selector, chunk), false);
+              shards.put(selector, out);
+            }
+            writeSection(out, selector, section);
+          }
+        });
+      }
+    } finally {
+      scanner.close();
+      for (final SectionWriter out : shards.values()) {
+        out.close();
+      }
+    }
+  }
+
+  // Only used for dumps that don't have <ns> elements.
+  static final Set<String> NON_MAIN_NAMESPACE_PREFIXES = new HashSet<String>(Arrays.asList(
+      "Wiktionary:", "Appendix:", "Help:", "Index:", "MediaWiki:", "Citations:",
+      "Concordance:", "Glossary:", "Rhymes:", "Category:", "Wikisaurus:",
+      "Transwiki:", "File:", "Thread:", "Template:", "Summary:",
+      // DE
+      "Datei:", "Verzeichnis:", "Vorlage:", "Thesaurus:", "Kategorie:", "Hilfe:",
+      // FR:
+      "Annexe:", "Catégori:", "Modèle:", "Thésaurus:", "Projet:", "Aide:",
+      "Fichier:", "Wiktionnaire:", "Catégorie:", "Portail:", "utiliusateur:",
+      "Kategorio:",
+      // IT
+      "Wikizionario:", "Appendice:", "Categoria:", "Aiuto:"));
+
+  /**
+   * Whether a page is an article, going by its <ns> element, or by its
+   * title prefix in dumps that predate <ns> (ns is empty then).
+   */
+  static boolean isMainNamespace(final String title, final String ns) {
+    if (ns.length() > 0) {
+      return ns.trim().equals("0");
+    }
+    final int colon = title.indexOf(':');
+    return colon == -1 || !NON_MAIN_NAMESPACE_PREFIXES.contains(title.substring(0, colon + 1));
+  }
+
+  volatile String lastPageTitle = null;
+  final AtomicInteger pageCount = new AtomicInteger();
+  
+  /**
+   * Counts a page and decides whether it gets split.
+   */
+  private boolean acceptPage(final String title, final String ns) {
     lastPageTitle = title;
-    if (++pageCount % 1000 == 0) {
-      System.out.println("endPage: " + title + ", count=" + pageCount);
-    }
-    if (title.startsWith("Wiktionary:") || 
-            title.startsWith("Appendix:") || 
-            title.startsWith("Help:") ||
-            title.startsWith("Index:") ||
-            title.startsWith("MediaWiki:") || 
-            title.startsWith("Citations:") || 
-            title.startsWith("Concordance:") || 
-            title.startsWith("Glossary:") || 
-            title.startsWith("Rhymes:") || 
-            title.startsWith("Category:") || 
-            title.startsWith("Wikisaurus:") || 
-            title.startsWith("Unsupported titles/") || 
-            title.startsWith("Transwiki:") || 
-            title.startsWith("File:") || 
-            title.startsWith("Thread:") || 
-            title.startsWith("Template:") ||
-            title.startsWith("Summary:") ||
-            // DE
-            title.startsWith("Datei:") ||
-            title.startsWith("Verzeichnis:") ||
-            title.startsWith("Vorlage:") ||
-            title.startsWith("Thesaurus:") ||
-            title.startsWith("Kategorie:") ||
-            title.startsWith("Hilfe:") ||
-            // FR:
-            title.startsWith("Annexe:") ||
-            title.startsWith("Catégori:") ||
-            title.startsWith("Modèle:") ||
-            title.startsWith("Thésaurus:") ||
-            title.startsWith("Projet:") ||
-            title.startsWith("Aide:") ||
-            title.startsWith("Fichier:") ||
-            title.startsWith("Wiktionnaire:") ||
-            title.startsWith("Catégorie:") ||
-            title.startsWith("Portail:") ||
-            title.startsWith("utiliusateur:") ||
-            title.startsWith("Kategorio:") ||
-            // IT
-            title.startsWith("Wikizionario:") ||
-            title.startsWith("Appendice:") ||
-            title.startsWith("Categoria:") ||
-            title.startsWith("Aiuto:") ||
-            title.startsWith("Portail:") ||
-
-            // sentinel
-            false
-            ) {
-        return;
+    final int count = pageCount.incrementAndGet();
+    final boolean mainNamespace = isMainNamespace(title, ns);
+    final boolean article = mainNamespace && !title.startsWith("Unsupported titles/");
+    metrics.page(article, mainNamespace);
+    if (count % 1000 == 0) {
+      System.out.println("endPage: " + title + ", count=" + count + ", " + metrics.progressLine());
+    }
+    if (!article) {
+      return false;
     }
     if (title.contains(":")) {
         if (!title.startsWith("Sign gloss:")) {
             System.err.println("title with colon: " + title);
         }
     }
+    return true;
+  }
+  
+  private void endPage() throws SAXException {
+    final String title = titleBuilder.toString();
+    if (!acceptPage(title, nsBuilder.toString())) {
+      return;
+    }
     
-    String text = textBuilder.toString();
-    
-    while (text.length() > 0) {
+    if (pipeline != null) {
+      pipeline.submit(title, textBuilder.toString());
+      return;
+    }
+    try {
+      splitPage(title, textBuilder, writeToSelector);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Reads the next page, timing it as parsing.
+   */
+  private PageScanner.Page nextPage(final PageScanner scanner) throws IOException {
+    final long start = System.nanoTime();
+    final long position = scanner.position();
+    final PageScanner.Page page = scanner.next();
+    metrics.parsed(System.nanoTime() - start);
+    metrics.inputBytes.addAndGet(scanner.position() - position);
+    return page;
+  }
+  
+  /**
+   * splitPage with this splitter's selectors, timed.
+   */
+  private void splitPage(final String title, final CharSequence text, final SectionSink sink) throws IOException {
+    final long start = System.nanoTime();
+    splitPage(selectorMatcher, title, text, sink);
+    metrics.split(title, text.length(), System.nanoTime() - start);
+  }
+  
+  /**
+   * Writes section to out, counting it for selector.
+   */
+  void writeSection(final SectionWriter out, final Selector selector, final Section section) throws IOException {
+    final long start = System.nanoTime();
+    final long position = out.position();
+    out.writeSection(section);
+    metrics.section(selector, out.position() - position, System.nanoTime() - start);
+  }
+  
+  /**
+   * Cuts the sections out of a page whose headings match one of the
+   * selectors, handing them to sink in page order.  Each heading is matched
+   * against all the selectors at once by selectorMatcher.
+   *
+   * This is a single forward scan over the page: headings are found where
+   * they start and sections are cut as offset ranges, so the page is never
+   * copied and no regex is compiled per section.  The same Section is
+   * handed to sink for every section of the page.
+   */
+  static void splitPage(final SelectorMatcher selectorMatcher, final CharSequence title, final CharSequence text, final SectionSink sink) throws IOException {
+    final Section section = new Section(title, text);
+    final int len = text.length();
+    int pos = 0;
+    while (pos < len) {
       // Find start.
-      final Matcher startMatcher = headingStart.matcher(text);
-      if (!startMatcher.find()) {
-        return;
+      int headingStart = pos;
+      int headingEnd;
+      while ((headingEnd = headingEnd(text, headingStart)) == -1) {
+        headingStart = nextLineStart(text, headingStart);
+        if (headingStart == -1) {
+          return;
+        }
       }
-      text = text.substring(startMatcher.end());
+      final int depth = headingDepth(text, headingStart);
+      pos = headingEnd;
       
-      final String heading = startMatcher.group();
-      for (final Selector selector : currentSelectors) {
-        if (selector.pattern.matcher(heading).find()) {
-          
-          // Find end.
-          final int depth = startMatcher.group(1).length();
-          final Pattern endPattern = Pattern.compile(String.format("^={1,%d}[^=].*$", depth), Pattern.MULTILINE);
-          
-          final Matcher endMatcher = endPattern.matcher(text);
-          final int end;
-          if (endMatcher.find()) {
-            end = endMatcher.start();
-          } else {
-            end = text.length();
-          }
-          
-          final String sectionText = text.substring(0, end);
-          final Section section = new Section(title, heading, sectionText);
-          
-          try {
-            selector.out.writeUTF(section.title);
-            selector.out.writeUTF(section.heading);
-            final byte[] bytes = section.text.getBytes("UTF8");
-            selector.out.writeInt(bytes.length);
-            selector.out.write(bytes);
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-          
-          text = text.substring(end);
+      final String heading = text.subSequence(headingStart, headingEnd).toString();
+      boolean matched = false;
+      for (final Selector selector : selectorMatcher.matches(heading)) {
+        if (matched) {
+          // The section was already handed to an earlier selector, and
+          // this one has always gotten the (empty) remainder.
+          sink.onSection(selector, section.set(heading, headingEnd, headingEnd));
+          continue;
+        }
+        matched = true;
+        
+        // Find end: the next heading that isn't nested under this one.
+        int end = headingEnd;
+        while (end != -1 && (headingEnd(text, end) == -1 || headingDepth(text, end) > depth)) {
+          end = nextLineStart(text, end);
         }
+        if (end == -1) {
+          end = len;
+        }
+        
+        sink.onSection(selector, section.set(heading, headingEnd, end));
+        pos = end;
       }
     }
-    
   }
+  
+  // A heading is a line that starts with one or more '=' followed by
+  // something that isn't '=', then the rest of the line.  This matches the
+  // whole line, otherwise things don't work well on French: {{=uk=}}
+  // Line breaks are the ones java.util.regex uses for ^ and $ in MULTILINE
+  // mode, so the split comes out the same as it did with
+  // Pattern.compile("^(=+)[^=].*$", Pattern.MULTILINE).
 
-  // -----------------------------------------------------------------------
+  static boolean isLineTerminator(final char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  /**
+   * Returns the start of the first line after the one containing pos, or -1
+   * if there isn't one.
+   */
+  static int nextLineStart(final CharSequence text, final int pos) {
+    final int len = text.length();
+    for (int i = pos; i < len; ++i) {
+      final char c = text.charAt(i);
+      if (isLineTerminator(c)) {
+        int next = i + 1;
+        if (c == '\r' && next < len && text.charAt(next) == '\n') {
+          ++next;
+        }
+        return next < len ? next : -1;
+      }
+    }
+    return -1;
+  }
+
+  static int headingDepth(final CharSequence text, final int lineStart) {
+    int i = lineStart;
+    while (i < text.length() && text.charAt(i) == '=') {
+      ++i;
+    }
+    return i - lineStart;
+  }
+
+  /**
+   * Returns the end of the heading that starts at lineStart, or -1 if
+   * there's no heading there.
+   */
+  static int headingEnd(final CharSequence text, final int lineStart) {
+    final int len = text.length();
+    final int depth = headingDepth(text, lineStart);
+    int i = lineStart + depth;
+    if (depth == 0 || i >= len) {
+      return -1;
+    }
+    // The char after the '='s can be anything, even a line break.
+    final char afterEquals = text.charAt(i++);
+    if (afterEquals == '\r' && i < len && text.charAt(i) == '\n') {
+      // The line would end in the middle of a \r\n.
+      return -1;
+    }
+    while (i < len && !isLineTerminator(text.charAt(i))) {
+      ++i;
+    }
+    return i;
+  }
+  
+  interface SectionSink {
+    void onSection(final Selector selector, final Section section) throws IOException;
+  }
+  
+  final SectionSink writeToSelector = new SectionSink() {
+    @Override
+    public void onSection(final Selector selector, final Section section) throws IOException {
+      writeSection(selector.out, selector, section);
+    }
+  };
 
-  static class Section implements java.io.Serializable {
-    private static final long serialVersionUID = -7676549898325856822L;
+  // -----------------------------------------------------------------------
 
-    final String title;
-    final String heading;
-    final String text;
+  /**
+   * A section of a page: its heading, and its text as the range
+   * [textStart, textEnd) of the page, which isn't copied out.
+   */
+  static final class Section {
+    final CharSequence title;
+    final CharSequence page;
+    String heading;
+    int textStart;
+    int textEnd;
     
-    public Section(final String title, final String heading, final String text) {
+    Section(final CharSequence title, final CharSequence page) {
       this.title = title;
+      this.page = page;
+    }
+    
+    Section set(final String heading, final int textStart, final int textEnd) {
       this.heading = heading;
-      this.text = text;
-      
-      //System.out.printf("TITLE:%s\nHEADING:%s\nTEXT:%s\n\n\n\n\n\n", title, heading, text);
+      this.textStart = textStart;
+      this.textEnd = textEnd;
+      return this;
     }
   }
   
@@ -226,7 +932,7 @@ public class WiktionarySplitter extends org.xml.sax.helpers.DefaultHandler {
     final String outFilename;
     final Pattern pattern;
 
-    DataOutputStream out;
+    SectionWriter out;
 
     public Selector(final String filename, final String pattern) {
       this.outFilename = filename;
@@ -241,14 +947,22 @@ public class WiktionarySplitter extends org.xml.sax.helpers.DefaultHandler {
         Attributes attributes) {
       currentBuilder = null;
       if ("page".equals(qName)) {
-        titleBuilder = new StringBuilder();
+        titleBuilder.setLength(0);
+        nsBuilder.setLength(0);
         
         // Start with "\n" to better match certain strings.
-        textBuilder = new StringBuilder("\n");
+        textBuilder.setLength(0);
+        textBuilder.append('\n');
       } else if ("title".equals(qName)) {
         currentBuilder = titleBuilder;
+      } else if ("ns".equals(qName)) {
+        currentBuilder = nsBuilder;
       } else if ("text".equals(qName)) {
-        currentBuilder = textBuilder;
+        // <title> and <ns> come before <text>, so pages endPage() is going
+        // to drop never have their text buffered.
+        if (isMainNamespace(titleBuilder.toString(), nsBuilder.toString())) {
+          currentBuilder = textBuilder;
+        }
       }
     }
 
@@ -264,7 +978,9 @@ public class WiktionarySplitter extends org.xml.sax.helpers.DefaultHandler {
         throws SAXException {
       currentBuilder = null;
       if ("page".equals(qName)) {
+        metrics.parsed(System.nanoTime() - parseStartNanos);
         endPage();
+        parseStartNanos = System.nanoTime();
       }
     }
     
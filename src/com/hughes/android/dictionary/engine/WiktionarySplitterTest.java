@@ -0,0 +1,362 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.SAXParseException;
+
+import com.hughes.android.dictionary.engine.WiktionarySplitter.Selector;
+
+public class WiktionarySplitterTest extends TestCase {
+
+  static final int NUM_PAGES = 300;
+
+  static final String[] OUTPUTS = { "en", "fr" };
+
+  File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("WiktionarySplitterTest", "");
+    dir.delete();
+    assertTrue(dir.mkdir());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testPipeline() throws Exception {
+    final File input = writeXml("dump.xml", xml(null));
+    final List<byte[]> expected = split(input, "sax", new WiktionarySplitter.Options());
+
+    final WiktionarySplitter.Options options = new WiktionarySplitter.Options();
+    options.pipelineThreads = 3;
+    assertOutputsEqual(expected, split(input, "pipeline", options));
+
+    options.blockFormat = false;
+    assertOutputsEqual(split(input, "saxLegacy", legacy()), split(input, "pipelineLegacy", options));
+  }
+
+  public void testPipelineParseError() throws Exception {
+    final File input = writeXml("dump.xml", xml("word150"));
+    final WiktionarySplitter.Options options = new WiktionarySplitter.Options();
+    options.pipelineThreads = 3;
+    try {
+      go(input, "pipeline", options);
+      fail();
+    } catch (SAXParseException e) {
+      // What the parser threw, not something from the pipeline.
+      assertTrue(e.getMessage(), e.getMessage().contains("bad"));
+    }
+  }
+
+  public void testChunksIgnoreStaleShards() throws Exception {
+    final File input = writeXml("dump.xml", xml(null));
+    final List<byte[]> expected = split(input, "sax", new WiktionarySplitter.Options());
+
+    final WiktionarySplitter.Options options = new WiktionarySplitter.Options();
+    options.chunkThreads = 2;
+    assertOutputsEqual(expected, split(input, "chunks", options));
+    // As if a run had died before merging.
+    writeStaleShards("chunks", options);
+    assertOutputsEqual(expected, split(input, "chunks", options));
+    assertEquals(0, shards().size());
+
+    writeStaleShards("chunksLegacy", options);
+    options.blockFormat = false;
+    assertOutputsEqual(split(input, "saxLegacy", legacy()), split(input, "chunksLegacy", options));
+    assertEquals(0, shards().size());
+  }
+
+  public void testChunksFailure() throws Exception {
+    final File input = writeXml("dump.xml", xml("word150"));
+    final WiktionarySplitter.Options options = new WiktionarySplitter.Options();
+    options.chunkThreads = 2;
+    try {
+      go(input, "chunks", options);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("&bad;"));
+    }
+    assertEquals(0, shards().size());
+  }
+
+  public void testResumeBlocks() throws Exception {
+    checkResume(new WiktionarySplitter.Options());
+  }
+
+  public void testResumeLegacy() throws Exception {
+    checkResume(legacy());
+  }
+
+  /**
+   * Stops a checkpointed split part way through, with pages written past the
+   * last checkpoint, then resumes it.
+   */
+  void checkResume(final WiktionarySplitter.Options options) throws Exception {
+    options.checkpointPages = 20;
+    final String fixed = xml("word150").replace("&bad;", "&amp;");
+    final List<byte[]> expected = split(writeXml("fresh.xml", fixed), "fresh", options);
+
+    final File input = writeXml("dump.xml", xml("word150"));
+    try {
+      go(input, "resumed", options);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("&bad;"));
+    }
+    final SplitCheckpoint checkpoint = SplitCheckpoint.read(new File(input.getPath() + ".checkpoint"));
+    assertEquals(140, checkpoint.pageCount);
+    for (final String name : OUTPUTS) {
+      final File output = output("resumed", name);
+      assertTrue(name, output.length() >= checkpoint.outputLengths.get(output.getPath()));
+      // What a crash could have flushed after the checkpoint, which resume
+      // has to drop.
+      final FileOutputStream out = new FileOutputStream(output, true);
+      try {
+        out.write("partial page".getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+    }
+
+    writeXml("dump.xml", fixed);
+    options.resume = true;
+    assertOutputsEqual(expected, split(input, "resumed", options));
+    // Resuming a finished split changes nothing.
+    assertOutputsEqual(expected, split(input, "resumed", options));
+  }
+
+  public void testIncrementalBlocks() throws Exception {
+    checkIncremental(new WiktionarySplitter.Options());
+  }
+
+  public void testIncrementalLegacy() throws Exception {
+    checkIncremental(legacy());
+  }
+
+  /**
+   * Re-splits incrementally with one page changed.
+   */
+  void checkIncremental(final WiktionarySplitter.Options options) throws Exception {
+    final File input = writeXml("dump.xml", xml(null));
+    options.incremental = true;
+    // A plain split of input would delete its manifest.
+    final List<byte[]> expected = split(writeXml("full.xml", xml(null)), "full", newOptions(options));
+    assertOutputsEqual(expected, split(input, "inc", options));
+    // Nothing changed.
+    assertOutputsEqual(expected, split(input, "inc", options));
+
+    writeXml("dump.xml", xml(null, "word10"));
+    writeXml("full.xml", xml(null, "word10"));
+    assertOutputsEqual(split(new File(dir, "full.xml"), "full", newOptions(options)), split(input, "inc", options));
+  }
+
+  public void testIncrementalAfterPlainBlocks() throws Exception {
+    checkIncrementalAfterPlain(new WiktionarySplitter.Options());
+  }
+
+  public void testIncrementalAfterPlainLegacy() throws Exception {
+    checkIncrementalAfterPlain(legacy());
+  }
+
+  /**
+   * An incremental split, then a plain one of a changed dump, which moves
+   * every section after the changed page, then an incremental one.
+   */
+  void checkIncrementalAfterPlain(final WiktionarySplitter.Options options) throws Exception {
+    final File input = writeXml("dump.xml", xml(null));
+    options.incremental = true;
+    go(input, "out", options);
+    final File manifest = new File(input.getPath() + ".manifest");
+    final byte[] oldManifest = readFile(manifest);
+
+    writeXml("dump.xml", xml(null, "word10"));
+    final List<byte[]> expected = split(input, "out", newOptions(options));
+    assertFalse(manifest.exists());
+    assertOutputsEqual(expected, split(input, "out", options));
+
+    // A manifest that doesn't go with the outputs, as a crash could leave.
+    assertOutputsEqual(expected, split(input, "out", newOptions(options)));
+    writeFile(manifest, oldManifest);
+    assertOutputsEqual(expected, split(input, "out", options));
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * @return options, but not incremental.
+   */
+  static WiktionarySplitter.Options newOptions(final WiktionarySplitter.Options options) {
+    final WiktionarySplitter.Options result = new WiktionarySplitter.Options();
+    result.blockFormat = options.blockFormat;
+    return result;
+  }
+
+  void writeStaleShards(final String prefix, final WiktionarySplitter.Options options) throws IOException {
+    for (final String name : OUTPUTS) {
+      final Selector selector = new Selector(output(prefix, name).getPath(), name);
+      for (int chunk = 0; chunk < options.chunkThreads * WiktionarySplitter.CHUNKS_PER_THREAD; ++chunk) {
+        final FileOutputStream out = new FileOutputStream(WiktionarySplitter.shardFile(selector, chunk));
+        try {
+          out.write("stale".getBytes("UTF-8"));
+        } finally {
+          out.close();
+        }
+      }
+    }
+  }
+
+  List<String> shards() {
+    final List<String> shards = new ArrayList<String>();
+    for (final String name : dir.list()) {
+      if (name.contains(".shard")) {
+        shards.add(name);
+      }
+    }
+    return shards;
+  }
+
+  static String xml(final String badPage) {
+    return xml(badPage, null);
+  }
+
+  /**
+   * @param changedPage gets a new revision, with longer text.
+   */
+  static String xml(final String badPage, final String changedPage) {
+    final StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\"?>\n");
+    xml.append("<mediawiki><siteinfo><sitename>Wiktionary</sitename></siteinfo>\n");
+    for (int i = 0; i < NUM_PAGES; ++i) {
+      final String title = "word" + i;
+      xml.append("  <page>\n");
+      xml.append("    <title>").append(title).append("</title>\n");
+      xml.append("    <ns>").append(i % 10 == 9 ? 10 : 0).append("</ns>\n");
+      xml.append("    <id>").append(i + 1).append("</id>\n");
+      final boolean changed = title.equals(changedPage);
+      xml.append("    <revision><id>").append(changed ? 2000 + i : 1000 + i).append("</id>");
+      xml.append("<text xml:space=\"preserve\">");
+      if (i % 3 != 1) {
+        xml.append("==English==\n===Noun===\n").append(title).append(" &amp; noun ").append(i).append('\n');
+      }
+      if (changed) {
+        xml.append("==English==\n===Verb===\n").append(title).append(" is a verb now\n");
+      }
+      if (title.equals(badPage)) {
+        // Same length as &amp;, so the input doesn't change size when fixed.
+        xml.append("&bad;\n");
+      }
+      xml.append("==German==\nnot selected\n");
+      // Not in the second half, so later chunks have no French shard.
+      if (i % 2 == 0 && i < NUM_PAGES / 2) {
+        xml.append("==French==\n{{fr-noun}} ").append(title).append("\n");
+      }
+      xml.append("</text></revision>\n");
+      xml.append("  </page>\n");
+    }
+    xml.append("</mediawiki>\n");
+    return xml.toString();
+  }
+
+  File writeXml(final String name, final String xml) throws IOException {
+    final File file = new File(dir, name);
+    writeFile(file, xml.getBytes("UTF-8"));
+    return file;
+  }
+
+  static void writeFile(final File file, final byte[] bytes) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  static byte[] readFile(final File file) throws IOException {
+    final RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      final byte[] bytes = new byte[(int) in.length()];
+      in.readFully(bytes);
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  static WiktionarySplitter.Options legacy() {
+    final WiktionarySplitter.Options options = new WiktionarySplitter.Options();
+    options.blockFormat = false;
+    return options;
+  }
+
+  File output(final String prefix, final String name) {
+    return new File(dir, prefix + "." + name + ".data");
+  }
+
+  /**
+   * Splits input into the OUTPUTS, named after prefix.
+   */
+  void go(final File input, final String prefix, final WiktionarySplitter.Options options) throws Exception {
+    final List<Selector> selectors = new ArrayList<Selector>();
+    selectors.add(new Selector(output(prefix, "en").getPath(), "English"));
+    selectors.add(new Selector(output(prefix, "fr").getPath(), "French"));
+    final Map<String, List<Selector>> pathToSelectors = new LinkedHashMap<String, List<Selector>>();
+    pathToSelectors.put(input.getPath(), selectors);
+    WiktionarySplitter.go(pathToSelectors, options);
+  }
+
+  /**
+   * @return the contents of the OUTPUTS.
+   */
+  List<byte[]> split(final File input, final String prefix, final WiktionarySplitter.Options options) throws Exception {
+    go(input, prefix, options);
+    return read(prefix);
+  }
+
+  List<byte[]> read(final String prefix) throws IOException {
+    final List<byte[]> result = new ArrayList<byte[]>();
+    for (final String name : OUTPUTS) {
+      result.add(readFile(output(prefix, name)));
+    }
+    return result;
+  }
+
+  static void assertOutputsEqual(final List<byte[]> expected, final List<byte[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertTrue(OUTPUTS[i], expected.get(i).length > 0);
+      assertTrue(OUTPUTS[i], Arrays.equals(expected.get(i), actual.get(i)));
+    }
+  }
+
+}
@@ -14,10 +14,17 @@
 
 package com.hughes.android.dictionary.parser;
 
+import java.util.AbstractList;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,6 +43,120 @@ public final class WikiTokenizer {
     void onHtml(WikiTokenizer wikiTokenizer);
   }
   
+  /**
+   * A Callback that gets plain text as a TextView of the text being
+   * tokenized, instead of a copy of it, from dispatch().
+   */
+  public static interface ViewCallback extends Callback {
+    void onPlainText(final TextView text);
+  }
+
+  /**
+   * Gets the errors tokenizers find, instead of them being printed.  See
+   * setErrorSink().
+   */
+  public static interface ErrorSink {
+    /**
+     * @param title the page being tokenized, from setErrorTitle(), or null.
+     * @param kind what went wrong, one of a few fixed strings, e.g.
+     *        "Unmatched {{".
+     * @param offset where the token with the error starts, in the text
+     *        being tokenized.
+     * @param excerpt the first few chars of that token.
+     */
+    void onError(final String title, final String kind, final int offset, final String excerpt);
+  }
+
+  public static final ErrorSink IGNORE_ERRORS = new ErrorSink() {
+    @Override
+    public void onError(final String title, final String kind, final int offset, final String excerpt) {
+    }
+  };
+
+  /**
+   * A range of the text being tokenized, read the way the String accessors
+   * it stands for would return it (e.g. with trimNewlines()' newlines as
+   * spaces), without copying it.  It's reused, so it's only good until the
+   * tokenizer moves on; toString() makes the String.
+   */
+  public static final class TextView implements CharSequence {
+    private String text;
+    private int start;
+    private int end;
+    private boolean newlinesToSpaces;
+
+    private TextView set(final String text, final int start, final int end, final boolean newlinesToSpaces) {
+      this.text = text;
+      this.start = start;
+      this.end = end;
+      this.newlinesToSpaces = newlinesToSpaces;
+      return this;
+    }
+
+    // Where it is in the text being tokenized.
+    public int start() {
+      return start;
+    }
+
+    public int end() {
+      return end;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(final int index) {
+      final char c = text.charAt(start + index);
+      return newlinesToSpaces && c == '\n' ? ' ' : c;
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+      return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+      final String s = text.substring(start, end);
+      return newlinesToSpaces ? s.replace('\n', ' ') : s;
+    }
+
+    public StringBuilder appendTo(final StringBuilder builder) {
+      if (!newlinesToSpaces) {
+        return builder.append(text, start, end);
+      }
+      for (int i = start; i < end; ++i) {
+        final char c = text.charAt(i);
+        builder.append(c == '\n' ? ' ' : c);
+      }
+      return builder;
+    }
+
+    public boolean contentEquals(final String s) {
+      return s.length() == length() && regionMatches(0, s);
+    }
+
+    public boolean startsWith(final String prefix) {
+      return prefix.length() <= length() && regionMatches(0, prefix);
+    }
+
+    public boolean endsWith(final String suffix) {
+      return suffix.length() <= length() && regionMatches(length() - suffix.length(), suffix);
+    }
+
+    private boolean regionMatches(final int offset, final String s) {
+      for (int i = 0; i < s.length(); ++i) {
+        if (charAt(offset + i) != s.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+  
   public static class DoNothingCallback implements Callback {
 
     @Override
@@ -89,10 +210,41 @@ public final class WikiTokenizer {
         "<ref>|" +
   		"$)", Pattern.MULTILINE);
   private static final String listChars = "*#:;";
-  
+
+  // What wikiTokenEvent matches, found by findEvent().
+  private static final int OPEN_FUNCTION = 1;  // {{
+  private static final int CLOSE_FUNCTION = 2;  // }}
+  private static final int OPEN_LINK = 3;  // [[
+  private static final int CLOSE_LINK = 4;  // ]]
+  private static final int PIPE = 5;
+  private static final int EQUALS = 6;
+  private static final int OPEN_COMMENT = 7;  // <!--
+  private static final int MARKUP = 8;  // ''
+  private static final int HTML = 9;  // <pre>, <math> or <ref>
+  private static final int LINE_END = 10;  // $, which matches nothing
+
+  // The chars below 128 an event can start at.
+  private static final boolean[] EVENT_CHARS = new boolean[128];
+  static {
+    for (final char c : "{}[]|=<'\n\r".toCharArray()) {
+      EVENT_CHARS[c] = true;
+    }
+  }
+
+  /**
+   * Tokenize with wikiTokenEvent instead of the hand-written scanner in
+   * findEvent(), to check that they agree.  Read when a tokenizer is made.
+   */
+  public static boolean useRegexScanner = false;
     
-  final String wikiText;
-  final Matcher matcher;
+  String wikiText;
+  // Only for useRegexScanner.
+  Matcher matcher;
+
+  // The last event findEvent() found.
+  private int event;
+  private int eventStart;
+  private int eventEnd;
 
   boolean justReturnedNewline = true;
   int lastLineStart = 0;
@@ -100,10 +252,33 @@ public final class WikiTokenizer {
   int start = -1;
 
   final List<String> errors = new ArrayList<String>();
-  final List<String> tokenStack = new ArrayList<String>();
+  // The OPEN_FUNCTION and OPEN_LINK events escapedFindEnd() is inside, where
+  // each one ends, and the first LINE_END since (or -1).
+  private int[] tokenStack = new int[16];
+  private int[] tokenStackEnds = new int[16];
+  private int[] tokenStackNewlines = new int[16];
+  private int tokenStackSize = 0;
+  // tokenStack entries from here on haven't seen a LINE_END yet.
+  private int tokenStackWithoutNewline = 0;
+
+  // How escapedFindEnd() went from the end of each {{ or [[ it has seen
+  // fail, so that it doesn't scan the rest of a broken page again for every
+  // one of them.
+  private final Map<Integer, FailedScan> failedScans = new HashMap<Integer, FailedScan>();
+
+  // What indexOf() last found for each of INDEX_OF_TARGETS, and where it
+  // started looking.
+  private static final String[] INDEX_OF_TARGETS = { "\n", "-->", "</pre>", "</ref>", "</math>" };
+  private final int[] indexOfFrom = new int[INDEX_OF_TARGETS.length];
+  private final int[] indexOfFound = new int[INDEX_OF_TARGETS.length];
+
+  // How many events findEvent() has found and chars indexOf() has looked at
+  // since reset(), so tests can check that this stays linear.
+  long scanned;
   
 
-  private String headingWikiText;
+  private int headingWikiTextStart;
+  private int headingWikiTextEnd;
   private int headingDepth;
   private int listPrefixEnd;
   private boolean isPlainText;
@@ -116,27 +291,72 @@ public final class WikiTokenizer {
   
   private int lastUnescapedPipePos;
   private int lastUnescapedEqualsPos;
+  // Where each function arg is: its start, its unescaped = (or -1), and its
+  // end.  They're only made into positionArgs and namedArgs if someone asks.
+  private int[] argBounds = new int[3 * 8];
+  private int argCount;
+  private boolean argsParsed;
   private final List<String> positionArgs = new ArrayList<String>();
   private final Map<String,String> namedArgs = new LinkedHashMap<String,String>();
+  private final List<String> lazyPositionArgs = new LazyPositionArgs();
+  private final Map<String,String> lazyNamedArgs = new LazyNamedArgs();
+
+  // Made the first time they're asked for.
+  private TextView tokenView;
+  private TextView headingWikiTextView;
+  private TextView listItemWikiTextView;
+  private TextView functionNameView;
+  private TextView wikiLinkTextView;
+  private TextView wikiLinkDestView;
   
 
   public WikiTokenizer(final String wikiText) {
     this(wikiText, true);
   }
 
-  public WikiTokenizer(String wikiText, final boolean isNewline) {
-    wikiText = wikiText.replaceAll("\u2028", "\n");
-    wikiText = wikiText.replaceAll("\u0085", "\n");
-    this.wikiText = wikiText;
-    this.matcher = wikiTokenEvent.matcher(wikiText);
+  public WikiTokenizer(final String wikiText, final boolean isNewline) {
+    reset(wikiText, isNewline);
+  }
+
+  /**
+   * Starts over on wikiText, as new WikiTokenizer(wikiText, isNewline)
+   * would, but with what this one has already allocated.
+   */
+  public WikiTokenizer reset(final String wikiText, final boolean isNewline) {
+    this.wikiText = normalizeNewlines(wikiText);
+    if (!useRegexScanner) {
+      matcher = null;
+    } else if (matcher == null) {
+      matcher = wikiTokenEvent.matcher(this.wikiText);
+    } else {
+      matcher.reset(this.wikiText);
+    }
     justReturnedNewline = isNewline;
+    lastLineStart = 0;
+    end = 0;
+    start = -1;
+    failedScans.clear();
+    Arrays.fill(indexOfFrom, Integer.MAX_VALUE);
+    scanned = 0;
+    clear();
+    return this;
+  }
+
+  // Makes every line terminator findEvent() knows a \n, since only a \n
+  // becomes a token of its own: anything else would be an empty token that
+  // nextToken() couldn't get past.
+  static String normalizeNewlines(String wikiText) {
+    if (wikiText.indexOf('\r') != -1) {
+      wikiText = wikiText.replace("\r\n", "\n").replace('\r', '\n');
+    }
+    return wikiText.replace('\u2028', '\n').replace('\u0085', '\n').replace('\u2029', '\n');
   }
 
   private void clear() {
     errors.clear();
-    tokenStack.clear();
+    tokenStackSize = 0;
+    tokenStackWithoutNewline = 0;
 
-    headingWikiText = null;
     headingDepth = -1;
     listPrefixEnd = -1;
     isPlainText = false;
@@ -149,30 +369,110 @@ public final class WikiTokenizer {
     firstUnescapedPipePos = -1;
     lastUnescapedPipePos = -1;
     lastUnescapedEqualsPos = -1;
-    positionArgs.clear();
-    namedArgs.clear();
+    argCount = 0;
+    if (argsParsed) {
+      argsParsed = false;
+      positionArgs.clear();
+      namedArgs.clear();
+    }
+  }
+
+  // What the tokenizer would find more in than plain text: {{, [[, <!--, '',
+  // <pre>, <math>, <ref> or \n.
+  static boolean isPossibleWikiText(final String wikiText) {
+    final int len = wikiText.length();
+    for (int i = 0; i < len; ++i) {
+      final char c = wikiText.charAt(i);
+      final char next = i + 1 < len ? wikiText.charAt(i + 1) : 0;
+      if (c == '\n' || (c == '{' && next == '{') || (c == '[' && next == '[') || (c == '\'' && next == '\'')) {
+        return true;
+      }
+      if (c == '<' && (wikiText.startsWith("<!--", i) || wikiText.startsWith("<pre>", i)
+          || wikiText.startsWith("<math>", i) || wikiText.startsWith("<ref>", i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The tokenizers dispatch() is using on a thread, one for each level it's
+  // called recursively at, kept to be reused.
+  private static final class DispatchStack {
+    final List<WikiTokenizer> tokenizers = new ArrayList<WikiTokenizer>();
+    int depth = 0;
+
+    WikiTokenizer push(final String wikiText, final boolean isNewline) {
+      if (depth == tokenizers.size()) {
+        tokenizers.add(new WikiTokenizer(wikiText, isNewline));
+        return tokenizers.get(depth++);
+      }
+      return tokenizers.get(depth++).reset(wikiText, isNewline);
+    }
+
+    void pop() {
+      --depth;
+    }
+  }
+
+  private static final ThreadLocal<DispatchStack> dispatchStack = new ThreadLocal<DispatchStack>() {
+    @Override
+    protected DispatchStack initialValue() {
+      return new DispatchStack();
+    }
+  };
+
+  // Where errors go on a thread.
+  private static final class ErrorContext {
+    ErrorSink sink = IGNORE_ERRORS;
+    String title;
+  }
+
+  private static final ThreadLocal<ErrorContext> errorContext = new ThreadLocal<ErrorContext>() {
+    @Override
+    protected ErrorContext initialValue() {
+      return new ErrorContext();
+    }
+  };
+
+  /**
+   * Sends the errors tokenizers find on this thread to sink, until it's
+   * called again.  Until then they go to IGNORE_ERRORS.  They're still in
+   * errors() either way.
+   */
+  public static void setErrorSink(final ErrorSink sink) {
+    errorContext.get().sink = sink;
   }
 
-  private static final Pattern POSSIBLE_WIKI_TEXT = Pattern.compile(
-      "\\{\\{|" +
-      "\\[\\[|" +
-      "<!--|" +
-      "''|" +
-      "<pre>|" +
-      "<math>|" +
-      "<ref>|" +
-      "[\n]"
-      );
+  /**
+   * Sends the errors tokenizers find on this thread with title, until it's
+   * called again.
+   */
+  public static void setErrorTitle(final String title) {
+    errorContext.get().title = title;
+  }
 
+  /**
+   * Tokenizes wikiText, and calls callback for each token.  The tokenizer
+   * the callback gets is reused once this returns, so it mustn't be kept
+   * (nor its args).  The callback can call dispatch() itself.
+   */
   public static void dispatch(final String wikiText, final boolean isNewline, final Callback callback) {
     // Optimization...
-    if (!POSSIBLE_WIKI_TEXT.matcher(wikiText).find()) {
+    if (!isPossibleWikiText(wikiText)) {
       callback.onPlainText(wikiText);
-    } else {
-      final WikiTokenizer tokenizer = new WikiTokenizer(wikiText, isNewline);
+      return;
+    }
+    final DispatchStack stack = dispatchStack.get();
+    final WikiTokenizer tokenizer = stack.push(wikiText, isNewline);
+    try {
+      final ViewCallback viewCallback = callback instanceof ViewCallback ? (ViewCallback) callback : null;
       while (tokenizer.nextToken() != null) {
         if (tokenizer.isPlainText()) {
-          callback.onPlainText(tokenizer.token());
+          if (viewCallback != null) {
+            viewCallback.onPlainText(tokenizer.tokenView());
+          } else {
+            callback.onPlainText(tokenizer.token());
+          }
         } else if (tokenizer.isMarkup()) {
           callback.onMarkup(tokenizer);
         } else if (tokenizer.isWikiLink()) {
@@ -190,11 +490,13 @@ public final class WikiTokenizer {
         } else if (tokenizer.isHtml()) {
           callback.onHtml(tokenizer);
         } else if (!tokenizer.errors.isEmpty()) {
-          // Log was already printed....
+          // Already sent to the ErrorSink....
         } else {
           throw new IllegalStateException("Unknown wiki state: " + tokenizer.token());
         }
       }
+    } finally {
+      stack.pop();
     }
   }
   
@@ -212,12 +514,16 @@ public final class WikiTokenizer {
   }
   
   public boolean isHeading() {
-    return headingWikiText != null;
+    return headingDepth != -1;
   }
   
   public String headingWikiText() {
+    return headingWikiTextView().toString();
+  }
+
+  public TextView headingWikiTextView() {
     assert isHeading();
-    return headingWikiText;
+    return headingWikiTextView = view(headingWikiTextView, headingWikiTextStart, headingWikiTextEnd, false);
   }
   
   public int headingDepth() {
@@ -250,8 +556,12 @@ public final class WikiTokenizer {
   }
 
   public String listItemWikiText() {
+    return listItemWikiTextView().toString();
+  }
+
+  public TextView listItemWikiTextView() {
     assert isListItem();
-    return wikiText.substring(listPrefixEnd, end);
+    return listItemWikiTextView = view(listItemWikiTextView, listPrefixEnd, end, false);
   }
   
   public boolean isFunction() {
@@ -259,21 +569,145 @@ public final class WikiTokenizer {
   }
 
   public String functionName() {
+    return functionNameView().toString();
+  }
+
+  public TextView functionNameView() {
     assert isFunction();
     // "{{.."
-    if (firstUnescapedPipePos != -1) {
-      return trimNewlines(wikiText.substring(start + 2, firstUnescapedPipePos).trim());
+    int nameStart = start + 2;
+    int nameEnd = firstUnescapedPipePos != -1 ? firstUnescapedPipePos : Math.max(start + 2, end - 2);
+    // As String.trim() does.
+    while (nameStart < nameEnd && wikiText.charAt(nameStart) <= ' ') {
+      ++nameStart;
     }
-    final int safeEnd = Math.max(start + 2, end - 2);
-    return trimNewlines(wikiText.substring(start + 2, safeEnd).trim());
+    while (nameEnd > nameStart && wikiText.charAt(nameEnd - 1) <= ' ') {
+      --nameEnd;
+    }
+    return functionNameView = trimNewlines(functionNameView, nameStart, nameEnd);
   }
   
+  /**
+   * The function's args without names.  They're only parsed once they're
+   * used, so looking at just the name costs nothing.
+   */
   public List<String> functionPositionArgs() {
-    return positionArgs;
+    return lazyPositionArgs;
   }
 
   public Map<String, String> functionNamedArgs() {
-    return namedArgs;
+    return lazyNamedArgs;
+  }
+
+  private void parseArgs() {
+    if (argsParsed) {
+      return;
+    }
+    argsParsed = true;
+    for (int i = 0; i < 3 * argCount; i += 3) {
+      final int argStart = argBounds[i];
+      final int equalsPos = argBounds[i + 1];
+      final int argEnd = argBounds[i + 2];
+      if (equalsPos != -1) {
+        final String key = wikiText.substring(argStart, equalsPos);
+        final String value = wikiText.substring(equalsPos + 1, argEnd);
+        namedArgs.put(trimNewlines(key), trimNewlines(value));
+      } else {
+        positionArgs.add(trimNewlines(wikiText.substring(argStart, argEnd)));
+      }
+    }
+  }
+
+  // positionArgs, parsed the first time anything looks at it.
+  private final class LazyPositionArgs extends AbstractList<String> implements RandomAccess {
+    @Override
+    public String get(final int index) {
+      parseArgs();
+      return positionArgs.get(index);
+    }
+
+    @Override
+    public int size() {
+      parseArgs();
+      return positionArgs.size();
+    }
+
+    @Override
+    public String set(final int index, final String element) {
+      parseArgs();
+      return positionArgs.set(index, element);
+    }
+
+    @Override
+    public void add(final int index, final String element) {
+      parseArgs();
+      ++modCount;
+      positionArgs.add(index, element);
+    }
+
+    @Override
+    public String remove(final int index) {
+      parseArgs();
+      ++modCount;
+      return positionArgs.remove(index);
+    }
+  }
+
+  // namedArgs, parsed the first time anything looks at it.
+  private final class LazyNamedArgs extends AbstractMap<String, String> {
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      parseArgs();
+      return namedArgs.entrySet();
+    }
+
+    @Override
+    public Set<String> keySet() {
+      parseArgs();
+      return namedArgs.keySet();
+    }
+
+    @Override
+    public Collection<String> values() {
+      parseArgs();
+      return namedArgs.values();
+    }
+
+    @Override
+    public int size() {
+      parseArgs();
+      return namedArgs.size();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      parseArgs();
+      return namedArgs.containsKey(key);
+    }
+
+    @Override
+    public String get(final Object key) {
+      parseArgs();
+      return namedArgs.get(key);
+    }
+
+    @Override
+    public String put(final String key, final String value) {
+      parseArgs();
+      return namedArgs.put(key, value);
+    }
+
+    @Override
+    public String remove(final Object key) {
+      parseArgs();
+      return namedArgs.remove(key);
+    }
+
+    @Override
+    public void clear() {
+      parseArgs();
+      namedArgs.clear();
+    }
   }
 
   public boolean isPlainText() {
@@ -285,20 +719,29 @@ public final class WikiTokenizer {
   }
 
   public String wikiLinkText() {
+    return wikiLinkTextView().toString();
+  }
+
+  public TextView wikiLinkTextView() {
     assert isWikiLink();
     // "[[.."
     if (lastUnescapedPipePos != -1) {
-      return trimNewlines(wikiText.substring(lastUnescapedPipePos + 1, end - 2));
+      return wikiLinkTextView = trimNewlines(wikiLinkTextView, lastUnescapedPipePos + 1, end - 2);
     }
     assert start + 2 < wikiText.length() && end >= 2: wikiText;
-    return trimNewlines(wikiText.substring(start + 2, end - 2));
+    return wikiLinkTextView = trimNewlines(wikiLinkTextView, start + 2, end - 2);
   }
 
   public String wikiLinkDest() {
+    final TextView wikiLinkDest = wikiLinkDestView();
+    return wikiLinkDest == null ? null : wikiLinkDest.toString();
+  }
+
+  public TextView wikiLinkDestView() {
     assert isWikiLink();
     // "[[.."
     if (firstUnescapedPipePos != -1) {
-      return trimNewlines(wikiText.substring(start + 2, firstUnescapedPipePos));
+      return wikiLinkDestView = trimNewlines(wikiLinkDestView, start + 2, firstUnescapedPipePos);
     }
     return null;
   }
@@ -330,8 +773,6 @@ public final class WikiTokenizer {
       lastLineStart = start;
     }
     
-    try {
-    
     final int len = wikiText.length();
     if (start >= len) {
       return null;
@@ -357,7 +798,7 @@ public final class WikiTokenizer {
         headingDepth = headerTitleStart - headerStart;
         // Skip non-=...
         if (end < len) {
-          final int nextNewline = safeIndexOf(wikiText, end, "\n", "\n");
+          final int nextNewline = safeIndexOf(end, "\n", "\n");
           final int closingEquals = escapedFindEnd(end, "=");
           if (wikiText.charAt(closingEquals - 1) == '=') {
             end = closingEquals - 1;
@@ -366,12 +807,13 @@ public final class WikiTokenizer {
           }
         }
         final int headerTitleEnd = end;
-        headingWikiText = wikiText.substring(headerTitleStart, headerTitleEnd);
+        headingWikiTextStart = headerTitleStart;
+        headingWikiTextEnd = headerTitleEnd;
         // Skip ===...
         while (end < len && ++end < len && wikiText.charAt(end) == '=') {}
         final int headerEnd = end;
         if (headerEnd - headerTitleEnd != headingDepth) {
-          errors.add("Mismatched header depth: " + token());
+          error("Mismatched header depth");
         }
         return this;
       }
@@ -408,31 +850,31 @@ public final class WikiTokenizer {
     }
 
     if (wikiText.startsWith("<pre>", start)) {
-      end = safeIndexOf(wikiText, start, "</pre>", "\n");
+      end = safeIndexOf(start, "</pre>", "\n");
       isHtml = true;
       return this;
     }
 
     if (wikiText.startsWith("<ref>", start)) {
-        end = safeIndexOf(wikiText, start, "</ref>", "\n");
+        end = safeIndexOf(start, "</ref>", "\n");
         isHtml = true;
         return this;
       }
 
     if (wikiText.startsWith("<math>", start)) {
-      end = safeIndexOf(wikiText, start, "</math>", "\n");
+      end = safeIndexOf(start, "</math>", "\n");
       isHtml = true;
       return this;
     }
 
     if (wikiText.startsWith("<!--", start)) {
       isComment = true;
-      end = safeIndexOf(wikiText, start, "-->", "\n");
+      end = safeIndexOf(start, "-->", "\n");
       return this;
     }
 
     if (wikiText.startsWith("}}", start) || wikiText.startsWith("]]", start)) {
-      errors.add("Close without open!");
+      error("Close without open");
       end += 2;
       return this;
     }
@@ -444,25 +886,20 @@ public final class WikiTokenizer {
     }
 
     
-    if (this.matcher.find(start)) {
-      end = this.matcher.start(1);
+    if (findEvent(start)) {
+      end = eventStart;
       isPlainText = true;
       if (end == start) {
-        errors.add("Empty group: " + this.matcher.group());
+        error("Empty group");
         assert false;
+        // Keep going forward anyway.
+        ++end;
       }
       return this;
     }
     
     end = wikiText.length();
     return this;
-    
-    } finally {
-      if (!errors.isEmpty()) {
-        System.err.println("Errors: " + errors + ", token=" + token());
-      }
-    }
-    
   }
   
   public String token() {
@@ -470,106 +907,343 @@ public final class WikiTokenizer {
     assert token.equals("\n") || !token.endsWith("\n") : "token='" + token + "'";
     return token;
   }
+
+  public TextView tokenView() {
+    return tokenView = view(tokenView, start, end, false);
+  }
+
+  private TextView view(final TextView view, final int start, final int end, final boolean newlinesToSpaces) {
+    return (view == null ? new TextView() : view).set(wikiText, start, end, newlinesToSpaces);
+  }
+
+  // What trimNewlines() would make of a range.
+  private TextView trimNewlines(final TextView view, int start, int end) {
+    while (start < end && wikiText.charAt(start) == '\n') {
+      ++start;
+    }
+    while (end > start && wikiText.charAt(end - 1) == '\n') {
+      --end;
+    }
+    return view(view, start, end, true);
+  }
   
   private int escapedFindEnd(final int start, final String toFind) {
-    assert tokenStack.isEmpty();
+    assert tokenStackSize == 0;
     
-    final boolean insideFunction = toFind.equals("}}");
+    final int toFindEvent;
+    if (toFind.equals("}}")) {
+      toFindEvent = CLOSE_FUNCTION;
+    } else if (toFind.equals("]]")) {
+      toFindEvent = CLOSE_LINK;
+    } else if (toFind.equals("=")) {
+      toFindEvent = EQUALS;
+    } else {
+      assert toFind.equals("\n") : toFind;
+      toFindEvent = LINE_END;
+    }
+    final boolean insideFunction = toFindEvent == CLOSE_FUNCTION;
+
+    if (toFindEvent == CLOSE_FUNCTION || toFindEvent == CLOSE_LINK) {
+      // Some earlier scan may have been through here already.
+      final FailedScan failedScan = failedScans.isEmpty() ? null : failedScans.get(start);
+      if (failedScan != null && (failedScan.error != UNCLOSED || failedScan.firstNewline != -1)) {
+        return fail(start, toFind, failedScan.error, failedScan.firstNewline);
+      }
+    }
     
     int end = start;
     int firstNewline = -1;
     while (end < wikiText.length()) {
-      if (matcher.find(end)) {
-        final String matchText = matcher.group();
-        final int matchStart = matcher.start();
+      if (findEvent(end)) {
+        final int matchStart = eventStart;
         
-        assert matcher.end() > end || matchText.length() == 0: "Group=" + matcher.group();
-        if (matchText.length() == 0) {
+        assert eventEnd > end || event == LINE_END: "Event=" + event;
+        if (event == LINE_END) {
           assert matchStart == wikiText.length() || wikiText.charAt(matchStart) == '\n' : wikiText + ", " + matchStart;
           if (firstNewline == -1) {
-            firstNewline = matcher.end();
+            firstNewline = eventEnd;
           }
-          if (tokenStack.isEmpty() && toFind.equals("\n")) {
+          sawNewline(eventEnd);
+          if (tokenStackSize == 0 && toFindEvent == LINE_END) {
             return matchStart;
           }
           ++end;
-        } else if (tokenStack.isEmpty() && matchText.equals(toFind)) {
+        } else if (tokenStackSize == 0 && event == toFindEvent) {
           // The normal return....
           if (insideFunction) {
             addFunctionArg(insideFunction, matchStart);
           }
-          return matcher.end();
-        } else if (matchText.equals("[[") || matchText.equals("{{")) {
-          tokenStack.add(matchText);
-        } else if (matchText.equals("]]") || matchText.equals("}}")) {
-          if (tokenStack.size() > 0) {
-            final String removed = tokenStack.remove(tokenStack.size() - 1);
-            if (removed.equals("{{") && !matcher.group().equals("}}")) {
-              errors.add("Unmatched {{ error: " + wikiText.substring(start));
-              return safeIndexOf(wikiText, start, "\n", "\n");
-            } else if (removed.equals("[[") && !matcher.group().equals("]]")) {
-              errors.add("Unmatched [[ error: " + wikiText.substring(start));
-              return safeIndexOf(wikiText, start, "\n", "\n");
+          return eventEnd;
+        } else if (event == OPEN_LINK || event == OPEN_FUNCTION) {
+          final FailedScan failedScan = failedScans.isEmpty() ? null : failedScans.get(eventEnd);
+          if (failedScan != null) {
+            // We'd see what that scan saw, inside this {{ or [[ instead of
+            // at its top.
+            if (failedScan.error == UNCLOSED) {
+              if (failedScan.firstNewline != -1) {
+                if (firstNewline == -1) {
+                  firstNewline = failedScan.firstNewline;
+                }
+                sawNewline(failedScan.firstNewline);
+              }
+              return unclosed(start, toFind, firstNewline);
             }
+            final int error = failedScan.error != POP_TOO_MANY ? failedScan.error
+                : event == OPEN_FUNCTION ? UNMATCHED_FUNCTION : UNMATCHED_LINK;
+            failOpen(error, error);
+            return fail(start, toFind, error, -1);
+          }
+          if (tokenStackSize == tokenStack.length) {
+            tokenStack = Arrays.copyOf(tokenStack, tokenStackSize * 2);
+            tokenStackEnds = Arrays.copyOf(tokenStackEnds, tokenStackSize * 2);
+            tokenStackNewlines = Arrays.copyOf(tokenStackNewlines, tokenStackSize * 2);
+          }
+          tokenStack[tokenStackSize] = event;
+          tokenStackEnds[tokenStackSize] = eventEnd;
+          tokenStackNewlines[tokenStackSize] = -1;
+          ++tokenStackSize;
+        } else if (event == CLOSE_LINK || event == CLOSE_FUNCTION) {
+          if (tokenStackSize > 0) {
+            final int removed = tokenStack[tokenStackSize - 1];
+            if ((removed == OPEN_FUNCTION && event != CLOSE_FUNCTION) || (removed == OPEN_LINK && event != CLOSE_LINK)) {
+              final int error = removed == OPEN_FUNCTION ? UNMATCHED_FUNCTION : UNMATCHED_LINK;
+              failOpen(POP_TOO_MANY, error);
+              return fail(start, toFind, error, -1);
+            }
+            --tokenStackSize;
+            tokenStackWithoutNewline = Math.min(tokenStackWithoutNewline, tokenStackSize);
           } else {
-            errors.add("Pop too many error: " + wikiText.substring(start).replaceAll("\n", "\\\\n"));
             // If we were looking for a newline
-            return safeIndexOf(wikiText, start, "\n", "\n");
+            return fail(start, toFind, POP_TOO_MANY, -1);
           }
-        } else if (matchText.equals("|")) { 
-          if (tokenStack.isEmpty()) {
+        } else if (event == PIPE) { 
+          if (tokenStackSize == 0) {
             addFunctionArg(insideFunction, matchStart);
           }
-        } else if (matchText.equals("=")) {
-          if (tokenStack.isEmpty()) {
+        } else if (event == EQUALS) {
+          if (tokenStackSize == 0) {
             lastUnescapedEqualsPos = matchStart;
           }
           // Do nothing.  These can match spuriously, and if it's not the thing
           // we're looking for, keep on going.
-        } else if (matchText.equals("<!--")) {
-          end = wikiText.indexOf("-->");
+        } else if (event == OPEN_COMMENT) {
+          end = indexOf("-->", matchStart);
           if (end == -1) {
-            errors.add("Unmatched <!-- error: " + wikiText.substring(start));
-            return safeIndexOf(wikiText, start, "\n", "\n");
+            failOpen(UNMATCHED_COMMENT, UNMATCHED_COMMENT);
+            return fail(start, toFind, UNMATCHED_COMMENT, -1);
           }
-        } else if (matchText.equals("''") || (matchText.startsWith("<") && matchText.endsWith(">"))) {
+        } else if (event == MARKUP || event == HTML) {
           // Don't care.
         } else {
-          assert false : "Match text='" + matchText + "'";
+          assert false : "Event=" + event;
           throw new IllegalStateException();
         }
       } else {
         // Hmmm, we didn't find the closing symbol we were looking for...
-        errors.add("Couldn't find: " + toFind + ", "+ wikiText.substring(start));
-        return safeIndexOf(wikiText, start, "\n", "\n");
+        error("Couldn't find " + toFind.replace("\n", "\\n"));
+        return safeIndexOf(start, "\n", "\n");
       }
       
       // Inside the while loop.  Just go forward.
-      end = Math.max(end, matcher.end());
+      end = Math.max(end, eventEnd);
     }
-    if (toFind.equals("\n") && tokenStack.isEmpty()) {
+    if (toFindEvent == LINE_END && tokenStackSize == 0) {
       // We were looking for the end, we got it.
       return end;
     }
+    return unclosed(start, toFind, firstNewline);
+  }
+
+  // The ways a scan from the end of a {{ or [[ can fail.
+  private static final int UNMATCHED_FUNCTION = 1;  // A }} or ]] closed a {{ inside it.
+  private static final int UNMATCHED_LINK = 2;  // A }} or ]] closed a [[ inside it.
+  private static final int POP_TOO_MANY = 3;  // Its own {{ or [[ was closed by the wrong one.
+  private static final int UNMATCHED_COMMENT = 4;
+  private static final int UNCLOSED = 5;  // It ran off the end.
+
+  private static final class FailedScan {
+    final int error;
+    // For UNCLOSED, where the first LINE_END it saw ends (or -1).
+    final int firstNewline;
+
+    FailedScan(final int error, final int firstNewline) {
+      this.error = error;
+      this.firstNewline = firstNewline;
+    }
+  }
+
+  // The tokenStack entries without one get their first LINE_END.
+  private void sawNewline(final int newline) {
+    for (int i = tokenStackWithoutNewline; i < tokenStackSize; ++i) {
+      tokenStackNewlines[i] = newline;
+    }
+    tokenStackWithoutNewline = tokenStackSize;
+  }
+
+  // Remembers how a scan from each tokenStack entry would have failed: the
+  // innermost one with innermostError, the rest with error.
+  private void failOpen(final int innermostError, final int error) {
+    for (int i = 0; i < tokenStackSize; ++i) {
+      failedScans.put(tokenStackEnds[i], new FailedScan(i == tokenStackSize - 1 ? innermostError : error, -1));
+    }
+    tokenStackSize = 0;
+  }
+
+  // Where a scan from start that ran off the end of wikiText ends.
+  private int unclosed(final int start, final String toFind, final int firstNewline) {
+    for (int i = 0; i < tokenStackSize; ++i) {
+      failedScans.put(tokenStackEnds[i], new FailedScan(UNCLOSED, tokenStackNewlines[i]));
+    }
+    tokenStackSize = 0;
     if (firstNewline != -1) {
-      errors.add("Couldn't find: " + toFind + ", "+ wikiText.substring(start));
+      return fail(start, toFind, UNCLOSED, firstNewline);
+    }
+    return wikiText.length();
+  }
+
+  // Records the error a scan from start failed with, and returns where its
+  // token ends.
+  private int fail(final int start, final String toFind, final int error, final int firstNewline) {
+    if (error == UNMATCHED_FUNCTION) {
+      error("Unmatched {{");
+    } else if (error == UNMATCHED_LINK) {
+      error("Unmatched [[");
+    } else if (error == POP_TOO_MANY) {
+      error("Pop too many");
+    } else if (error == UNMATCHED_COMMENT) {
+      error("Unmatched <!--");
+    } else {
+      assert error == UNCLOSED && firstNewline != -1;
+      error("Couldn't find " + toFind.replace("\n", "\\n"));
       return firstNewline;
     }
-    return end;
+    return safeIndexOf(start, "\n", "\n");
+  }
+
+  // Adds an error in the current token to errors, and sends it to this
+  // thread's ErrorSink, with a bit of the token instead of the whole rest of
+  // the page.
+  private void error(final String kind) {
+    final int excerptEnd = Math.min(start + 40, wikiText.length());
+    final String excerpt = wikiText.substring(start, excerptEnd).replace("\n", "\\n")
+        + (excerptEnd < wikiText.length() ? "..." : "");
+    errors.add(kind + ": " + excerpt);
+    final ErrorContext context = errorContext.get();
+    context.sink.onError(context.title, kind, start, excerpt);
+  }
+
+
+  /**
+   * Finds the first place at or after from that wikiTokenEvent matches, and
+   * which of its alternatives matches there, as matcher.find(from) would.
+   * @return false if there's none, which can't happen, since $ matches at
+   *         the end.
+   */
+  private boolean findEvent(final int from) {
+    if (matcher != null) {
+      if (!matcher.find(from)) {
+        return false;
+      }
+      eventStart = matcher.start();
+      eventEnd = matcher.end();
+      event = eventAt(eventStart);
+      assert event != 0 && eventEnd - eventStart == eventLength(event, eventStart) : matcher.group();
+      scanned += 1 + eventEnd - from;
+      return true;
+    }
+    final int len = wikiText.length();
+    for (int i = from; i < len; ++i) {
+      final char c = wikiText.charAt(i);
+      if (c < 128 ? !EVENT_CHARS[c] : (c != '\u0085' && c != '\u2028' && c != '\u2029')) {
+        continue;
+      }
+      final int found = eventAt(i);
+      if (found != 0) {
+        event = found;
+        eventStart = i;
+        eventEnd = i + eventLength(found, i);
+        scanned += 1 + eventEnd - from;
+        return true;
+      }
+    }
+    event = LINE_END;
+    eventStart = eventEnd = len;
+    scanned += 1 + len - from;
+    return true;
+  }
+
+  /**
+   * @return the event wikiTokenEvent matches at i, in the order of its
+   *         alternatives, or 0 if none.
+   */
+  private int eventAt(final int i) {
+    if (i == wikiText.length()) {
+      return LINE_END;
+    }
+    final char c = wikiText.charAt(i);
+    final char next = i + 1 < wikiText.length() ? wikiText.charAt(i + 1) : 0;
+    switch (c) {
+    case '{':
+      return next == '{' ? OPEN_FUNCTION : 0;
+    case '}':
+      return next == '}' ? CLOSE_FUNCTION : 0;
+    case '[':
+      return next == '[' ? OPEN_LINK : 0;
+    case ']':
+      return next == ']' ? CLOSE_LINK : 0;
+    case '|':
+      return PIPE;
+    case '=':
+      return EQUALS;
+    case '<':
+      if (wikiText.startsWith("<!--", i)) {
+        return OPEN_COMMENT;
+      }
+      return wikiText.startsWith("<pre>", i) || wikiText.startsWith("<math>", i) || wikiText.startsWith("<ref>", i) ? HTML : 0;
+    case '\'':
+      return next == '\'' ? MARKUP : 0;
+    case '\n':
+      // MULTILINE $ matches before a line terminator, but not inside \r\n.
+      return i > 0 && wikiText.charAt(i - 1) == '\r' ? 0 : LINE_END;
+    case '\r':
+    case '\u0085':
+    case '\u2028':
+    case '\u2029':
+      return LINE_END;
+    default:
+      return 0;
+    }
+  }
+
+  private int eventLength(final int event, final int i) {
+    switch (event) {
+    case PIPE:
+    case EQUALS:
+      return 1;
+    case OPEN_COMMENT:
+      return 4;
+    case HTML:
+      return wikiText.startsWith("<math>", i) ? 6 : 5;
+    case LINE_END:
+      return 0;
+    default:
+      return 2;
+    }
   }
 
   private void addFunctionArg(final boolean insideFunction, final int matchStart) {
     if (firstUnescapedPipePos == -1) {
       firstUnescapedPipePos = lastUnescapedPipePos = matchStart;
     } else if (insideFunction) {
-      if (lastUnescapedEqualsPos > lastUnescapedPipePos) {
-        final String key = wikiText.substring(lastUnescapedPipePos + 1, lastUnescapedEqualsPos);
-        final String value = wikiText.substring(lastUnescapedEqualsPos + 1, matchStart);
-        namedArgs.put(trimNewlines(key), trimNewlines(value));
-      } else {
-        final String value = wikiText.substring(lastUnescapedPipePos + 1, matchStart);
-        positionArgs.add(trimNewlines(value));
+      if (3 * argCount == argBounds.length) {
+        final int[] newArgBounds = new int[argBounds.length * 2];
+        System.arraycopy(argBounds, 0, newArgBounds, 0, argBounds.length);
+        argBounds = newArgBounds;
       }
+      final int i = 3 * argCount++;
+      argBounds[i] = lastUnescapedPipePos + 1;
+      argBounds[i + 1] = lastUnescapedEqualsPos > lastUnescapedPipePos ? lastUnescapedEqualsPos : -1;
+      argBounds[i + 2] = matchStart;
     }
     lastUnescapedPipePos = matchStart;
   }
@@ -581,20 +1255,41 @@ public final class WikiTokenizer {
     while (s.endsWith("\n")) {
       s = s.substring(0, s.length() - 1);
     }
-    return s.replaceAll("\n", " ");
+    return s.replace('\n', ' ');
   }
 
-  static int safeIndexOf(final String s, final int start, final String target, final String backup) {
-    int close = s.indexOf(target, start);
+  private int safeIndexOf(final int start, final String target, final String backup) {
+    int close = indexOf(target, start);
     if (close != -1) {
       // Don't step over a \n.
       return close + (target.equals("\n") ? 0 : target.length());
     }
-    close = s.indexOf(backup, start);
+    close = indexOf(backup, start);
     if (close != -1) {
       return close + (backup.equals("\n") ? 0 : backup.length());
     }
-    return s.length();
+    return wikiText.length();
+  }
+
+  /**
+   * wikiText.indexOf(target, from), for one of INDEX_OF_TARGETS.  If it
+   * already looked from before from and found something at or after from
+   * (or nothing), that's the answer, so a page full of unclosed <pre>s, say,
+   * is only searched once.
+   */
+  private int indexOf(final String target, final int from) {
+    int i = 0;
+    while (!INDEX_OF_TARGETS[i].equals(target)) {
+      ++i;
+    }
+    if (indexOfFrom[i] <= from && (indexOfFound[i] == -1 || from <= indexOfFound[i])) {
+      return indexOfFound[i];
+    }
+    final int found = wikiText.indexOf(target, from);
+    scanned += 1 + (found == -1 ? wikiText.length() : found) - from;
+    indexOfFrom[i] = from;
+    indexOfFound[i] = found;
+    return found;
   }
 
   public static String toPlainText(final String wikiText) {
@@ -0,0 +1,192 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures what tokenizing costs, in time and in bytes allocated (where
+ * the JVM can count them).
+ *
+ * Dispatch: template-heavy text (like DictionaryBuilderTest.testItConj's),
+ * with every function arg, named arg and wiki link dispatched recursively,
+ * the way AppendAndIndexWikiCallback does.  Once with dispatch(), which
+ * reuses a tokenizer for each level, and once with a new tokenizer for
+ * every string that needs tokenizing, which is what dispatch() used to do.
+ *
+ * Broken pages: brokenPages() of 1000 and 4000 lines, tokenized at the top
+ * level.  Time per char should be about the same for both sizes.
+ */
+public final class WikiTokenizerBenchmark {
+
+  static final String IT_CONJ =
+      "{{it-conj-are|d|avere|pres2s=dai|pres3s=dà|pres3p=danno|prem1s=diedi|prem1s2=detti|prem2s=desti|prem3s=diede|prem3s2=dette|prem1p=demmo|prem2p=deste|prem3p=diedero|prem3p2=dettero|fut1s=darò|fut2s=darai|fut3s=darà|fut1p=daremo|fut2p=darete|fut3p=daranno|cond1s=darei|cond2s=daresti|cond3s=darebbe|cond1p=daremmo|cond2p=dareste|cond3p=darebbero|sub123s=dia|sub3p=diano|impsub12s=dessi|impsub3s=desse|impsub1p=dessimo|impsub2p=deste|impsub3p=dessero|imp2s=dà|imp2s2=dai|imp2s3=da'|imp3s=dia|imp3p=diano}}\n" +
+      "{{it-conj-ere|sed|essere|pres1s=siedo|pres1s2=seggo|pres2s=siedi|pres3s=siede|pres3p=siedono|pres3p2=seggono|fut1s2=siederò|fut2s2=siederai|fut3s2=siederà|fut1p2=siederemo|fut2p2=siederete|fut3p2=siederanno|cond1s2=siederei|cond2s2=siederesti|cond3s2=siederebbe|cond1p2=siederemmo|cond2p2=siedereste|cond3p2=siederebbero|sub123s=sieda|sub3p=siedano|imp2s=siedi|imp3s=sieda|imp3s2=segga|imp3p=siedano|imp3p2=seggano}}\n" +
+      "{{it-conj-ere|persuad|avere|pastp=persuaso|prem1s=persuasi|prem3s=persuase|prem3s2=''|prem3p=persuasero|prem3p2=''}}\n" +
+      "{{it-conj-ire|copr|avere|pastp=coperto|prem1s2=copersi|prem3s2=coperse|prem3p2=copersero}}\n" +
+      "{{term||[[cor#Latin|Cor]] [[Carolus#Latin|Carolī]]|Charles' heart}}\n" +
+      "{{term|sc=Grek|λόγος|tr=lógos||word}}\n" +
+      "# {{context|transitive|lang=it}} to [[give]] {{qualifier|{{l|en|something}} to [[someone]]}}\n" +
+      "#: {{term|{{l|it|dare}} {{l|it|una mano}}|lang=it|to lend a hand}}\n";
+
+  public static void main(final String[] args) {
+    final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    // Twice, so the second time is warmed up.
+    for (int i = 0; i < 2; ++i) {
+      run("dispatch, reused tokenizers", new NestingCallback(true), IT_CONJ, iterations);
+      run("dispatch, new tokenizers", new NestingCallback(false), IT_CONJ, iterations);
+      for (final int lines : new int[] { 1000, 4000 }) {
+        for (final Map.Entry<String, String> page : brokenPages(lines).entrySet()) {
+          runTokenizer(page.getKey() + " x" + lines, page.getValue(), Math.max(1, iterations / lines));
+        }
+      }
+    }
+  }
+
+  /**
+   * Worst cases for tokenizing, each with about n lines.
+   */
+  static Map<String, String> brokenPages(final int n) {
+    final Map<String, String> pages = new LinkedHashMap<String, String>();
+    pages.put("unclosed {{ lines", repeat("{{a|b\n", n));
+    pages.put("unclosed [[ lines, then }}", repeat("[[a|b\n", n) + "}}");
+    pages.put("unclosed {{ in list items", repeat("* {{a\n", n));
+    pages.put("unclosed {{ in headings", repeat("== {{a ==\n", n));
+    pages.put("deep nesting", repeat("{{a|", n) + repeat("}}", n));
+    pages.put("deep nesting, unclosed", repeat("{{a|[[", n) + "\n");
+    pages.put("comments in an unclosed {{", "{{a" + repeat("|<!-- b -->\n", n));
+    pages.put("unclosed <!-- in {{ lines", repeat("{{a <!--\n", n));
+    pages.put("unclosed <!-- lines", repeat("<!--\n", n));
+    pages.put("unclosed <pre> lines", repeat("<pre>\n", n));
+    pages.put("lone \\r lines", repeat("a\rb", n));
+    pages.put("\\u2029 lines", repeat("a\u2029b", n));
+    return pages;
+  }
+
+  private static String repeat(final String s, final int n) {
+    final StringBuilder builder = new StringBuilder(s.length() * n);
+    for (int i = 0; i < n; ++i) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+
+  static void run(final String name, final NestingCallback callback, final String wikiText, final int iterations) {
+    final long startBytes = allocatedBytes();
+    final long startNanos = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      callback.chars = 0;
+      callback.dispatch(wikiText);
+    }
+    final long nanos = System.nanoTime() - startNanos;
+    final long bytes = allocatedBytes() - startBytes;
+    System.out.println(String.format("%-30s %8d ns/iteration %10s bytes/iteration (%d chars)",
+        name, nanos / iterations, startBytes < 0 ? "?" : String.valueOf(bytes / iterations), callback.chars));
+  }
+
+  static void runTokenizer(final String name, final String wikiText, final int iterations) {
+    long scanned = 0;
+    final long startNanos = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      final WikiTokenizer tokenizer = new WikiTokenizer(wikiText);
+      while (tokenizer.nextToken() != null) {
+      }
+      scanned = tokenizer.scanned;
+    }
+    final long nanos = System.nanoTime() - startNanos;
+    System.out.println(String.format("%-40s %8.1f ns/char %6.1f scanned/char",
+        name, (double) nanos / iterations / wikiText.length(), (double) scanned / wikiText.length()));
+  }
+
+  /**
+   * @return the bytes the current thread has allocated so far, or -1 if
+   *         the JVM doesn't say.
+   */
+  static long allocatedBytes() {
+    final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+      if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+        return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  // Dispatches everything inside functions and links again, and counts the
+  // plain text it gets to.
+  static final class NestingCallback extends WikiTokenizer.DoNothingCallback implements WikiTokenizer.ViewCallback {
+    final boolean reuseTokenizers;
+    int chars;
+
+    NestingCallback(final boolean reuseTokenizers) {
+      this.reuseTokenizers = reuseTokenizers;
+    }
+
+    void dispatch(final String wikiText) {
+      if (reuseTokenizers) {
+        WikiTokenizer.dispatch(wikiText, false, this);
+        return;
+      }
+      if (!WikiTokenizer.isPossibleWikiText(wikiText)) {
+        onPlainText(wikiText);
+        return;
+      }
+      final WikiTokenizer tokenizer = new WikiTokenizer(wikiText, false);
+      while (tokenizer.nextToken() != null) {
+        if (tokenizer.isPlainText()) {
+          onPlainText(tokenizer.tokenView());
+        } else if (tokenizer.isWikiLink()) {
+          onWikiLink(tokenizer);
+        } else if (tokenizer.isFunction()) {
+          onFunction(tokenizer, tokenizer.functionName(), tokenizer.functionPositionArgs(), tokenizer.functionNamedArgs());
+        }
+      }
+    }
+
+    @Override
+    public void onPlainText(final String text) {
+      chars += text.length();
+    }
+
+    @Override
+    public void onPlainText(final WikiTokenizer.TextView text) {
+      chars += text.length();
+    }
+
+    @Override
+    public void onWikiLink(final WikiTokenizer wikiTokenizer) {
+      dispatch(wikiTokenizer.wikiLinkText());
+    }
+
+    @Override
+    public void onFunction(final WikiTokenizer tokenizer, final String functionName,
+        final List<String> functionPositionArgs, final Map<String, String> functionNamedArgs) {
+      dispatch(functionName);
+      for (final String arg : functionPositionArgs) {
+        dispatch(arg);
+      }
+      for (final Map.Entry<String, String> namedArg : functionNamedArgs.entrySet()) {
+        dispatch(namedArg.getKey());
+        dispatch(namedArg.getValue());
+      }
+    }
+  }
+
+}
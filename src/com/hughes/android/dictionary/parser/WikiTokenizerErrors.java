@@ -0,0 +1,109 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An ErrorSink that counts errors by kind, and keeps the first few of them,
+ * so that however broken a dump is, what's kept stays small.  It can be
+ * shared by several threads.
+ */
+public final class WikiTokenizerErrors implements WikiTokenizer.ErrorSink {
+
+  public static final int DEFAULT_MAX_SAMPLES = 20;
+
+  public static final class Sample {
+    public final String title;
+    public final String kind;
+    public final int offset;
+    public final String excerpt;
+
+    Sample(final String title, final String kind, final int offset, final String excerpt) {
+      this.title = title;
+      this.kind = kind;
+      this.offset = offset;
+      this.excerpt = excerpt;
+    }
+
+    @Override
+    public String toString() {
+      return title + "@" + offset + ": " + kind + ": " + excerpt;
+    }
+  }
+
+  private final int maxSamples;
+  private final SortedMap<String, Integer> counts = new TreeMap<String, Integer>();
+  private final List<Sample> samples = new ArrayList<Sample>();
+  private int total;
+
+  public WikiTokenizerErrors() {
+    this(DEFAULT_MAX_SAMPLES);
+  }
+
+  public WikiTokenizerErrors(final int maxSamples) {
+    this.maxSamples = maxSamples;
+  }
+
+  @Override
+  public synchronized void onError(final String title, final String kind, final int offset, final String excerpt) {
+    final Integer count = counts.get(kind);
+    counts.put(kind, count == null ? 1 : count + 1);
+    ++total;
+    if (samples.size() < maxSamples) {
+      samples.add(new Sample(title, kind, offset, excerpt));
+    }
+  }
+
+  public synchronized int total() {
+    return total;
+  }
+
+  public synchronized SortedMap<String, Integer> counts() {
+    return new TreeMap<String, Integer>(counts);
+  }
+
+  /**
+   * @return the first errors, up to maxSamples of them.
+   */
+  public synchronized List<Sample> samples() {
+    return new ArrayList<Sample>(samples);
+  }
+
+  /**
+   * @return lines to log at the end of a parse, or none if there were no
+   *         errors.
+   */
+  public synchronized List<String> summary() {
+    final List<String> lines = new ArrayList<String>();
+    if (total == 0) {
+      return lines;
+    }
+    lines.add("WikiTokenizer errors: " + total);
+    for (final Map.Entry<String, Integer> entry : counts.entrySet()) {
+      lines.add("  " + entry.getKey() + ": " + entry.getValue());
+    }
+    lines.add("First " + samples.size() + ":");
+    for (final Sample sample : samples) {
+      lines.add("  " + sample);
+    }
+    return lines;
+  }
+
+}
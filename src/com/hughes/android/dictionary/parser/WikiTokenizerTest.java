@@ -17,6 +17,8 @@ package com.hughes.android.dictionary.parser;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -337,5 +339,203 @@ public class WikiTokenizerTest extends TestCase {
 
       
   }
+
+  public void testFunctionArgsParsedWhenUsed() {
+    final WikiTokenizer wikiTokenizer = new WikiTokenizer("{{a|b|c=d}}{{e|f}}{{g|h=i|j}}");
+    wikiTokenizer.nextToken();
+    assertEquals("a", wikiTokenizer.functionName());
+
+    wikiTokenizer.nextToken();
+    assertEquals(Arrays.asList("f"), wikiTokenizer.functionPositionArgs());
+    assertTrue(wikiTokenizer.functionNamedArgs().isEmpty());
+
+    wikiTokenizer.nextToken();
+    final Map<String, String> namedArgs = wikiTokenizer.functionNamedArgs();
+    assertEquals("i", namedArgs.remove("h"));
+    namedArgs.put("k", "l");
+    assertEquals("{k=l}", wikiTokenizer.functionNamedArgs().toString());
+    assertEquals(Arrays.asList("j"), wikiTokenizer.functionPositionArgs());
+  }
+
+  // Each nested dispatch() gets its own tokenizer, and leaves the one it
+  // was called from where it was.
+  public void testNestedDispatch() {
+    final StringBuilder builder = new StringBuilder();
+    final WikiTokenizer.Callback callback = new WikiTokenizer.DoNothingCallback() {
+      @Override
+      public void onPlainText(final String text) {
+        builder.append(text);
+      }
+
+      @Override
+      public void onWikiLink(final WikiTokenizer wikiTokenizer) {
+        WikiTokenizer.dispatch(wikiTokenizer.wikiLinkText(), false, this);
+      }
+
+      @Override
+      public void onFunction(final WikiTokenizer tokenizer, final String functionName,
+          final List<String> functionPositionArgs, final Map<String, String> functionNamedArgs) {
+        builder.append("(").append(functionName);
+        for (final String arg : functionPositionArgs) {
+          builder.append(",");
+          WikiTokenizer.dispatch(arg, false, this);
+        }
+        for (final Map.Entry<String, String> namedArg : functionNamedArgs.entrySet()) {
+          builder.append(",").append(namedArg.getKey()).append("=");
+          WikiTokenizer.dispatch(namedArg.getValue(), false, this);
+        }
+        builder.append(")");
+      }
+    };
+    WikiTokenizer.dispatch("a {{f|b {{g|c [[d|e {{h}}]]}}|k={{i|j}}}} l {{m|n}}", false, callback);
+    assertEquals("a (f,b (g,c e (h)),k=(i,j)) l (m,n)", builder.toString());
+    builder.setLength(0);
+    WikiTokenizer.dispatch("{{o|[[p]]}}", false, callback);
+    assertEquals("(o,p)", builder.toString());
+  }
+
+  public void testViews() {
+    final WikiTokenizer wikiTokenizer = new WikiTokenizer("[[a\nb|c\nd\n]] {{ f\ng |x}}\n* item");
+    wikiTokenizer.nextToken();
+    assertEquals("a b", wikiTokenizer.wikiLinkDestView().toString());
+    assertTrue(wikiTokenizer.wikiLinkTextView().contentEquals("c d"));
+    assertEquals(3, wikiTokenizer.wikiLinkTextView().length());
+    assertEquals(' ', wikiTokenizer.wikiLinkTextView().charAt(1));
+    assertEquals("[[a\nb|c\nd\n]]", wikiTokenizer.tokenView().toString());
+    assertEquals(0, wikiTokenizer.tokenView().start());
+
+    wikiTokenizer.nextToken();
+    final StringBuilder builder = new StringBuilder(">");
+    wikiTokenizer.tokenView().appendTo(builder);
+    assertEquals("> ", builder.toString());
+
+    wikiTokenizer.nextToken();
+    assertEquals("f g", wikiTokenizer.functionNameView().toString());
+    assertTrue(wikiTokenizer.functionNameView().startsWith("f "));
+    assertTrue(wikiTokenizer.functionNameView().endsWith(" g"));
+    assertFalse(wikiTokenizer.functionNameView().endsWith("f g h"));
+    assertEquals(wikiTokenizer.functionName(), wikiTokenizer.functionNameView().toString());
+
+    wikiTokenizer.nextToken();
+    wikiTokenizer.nextToken();
+    assertEquals(" item", wikiTokenizer.listItemWikiTextView().toString());
+  }
+
+  public void testLineTerminators() {
+    for (final String newline : new String[] { "\r", "\r\n", "\u2028", "\u0085", "\u2029" }) {
+      final WikiTokenizer wikiTokenizer = new WikiTokenizer("a" + newline + "b");
+      assertEquals("a", wikiTokenizer.nextToken().token());
+      assertTrue(wikiTokenizer.nextToken().isNewline());
+      assertEquals("b", wikiTokenizer.nextToken().token());
+      assertNull(wikiTokenizer.nextToken());
+    }
+  }
+
+  public void testCommentInsideFunction() {
+    final WikiTokenizer wikiTokenizer = new WikiTokenizer("<!-- a -->{{b|<!-- }} -->c}}d");
+    assertTrue(wikiTokenizer.nextToken().isComment());
+    assertTrue(wikiTokenizer.nextToken().isFunction());
+    assertEquals("{{b|<!-- }} -->c}}", wikiTokenizer.token());
+    assertEquals(Arrays.asList("<!-- }} -->c"), wikiTokenizer.functionPositionArgs());
+    assertEquals("d", wikiTokenizer.nextToken().token());
+    assertNull(wikiTokenizer.nextToken());
+  }
+
+  // However broken a page is, tokenizing it only looks at each char a few
+  // times.
+  public void testBrokenPagesAreLinear() {
+    for (final Map.Entry<String, String> page : WikiTokenizerBenchmark.brokenPages(5000).entrySet()) {
+      final WikiTokenizer wikiTokenizer = new WikiTokenizer(page.getValue());
+      int tokens = 0;
+      while (wikiTokenizer.nextToken() != null) {
+        ++tokens;
+      }
+      assertTrue(page.getKey(), tokens > 0);
+      assertTrue(page.getKey() + ": " + wikiTokenizer.scanned, wikiTokenizer.scanned < 10L * page.getValue().length());
+    }
+  }
+
+  public void testErrorSink() {
+    final WikiTokenizerErrors errors = new WikiTokenizerErrors(3);
+    WikiTokenizer.setErrorSink(errors);
+    WikiTokenizer.setErrorTitle("broken");
+    try {
+      final WikiTokenizer wikiTokenizer = new WikiTokenizer("ok\n" + WikiTokenizerBenchmark.brokenPages(100).get("unclosed {{ lines") + "]]");
+      while (wikiTokenizer.nextToken() != null) {
+      }
+    } finally {
+      WikiTokenizer.setErrorSink(WikiTokenizer.IGNORE_ERRORS);
+      WikiTokenizer.setErrorTitle(null);
+    }
+    assertEquals(101, errors.total());
+    // The ]] closes the last {{, which is Pop too many for it and Unmatched
+    // {{ for the ones around it.
+    assertEquals(Integer.valueOf(99), errors.counts().get("Unmatched {{"));
+    assertEquals(Integer.valueOf(1), errors.counts().get("Pop too many"));
+    assertEquals(Integer.valueOf(1), errors.counts().get("Close without open"));
+    assertEquals(3, errors.samples().size());
+    final WikiTokenizerErrors.Sample sample = errors.samples().get(0);
+    assertEquals("broken", sample.title);
+    assertEquals("Unmatched {{", sample.kind);
+    assertEquals(3, sample.offset);
+    assertEquals("{{a|b\\n{{a|b\\n{{a|b\\n{{a|b\\n{{a|b\\n{{a|b\\n{{a|...", sample.excerpt);
+  }
+
+  // The hand-written scanner has to find what wikiTokenEvent does, on
+  // anything.
+  public void testScannersAgree() {
+    final String[] pieces = new String[] {
+        "{{", "}}", "{", "}", "[[", "]]", "[", "]", "|", "=", "==",
+        "<!--", "-->", "<pre>", "</pre>", "<math>", "</math>", "<ref>", "</ref>", "<", "'", "''", "'''",
+        "\n", "\r", "\r\n", "\u2028", "\u0085", "\u2029", "*", "#", ":", ";", "a", "bc ", " ",
+    };
+    final Random random = new Random(0);
+    for (int i = 0; i < 5000; ++i) {
+      final StringBuilder wikiText = new StringBuilder();
+      final int length = random.nextInt(40);
+      for (int j = 0; j < length; ++j) {
+        wikiText.append(pieces[random.nextInt(pieces.length)]);
+      }
+      assertEquals(wikiText.toString(), tokens(wikiText.toString(), true), tokens(wikiText.toString(), false));
+    }
+  }
+
+  // Everything the tokenizer says about each token.
+  private static List<String> tokens(final String wikiText, final boolean useRegexScanner) {
+    final boolean oldUseRegexScanner = WikiTokenizer.useRegexScanner;
+    WikiTokenizer.useRegexScanner = useRegexScanner;
+    final WikiTokenizer wikiTokenizer;
+    try {
+      wikiTokenizer = new WikiTokenizer(wikiText);
+    } finally {
+      WikiTokenizer.useRegexScanner = oldUseRegexScanner;
+    }
+    final List<String> tokens = new ArrayList<String>();
+    try {
+      while (wikiTokenizer.nextToken() != null) {
+        final StringBuilder token = new StringBuilder();
+        token.append(wikiTokenizer.token()).append(wikiTokenizer.errors());
+        if (wikiTokenizer.isFunction()) {
+          token.append(" function ").append(wikiTokenizer.functionName())
+              .append(wikiTokenizer.functionPositionArgs()).append(wikiTokenizer.functionNamedArgs());
+        } else if (wikiTokenizer.isWikiLink()) {
+          token.append(" link ").append(wikiTokenizer.wikiLinkDest()).append("|").append(wikiTokenizer.wikiLinkText());
+        } else if (wikiTokenizer.isHeading()) {
+          token.append(" heading ").append(wikiTokenizer.headingDepth()).append(wikiTokenizer.headingWikiText());
+        } else if (wikiTokenizer.isListItem()) {
+          token.append(" list ").append(wikiTokenizer.listItemPrefix());
+        }
+        token.append(wikiTokenizer.isPlainText() ? " plain" : "").append(wikiTokenizer.isMarkup() ? " markup" : "")
+            .append(wikiTokenizer.isComment() ? " comment" : "").append(wikiTokenizer.isHtml() ? " html" : "")
+            .append(wikiTokenizer.isNewline() ? " newline" : "");
+        tokens.add(token.toString());
+      }
+    } catch (AssertionError e) {
+      tokens.add("AssertionError");
+    } catch (RuntimeException e) {
+      tokens.add(e.toString());
+    }
+    return tokens;
+  }
   
 }
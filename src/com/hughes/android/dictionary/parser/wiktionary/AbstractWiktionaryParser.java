@@ -14,11 +14,7 @@
 
 package com.hughes.android.dictionary.parser.wiktionary;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -36,8 +32,11 @@ import com.hughes.android.dictionary.engine.EntrySource;
 import com.hughes.android.dictionary.engine.EntryTypeName;
 import com.hughes.android.dictionary.engine.IndexBuilder;
 import com.hughes.android.dictionary.engine.IndexedEntry;
+import com.hughes.android.dictionary.engine.SplitIndex;
+import com.hughes.android.dictionary.engine.SplitSectionReader;
 import com.hughes.android.dictionary.parser.Parser;
 import com.hughes.android.dictionary.parser.WikiTokenizer;
+import com.hughes.android.dictionary.parser.WikiTokenizerErrors;
 import com.hughes.util.EnumUtil;
 
 public abstract class AbstractWiktionaryParser implements Parser {
@@ -49,49 +48,169 @@ public abstract class AbstractWiktionaryParser implements Parser {
   
   public EntrySource entrySource;
   public String title;
+  // If either is set, only the sections with titles in this range (both
+  // ends included) are parsed, found through the split's SplitIndex.
+  public String firstTitle;
+  public String lastTitle;
+  // Parse sections on this many threads, if the parser supports it (see
+  // newWorker()).
+  public int threads = 0;
+  // Read what the parser needs from the split's EnTranslationTable, if it
+  // can (see parseTranslationTable()), instead of tokenizing the split.
+  public boolean useTranslationTable = false;
+  // Where the errors WikiTokenizer finds in the sections go.  A
+  // WikiTokenizerErrors' summary is logged at the end of parse();
+  // WikiTokenizer.IGNORE_ERRORS drops them.
+  public WikiTokenizer.ErrorSink tokenizerErrors = new WikiTokenizerErrors();
 
 
   abstract void parseSection(final String heading, final String text);
   
+  /**
+   * Called with each section's title and heading before its text is read.
+   * Sections that aren't accepted are stepped over without being decoded,
+   * and never get to parseSection.
+   */
+  boolean acceptSection(final String title, final String heading) {
+    return true;
+  }
+  
+  /**
+   * For parallel parses: a new parser set up like this one, but adding to
+   * stand-ins for its IndexBuilders, made with stage().  It must not share
+   * any state that parseSection changes with this parser.
+   * @return null if this parser can't be run in parallel.
+   */
+  AbstractWiktionaryParser newWorker(final Map<IndexBuilder, IndexBuilder> staging) {
+    return null;
+  }
+
+  /**
+   * @return the staging builder for indexBuilder, the same one every time.
+   */
+  static IndexBuilder stage(final Map<IndexBuilder, IndexBuilder> staging, final IndexBuilder indexBuilder) {
+    if (indexBuilder == null) {
+      return null;
+    }
+    IndexBuilder staged = staging.get(indexBuilder);
+    if (staged == null) {
+      staged = indexBuilder.stage();
+      staging.put(indexBuilder, staged);
+    }
+    return staged;
+  }
+  
+  /**
+   * For parsers that can be run from the split's EnTranslationTable: sends
+   * them its sections before pageLimit.
+   * @return false if this parser can't.
+   */
+  boolean parseTranslationTable(final File file, final int pageLimit) throws IOException {
+    return false;
+  }
+  
   abstract void removeUselessArgs(final Map<String, String> namedArgs);
   
   @Override
   public void parse(final File file, final EntrySource entrySource, final int pageLimit) throws IOException {
     this.entrySource = entrySource;
+    WikiTokenizer.setErrorSink(tokenizerErrors);
+    try {
+      parseFile(file, pageLimit);
+    } finally {
+      WikiTokenizer.setErrorSink(WikiTokenizer.IGNORE_ERRORS);
+      WikiTokenizer.setErrorTitle(null);
+      if (tokenizerErrors instanceof WikiTokenizerErrors) {
+        for (final String line : ((WikiTokenizerErrors) tokenizerErrors).summary()) {
+          LOG.info(line);
+        }
+      }
+    }
+  }
+
+  private void parseFile(final File file, final int pageLimit) throws IOException {
+    if (useTranslationTable && firstTitle == null && lastTitle == null) {
+      if (parseTranslationTable(file, pageLimit)) {
+        logCounters();
+        return;
+      }
+      LOG.warning(getClass().getSimpleName() + " can't use a translation table, parsing the split.");
+    }
     int pageCount = 0;
-    final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    // Either split format, mapped rather than read.
+    final SplitSectionReader sections = SplitSectionReader.open(file);
+    ParallelSectionParser parallel = null;
+    if (threads > 1) {
+      parallel = ParallelSectionParser.create(this, threads);
+      if (parallel == null) {
+        LOG.warning(getClass().getSimpleName() + " can't parse in parallel, using one thread.");
+      }
+    }
+    boolean ok = false;
     try {
+    if (firstTitle != null || lastTitle != null) {
+      final List<SplitIndex.Entry> entries = SplitIndex.open(file).range(firstTitle, lastTitle);
+      LOG.info("Parsing " + entries.size() + " sections from " + firstTitle + " to " + lastTitle);
+      for (final SplitIndex.Entry entry : entries) {
+        if (pageLimit >= 0 && pageCount >= pageLimit) {
+          break;
+        }
+        sections.seek(entry.offset);
+        sections.next();
+        parseCurrentSection(sections, parallel);
+        ++pageCount;
+      }
+      ok = true;
+      return;
+    }
     while (true) {
       if (pageLimit >= 0 && pageCount >= pageLimit) {
-        return;
+        break;
       }
       
-      try {
-        title = dis.readUTF();
-      } catch (EOFException e) {
+      if (!sections.next()) {
         LOG.log(Level.INFO, "EOF reading split.");
-        dis.close();
-        return;
+        break;
       }
-      final String heading = dis.readUTF();
-      final int bytesLength = dis.readInt();
-      final byte[] bytes = new byte[bytesLength];
-      dis.readFully(bytes);
-      final String text = new String(bytes, "UTF8");
-      
-      parseSection(heading, text);
+      parseCurrentSection(sections, parallel);
 
       ++pageCount;
       if (pageCount % 1000 == 0) {
         LOG.info("pageCount=" + pageCount);
       }
     }
+    ok = true;
     } finally {
-      dis.close();
-      LOG.info("***COUNTERS***");
-      for (final Map.Entry<String, AtomicInteger> entry : counters.entrySet()) {
-        LOG.info(entry.getKey() + ": " + entry.getValue());
+      sections.close();
+      if (parallel != null) {
+        if (ok) {
+          parallel.finish();
+        } else {
+          parallel.abort();
+        }
       }
+      logCounters();
+    }
+  }
+
+  void logCounters() {
+    LOG.info("***COUNTERS***");
+    for (final Map.Entry<String, AtomicInteger> entry : counters.entrySet()) {
+      LOG.info(entry.getKey() + ": " + entry.getValue());
+    }
+  }
+
+  private void parseCurrentSection(final SplitSectionReader sections, final ParallelSectionParser parallel) throws IOException {
+    title = sections.title();
+    final String heading = sections.heading();
+    if (!acceptSection(title, heading)) {
+      return;
+    }
+    if (parallel != null) {
+      parallel.submit(title, heading, sections.text());
+    } else {
+      WikiTokenizer.setErrorTitle(title);
+      parseSection(heading, sections.text());
     }
   }
   
@@ -101,12 +220,16 @@ public abstract class AbstractWiktionaryParser implements Parser {
   }
 
   public void incrementCount(final String string) {
+    incrementCount(string, 1);
+  }
+
+  void incrementCount(final String string, final int count) {
     AtomicInteger counter = counters.get(string);
     if (counter == null) {
       counter = new AtomicInteger();
       counters.put(string, counter);
     }
-    counter.incrementAndGet();
+    counter.addAndGet(count);
   }
   
   public void addLinkToCurrentEntry(final String token, final String lang, final EntryTypeName entryTypeName) {
@@ -116,7 +239,7 @@ public abstract class AbstractWiktionaryParser implements Parser {
   
   // -------------------------------------------------------------------------
   
-  static class AppendAndIndexWikiCallback<T extends AbstractWiktionaryParser> implements WikiTokenizer.Callback {
+  static class AppendAndIndexWikiCallback<T extends AbstractWiktionaryParser> implements WikiTokenizer.ViewCallback {
 
     final T parser;
     StringBuilder builder;
@@ -171,6 +294,17 @@ public abstract class AbstractWiktionaryParser implements Parser {
       }
     }
 
+    // Subclasses that change onPlainText(String) have to change this too.
+    @Override
+    public void onPlainText(final WikiTokenizer.TextView plainText) {
+      if (indexBuilder != null && entryTypeName != null && indexedEntry != null) {
+        // Indexing needs the String anyway.
+        onPlainText(plainText.toString());
+      } else {
+        plainText.appendTo(builder);
+      }
+    }
+
     @Override
     public void onWikiLink(WikiTokenizer wikiTokenizer) {
       final String text = wikiTokenizer.wikiLinkText();
@@ -204,12 +338,12 @@ public abstract class AbstractWiktionaryParser implements Parser {
     
     @Override
     public void onHtml(WikiTokenizer wikiTokenizer) {
-      if (wikiTokenizer.token().startsWith("<ref>")) {
+      if (wikiTokenizer.remainderStartsWith("<ref>")) {
           // Do nothing.
           return;
       }
       // Unindexed for now.
-      builder.append(wikiTokenizer.token());
+      wikiTokenizer.tokenView().appendTo(builder);
     }
 
     @Override
@@ -35,15 +35,21 @@ public final class EnForeignParser extends EnParser {
       super(enIndexBuilder, otherIndexBuilder, langPattern, langCodePattern, swap);
     }
 
+    @Override
+    AbstractWiktionaryParser newWorker(final Map<IndexBuilder, IndexBuilder> staging) {
+      return new EnForeignParser(stage(staging, enIndexBuilder), stage(staging, foreignIndexBuilder),
+          langPattern, langCodePattern, swap);
+    }
+
+    @Override
+    boolean acceptSection(final String title, final String heading) {
+      // Most of EN.data isn't in our language.
+      return !isIgnorableTitle(title) && langPattern.matcher(heading.replaceAll("=", "").trim()).find();
+    }
+
     @Override
     void parseSection(String heading, String text) {
-      if (isIgnorableTitle(title)) {
-        return;
-      }
       final String lang = heading.replaceAll("=", "").trim();
-      if (!langPattern.matcher(lang).find()){
-        return;
-      }
       
       final WikiTokenizer wikiTokenizer = new WikiTokenizer(text);
       while (wikiTokenizer.nextToken() != null) {
@@ -172,14 +178,14 @@ public final class EnForeignParser extends EnParser {
           // Don't append anything after the lists, because there's crap.
         } else if (wikiTokenizer.isWikiLink()) {
           // Unindexed!
-          foreignBuilder.append(wikiTokenizer.wikiLinkText());
+          wikiTokenizer.wikiLinkTextView().appendTo(foreignBuilder);
           
         } else if (wikiTokenizer.isPlainText()) {
           // Unindexed!
-          foreignBuilder.append(wikiTokenizer.token());
+          wikiTokenizer.tokenView().appendTo(foreignBuilder);
         } else if (wikiTokenizer.isHtml()) {
-            if (!wikiTokenizer.token().startsWith("<ref>")) {
-                foreignBuilder.append(wikiTokenizer.token());
+            if (!wikiTokenizer.remainderStartsWith("<ref>")) {
+                wikiTokenizer.tokenView().appendTo(foreignBuilder);
             }
         } else if (wikiTokenizer.isMarkup() || 
                 wikiTokenizer.isNewline() || 
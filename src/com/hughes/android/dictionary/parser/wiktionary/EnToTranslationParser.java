@@ -14,7 +14,11 @@
 
 package com.hughes.android.dictionary.parser.wiktionary;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import com.hughes.android.dictionary.engine.EntryTypeName;
@@ -24,7 +28,7 @@ import com.hughes.android.dictionary.engine.PairEntry;
 import com.hughes.android.dictionary.engine.PairEntry.Pair;
 import com.hughes.android.dictionary.parser.WikiTokenizer;
 
-public final class EnToTranslationParser extends EnParser {
+public final class EnToTranslationParser extends EnParser implements TranslationLineHandler {
 
     public EnToTranslationParser(final IndexBuilder enIndexBuilder,
         final IndexBuilder otherIndexBuilder, final Pattern langPattern,
@@ -32,21 +36,77 @@ public final class EnToTranslationParser extends EnParser {
       super(enIndexBuilder, otherIndexBuilder, langPattern, langCodePattern, swap);
     }
 
+    @Override
+    AbstractWiktionaryParser newWorker(final Map<IndexBuilder, IndexBuilder> staging) {
+      return new EnToTranslationParser(stage(staging, enIndexBuilder), stage(staging, foreignIndexBuilder),
+          langPattern, langCodePattern, swap);
+    }
+
+    @Override
+    boolean acceptSection(final String title, final String heading) {
+      return accepts(title, heading);
+    }
+
+    static boolean accepts(final String title, final String heading) {
+      // Only the English sections have translations.
+      return !isIgnorableTitle(title) && heading.replaceAll("=", "").trim().contains("English");
+    }
+
+    @Override
+    boolean parseTranslationTable(final File file, final int pageLimit) throws IOException {
+      EnTranslationTable.open(file).replay(pageLimit, Collections.singletonList(this));
+      return true;
+    }
+
     @Override
     void parseSection(String heading, String text) {
-      if (isIgnorableTitle(title)) {
-        return;
-      }
-      heading = heading.replaceAll("=", "").trim(); 
-      if (!heading.contains("English")) {
-        return;
+      final SectionState sectionState = new SectionState(title, Collections.singletonList(this));
+      final WikiTokenizer wikiTokenizer = new WikiTokenizer(text);
+      while (wikiTokenizer.nextToken() != null) {
+        sectionState.onToken(wikiTokenizer);
       }
+    }
+
+    /**
+     * What parseSection keeps between tokens.  One of these can drive several
+     * parsers from the same tokenizer: the POS, sense and top-level language
+     * are the same for all of them, only which translation lines they keep
+     * differs.
+     */
+    static final class SectionState {
+      final String title;
+      final List<? extends TranslationLineHandler> handlers;
 
       String pos = null;
       int posDepth = -1;
+      
+      // Inside a Translations section:
+      boolean inTranslations = false;
+      String topLevelLang = null;
+      String sense = null;
+      boolean done = false;
+      // Stepping over the rest of a line we don't handle.
+      boolean skipLine = false;
 
-      final WikiTokenizer wikiTokenizer = new WikiTokenizer(text);
-      while (wikiTokenizer.nextToken() != null) {
+      SectionState(final String title, final List<? extends TranslationLineHandler> handlers) {
+        this.title = title;
+        this.handlers = handlers;
+      }
+
+      void onToken(final WikiTokenizer wikiTokenizer) {
+        if (skipLine) {
+          skipLine = !wikiTokenizer.isNewline();
+          return;
+        }
+        if (inTranslations) {
+          if (!wikiTokenizer.isHeading()) {
+            if (!done) {
+              onTranslationToken(wikiTokenizer);
+            }
+            return;
+          }
+          inTranslations = false;
+        }
         
         if (wikiTokenizer.isHeading()) {
           final String headerName = wikiTokenizer.headingWikiText();
@@ -65,7 +125,10 @@ public final class EnToTranslationParser extends EnParser {
             if (pos == null) {
               LOG.info("Translations without POS (but using anyway): " + title);
             }
-            doTranslations(wikiTokenizer, pos);
+            inTranslations = true;
+            topLevelLang = null;
+            sense = null;
+            done = false;
           } else if (headerName.equals("Pronunciation")) {
             //doPronunciation(wikiLineReader);
           }
@@ -76,25 +139,8 @@ public final class EnToTranslationParser extends EnParser {
           }
         }
       }
-    }
 
-    private void doTranslations(final WikiTokenizer wikiTokenizer, final String pos) {
-      if (title.equals("absolutely")) {
-        //System.out.println();
-      }
-      
-      String topLevelLang = null;
-      String sense = null;
-      boolean done = false;
-      while (wikiTokenizer.nextToken() != null) {
-        if (wikiTokenizer.isHeading()) {
-          wikiTokenizer.returnToLineStart();
-          return;
-        }
-        if (done) {
-          continue;
-        }
-        
+      private void onTranslationToken(final WikiTokenizer wikiTokenizer) {
         // Check whether we care about this line:
         
         if (wikiTokenizer.isFunction()) {
@@ -112,12 +158,12 @@ public final class EnToTranslationParser extends EnParser {
             sense = null;
           } else if (functionName.equals("trans-mid")) {
           } else if (functionName.equals("trans-see")) {
-           incrementCount("WARNING:trans-see");
+            incrementCount("WARNING:trans-see");
           } else if (functionName.startsWith("picdic")) {
           } else if (functionName.startsWith("checktrans")) {
             done = true;
           } else if (functionName.startsWith("ttbc")) {
-            wikiTokenizer.nextLine();
+            skipLine = true;
             // TODO: would be great to handle ttbc
             // TODO: Check this: done = true;
           } else {
@@ -127,44 +173,29 @@ public final class EnToTranslationParser extends EnParser {
           final String line = wikiTokenizer.listItemWikiText();
           // This line could produce an output...
           
-//          if (line.contains("ich hoan dich gear")) {
-//            //System.out.println();
-//          }
-          
           // First strip the language and check whether it matches.
           // And hold onto it for sub-lines.
           final int colonIndex = line.indexOf(":");
           if (colonIndex == -1) {
-            continue;
+            return;
           }
           
           final String lang = trim(WikiTokenizer.toPlainText(line.substring(0, colonIndex)));
           incrementCount("tCount:" + lang);
-          final boolean appendLang;
-          if (wikiTokenizer.listItemPrefix().length() == 1) {
+          final boolean topLevel = wikiTokenizer.listItemPrefix().length() == 1;
+          if (topLevel) {
             topLevelLang = lang;
-            final boolean thisFind = langPattern.matcher(lang).find();
-            if (!thisFind) {
-              continue;
-            }
-            appendLang = !langPattern.matcher(lang).matches();
           } else if (topLevelLang == null) {
-            continue;
-          } else {
-            // Two-level -- the only way we won't append is if this second level matches exactly.
-            if (!langPattern.matcher(lang).matches() && !langPattern.matcher(topLevelLang).find()) {
-              continue;
-            }
-            appendLang = !langPattern.matcher(lang).matches();
+            return;
           }
           
-          String rest = line.substring(colonIndex + 1).trim();
-          if (rest.length() > 0) {
-            doTranslationLine(line, appendLang ? lang : null, pos, sense, rest);
+          final String rest = line.substring(colonIndex + 1).trim();
+          for (final TranslationLineHandler handler : handlers) {
+            handler.onTranslationLine(line, lang, topLevel ? null : topLevelLang, pos, sense, rest);
           }
           
         } else if (wikiTokenizer.remainderStartsWith("''See''")) {
-          wikiTokenizer.nextLine();
+          skipLine = true;
           incrementCount("WARNING: ''See''" );
           LOG.fine("Skipping See line: " + wikiTokenizer.token());
         } else if (wikiTokenizer.isWikiLink()) {
@@ -184,7 +215,38 @@ public final class EnToTranslationParser extends EnParser {
             incrementCount("WARNING: Unexpected translation token" );
           }
         }
-        
+      }
+
+      private void incrementCount(final String string) {
+        for (final TranslationLineHandler handler : handlers) {
+          handler.incrementCount(string);
+        }
+      }
+    }
+
+    /**
+     * @param topLevelLang null if line is a top-level list item.
+     */
+    @Override
+    public void onTranslationLine(final String line, final String lang, final String topLevelLang,
+        final String pos, final String sense, final String rest) {
+      final boolean appendLang;
+      if (topLevelLang == null) {
+        final boolean thisFind = langPattern.matcher(lang).find();
+        if (!thisFind) {
+          return;
+        }
+        appendLang = !langPattern.matcher(lang).matches();
+      } else {
+        // Two-level -- the only way we won't append is if this second level matches exactly.
+        if (!langPattern.matcher(lang).matches() && !langPattern.matcher(topLevelLang).find()) {
+          return;
+        }
+        appendLang = !langPattern.matcher(lang).matches();
+      }
+      
+      if (rest.length() > 0) {
+        doTranslationLine(line, appendLang ? lang : null, pos, sense, rest);
       }
     }
     
@@ -0,0 +1,114 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser.wiktionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.hughes.android.dictionary.engine.EntrySource;
+import com.hughes.android.dictionary.parser.WikiTokenizer;
+
+/**
+ * Runs any number of EnToTranslationParsers and
+ * EnTranslationToTranslationParsers over EN.data in one pass.
+ *
+ * Each section is tokenized once, and its translation lines and {{t}}
+ * functions are handed to every parser that wants them.  Each parser still
+ * renders and indexes what it keeps into its own IndexBuilders, so what it
+ * produces is the same as if it had read the file by itself.
+ */
+public final class EnTranslationFanOutParser extends AbstractWiktionaryParser {
+
+  final List<AbstractWiktionaryParser> parsers = new ArrayList<AbstractWiktionaryParser>();
+
+  /**
+   * @param parser an EnToTranslationParser or EnTranslationToTranslationParser.
+   */
+  public void add(final AbstractWiktionaryParser parser, final EntrySource entrySource) {
+    if (!(parser instanceof EnToTranslationParser || parser instanceof EnTranslationToTranslationParser)) {
+      throw new IllegalArgumentException("Can't fan out to: " + parser.getClass().getSimpleName());
+    }
+    parser.entrySource = entrySource;
+    parsers.add(parser);
+  }
+
+  @Override
+  void removeUselessArgs(final Map<String, String> namedArgs) {
+    // All the rendering is done by the parsers we fan out to.
+  }
+
+  @Override
+  boolean acceptSection(final String title, final String heading) {
+    for (final AbstractWiktionaryParser parser : parsers) {
+      if (parser.acceptSection(title, heading)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  void parseSection(final String heading, final String text) {
+    final List<EnToTranslationParser> enToTranslation = new ArrayList<EnToTranslationParser>();
+    final List<EnTranslationToTranslationParser> translationToTranslation = new ArrayList<EnTranslationToTranslationParser>();
+    for (final AbstractWiktionaryParser parser : parsers) {
+      if (!parser.acceptSection(title, heading)) {
+        continue;
+      }
+      parser.title = title;
+      if (parser instanceof EnToTranslationParser) {
+        enToTranslation.add((EnToTranslationParser) parser);
+      } else {
+        translationToTranslation.add((EnTranslationToTranslationParser) parser);
+      }
+    }
+
+    final EnToTranslationParser.SectionState enToTranslationState = enToTranslation.isEmpty() ? null
+        : new EnToTranslationParser.SectionState(title, enToTranslation);
+    final EnTranslationToTranslationParser.SectionState translationToTranslationState = translationToTranslation.isEmpty() ? null
+        : new EnTranslationToTranslationParser.SectionState(translationToTranslation);
+
+    final WikiTokenizer wikiTokenizer = new WikiTokenizer(text);
+    while (wikiTokenizer.nextToken() != null) {
+      if (enToTranslationState != null) {
+        enToTranslationState.onToken(wikiTokenizer);
+      }
+      if (translationToTranslationState != null) {
+        translationToTranslationState.onToken(wikiTokenizer);
+      }
+    }
+    if (translationToTranslationState != null) {
+      translationToTranslationState.finish();
+    }
+  }
+
+  @Override
+  boolean parseTranslationTable(final File file, final int pageLimit) throws IOException {
+    EnTranslationTable.open(file).replay(pageLimit, parsers);
+    return true;
+  }
+
+  @Override
+  void logCounters() {
+    for (final AbstractWiktionaryParser parser : parsers) {
+      LOG.info("For: " + parser.entrySource.name);
+      parser.logCounters();
+    }
+  }
+
+}
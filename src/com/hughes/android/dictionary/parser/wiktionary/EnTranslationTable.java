@@ -0,0 +1,300 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser.wiktionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.hughes.android.dictionary.engine.SplitSectionReader;
+import com.hughes.android.dictionary.parser.WikiTokenizer;
+
+/**
+ * What EnToTranslationParser and EnTranslationToTranslationParser need from
+ * a split (EN.data), extracted from it once and kept next to it in a
+ * ".translations" file.  Those parsers replay it instead of tokenizing
+ * the split again, until the split changes.
+ *
+ * For each section it has the translation lines (with their POS, sense and
+ * language) and counts from EnToTranslationParser.SectionState, and the
+ * translation functions EnTranslationToTranslationParser.SectionState acts
+ * on.  Rendering what's kept is still up to each parser, since it depends
+ * on the parser's language patterns.
+ *
+ * Format: MAGIC, VERSION, the length and modification time of the split,
+ * then for each section with anything in it: true, its index in the split,
+ * title, heading, its records, END; then false.
+ */
+final class EnTranslationTable {
+
+  static final String MAGIC = "EnTranslationTable";
+  // Bump this when a change to either parser's SectionState changes what
+  // it finds, so old tables aren't trusted.
+  static final int VERSION = 2;
+
+  // Records.
+  static final int END = 0;
+  static final int LINE = 1;
+  static final int COUNT = 2;
+  static final int FUNCTION = 3;
+
+  static final Charset UTF8 = Charset.forName("UTF8");
+
+  final File split;
+
+  private EnTranslationTable(final File split) {
+    this.split = split;
+  }
+
+  static File tableFile(final File split) {
+    return new File(split.getPath() + ".translations");
+  }
+
+  /**
+   * Extracts split's table first if it's missing or was made from a
+   * different version of the split.
+   */
+  static EnTranslationTable open(final File split) throws IOException {
+    if (!isCurrent(split)) {
+      write(split);
+    }
+    return new EnTranslationTable(split);
+  }
+
+  private static boolean isCurrent(final File split) throws IOException {
+    final File file = tableFile(split);
+    if (!file.exists()) {
+      return false;
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      return readHeader(in, split);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static boolean readHeader(final DataInputStream in, final File split) throws IOException {
+    return in.readUTF().equals(MAGIC) && in.readInt() == VERSION
+        && in.readLong() == split.length() && in.readLong() == split.lastModified();
+  }
+
+  /**
+   * Tokenizes every section of split once, and writes its table.
+   */
+  static void write(final File split) throws IOException {
+    AbstractWiktionaryParser.LOG.info("Extracting translations: " + split);
+    final File file = tableFile(split);
+    final File tmp = new File(file.getPath() + ".tmp");
+    final SplitSectionReader sections = SplitSectionReader.open(split);
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(split.length());
+      out.writeLong(split.lastModified());
+
+      final Recorder recorder = new Recorder();
+      final List<Recorder> recorders = Collections.singletonList(recorder);
+      for (int sectionIndex = 0; sections.next(); ++sectionIndex) {
+        final String title = sections.title();
+        final String heading = sections.heading();
+        if (!EnTranslationToTranslationParser.accepts(title, heading)) {
+          continue;
+        }
+        recorder.bytes.reset();
+        WikiTokenizer.setErrorTitle(title);
+        final EnToTranslationParser.SectionState enToTranslationState = EnToTranslationParser.accepts(title, heading)
+            ? new EnToTranslationParser.SectionState(title, recorders) : null;
+        final EnTranslationToTranslationParser.SectionState translationToTranslationState =
+            new EnTranslationToTranslationParser.SectionState(recorders);
+        final WikiTokenizer wikiTokenizer = new WikiTokenizer(sections.text());
+        while (wikiTokenizer.nextToken() != null) {
+          if (enToTranslationState != null) {
+            enToTranslationState.onToken(wikiTokenizer);
+          }
+          translationToTranslationState.onToken(wikiTokenizer);
+        }
+        if (recorder.bytes.size() == 0) {
+          continue;
+        }
+        out.writeBoolean(true);
+        out.writeInt(sectionIndex);
+        writeString(out, title);
+        writeString(out, heading);
+        recorder.bytes.writeTo(out);
+        out.writeByte(END);
+      }
+      out.writeBoolean(false);
+    } finally {
+      out.close();
+      sections.close();
+    }
+    if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+      throw new IOException("Couldn't replace: " + file);
+    }
+  }
+
+  /**
+   * Sends the sections before pageLimit (all of them if it's negative) to
+   * parsers, which must be EnToTranslationParsers and
+   * EnTranslationToTranslationParsers, as if each had parsed them.
+   */
+  void replay(final int pageLimit, final List<? extends AbstractWiktionaryParser> parsers) throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile(split))));
+    try {
+      if (!readHeader(in, split)) {
+        throw new IOException("Split changed while reading: " + tableFile(split));
+      }
+      final List<EnToTranslationParser> enToTranslation = new ArrayList<EnToTranslationParser>();
+      final List<EnTranslationToTranslationParser> translationToTranslation = new ArrayList<EnTranslationToTranslationParser>();
+      while (in.readBoolean()) {
+        final int sectionIndex = in.readInt();
+        if (pageLimit >= 0 && sectionIndex >= pageLimit) {
+          break;
+        }
+        final String title = readString(in);
+        final String heading = readString(in);
+
+        enToTranslation.clear();
+        translationToTranslation.clear();
+        for (final AbstractWiktionaryParser parser : parsers) {
+          if (!parser.acceptSection(title, heading)) {
+            continue;
+          }
+          parser.title = title;
+          if (parser instanceof EnToTranslationParser) {
+            enToTranslation.add((EnToTranslationParser) parser);
+          } else {
+            translationToTranslation.add((EnTranslationToTranslationParser) parser);
+          }
+        }
+        final EnTranslationToTranslationParser.SectionState translationToTranslationState =
+            new EnTranslationToTranslationParser.SectionState(translationToTranslation);
+
+        for (int record = in.readByte(); record != END; record = in.readByte()) {
+          if (record == LINE) {
+            final String line = readString(in);
+            final String lang = readString(in);
+            final String topLevelLang = readString(in);
+            final String pos = readString(in);
+            final String sense = readString(in);
+            final String rest = readString(in);
+            for (final EnToTranslationParser parser : enToTranslation) {
+              parser.onTranslationLine(line, lang, topLevelLang, pos, sense, rest);
+            }
+          } else if (record == COUNT) {
+            final String count = readString(in);
+            for (final EnToTranslationParser parser : enToTranslation) {
+              parser.incrementCount(count);
+            }
+          } else if (record == FUNCTION) {
+            // Just the function's own text, which tokenizes the same by itself.
+            final WikiTokenizer wikiTokenizer = new WikiTokenizer(readString(in));
+            wikiTokenizer.nextToken();
+            translationToTranslationState.onToken(wikiTokenizer);
+          } else {
+            throw new IOException("Bad record " + record + " in " + title + ": " + tableFile(split));
+          }
+        }
+        translationToTranslationState.finish();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  // Takes what the SectionStates find in a section.
+  static final class Recorder implements TranslationLineHandler, TranslationFunctionHandler {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+
+    @Override
+    public void incrementCount(final String string) {
+      try {
+        out.writeByte(COUNT);
+        writeString(out, string);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void onTranslationLine(final String line, final String lang, final String topLevelLang,
+        final String pos, final String sense, final String rest) {
+      try {
+        out.writeByte(LINE);
+        writeString(out, line);
+        writeString(out, lang);
+        writeString(out, topLevelLang);
+        writeString(out, pos);
+        writeString(out, sense);
+        writeString(out, rest);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void onTranslationFunction(final WikiTokenizer wikiTokenizer, final String name,
+        final Map<String, String> functionNamedArgs, final boolean copyNamedArgs) {
+      try {
+        out.writeByte(FUNCTION);
+        writeString(out, wikiTokenizer.token());
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void finishSection() {
+    }
+  }
+
+  // Unlike writeUTF, handles null and strings of any length.
+  static void writeString(final DataOutputStream out, final String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    final byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(final DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+}
@@ -14,7 +14,12 @@
 
 package com.hughes.android.dictionary.parser.wiktionary;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +34,7 @@ import com.hughes.android.dictionary.parser.WikiTokenizer;
 import com.hughes.android.dictionary.parser.wiktionary.EnFunctionCallbacks.TranslationCallback;
 import com.hughes.util.ListUtil;
 
-public final class EnTranslationToTranslationParser extends AbstractWiktionaryParser {
+public final class EnTranslationToTranslationParser extends AbstractWiktionaryParser implements TranslationFunctionHandler {
   
     final List<IndexBuilder> indexBuilders;
     final Pattern[] langCodePatterns;
@@ -40,8 +45,16 @@ public final class EnTranslationToTranslationParser extends AbstractWiktionaryPa
     
   public static final String NAME = "EnTranslationToTranslation";
     
-  final Set<String> Ts = new LinkedHashSet<String>(Arrays.asList("t", "t+",
+  static final Set<String> Ts = new LinkedHashSet<String>(Arrays.asList("t", "t+",
       "t-", "tø", "apdx-t", "ttbc"));
+
+  /**
+   * @return whether a function called name is one the parser acts on.
+   */
+  static boolean isTranslationFunction(final String name) {
+    return Ts.contains(name) || name.equals("trans-top") || name.equals("checktrans-top")
+        || name.equals("checktrans") || name.equals("trans-bottom");
+  }
     
     public EnTranslationToTranslationParser(final List<IndexBuilder> indexBuilders,
         final Pattern[] langCodePatterns) {
@@ -55,22 +68,53 @@ public final class EnTranslationToTranslationParser extends AbstractWiktionaryPa
     }
     
     @Override
-    void parseSection(String heading, String text) {
-      if (EnParser.isIgnorableTitle(title)) {
-        return;
+    AbstractWiktionaryParser newWorker(final Map<IndexBuilder, IndexBuilder> staging) {
+      final List<IndexBuilder> staged = new ArrayList<IndexBuilder>();
+      for (final IndexBuilder indexBuilder : indexBuilders) {
+        staged.add(stage(staging, indexBuilder));
       }
+      return new EnTranslationToTranslationParser(staged, langCodePatterns);
+    }
+
+    @Override
+    boolean acceptSection(final String title, final String heading) {
+      return accepts(title, heading);
+    }
+
+    static boolean accepts(final String title, final String heading) {
+      return !EnParser.isIgnorableTitle(title);
+    }
+
+    @Override
+    boolean parseTranslationTable(final File file, final int pageLimit) throws IOException {
+      EnTranslationTable.open(file).replay(pageLimit, Collections.singletonList(this));
+      return true;
+    }
+
+    @Override
+    void parseSection(String heading, String text) {
+      final SectionState sectionState = new SectionState(Collections.singletonList(this));
+      WikiTokenizer.dispatch(text, true, sectionState.callback);
+      sectionState.finish();
+    }
+
+    /**
+     * Routes the translation functions of a section to several parsers, so
+     * the section is only tokenized once.
+     */
+    static final class SectionState {
+      final List<? extends TranslationFunctionHandler> handlers;
+
       final WikiTokenizer.Callback callback = new WikiTokenizer.DoNothingCallback() {
         @Override
         public void onFunction(WikiTokenizer wikiTokenizer, String name,
             List<String> functionPositionArgs,
             Map<String, String> functionNamedArgs) {
-          //System.out.println(wikiTokenizer.token());
-          if (Ts.contains(name)) {
-            onT(wikiTokenizer);
-          } else if (name.equals("trans-top") || name.equals("checktrans-top") || name.equals("checktrans")) {
-            startEntry(title, wikiTokenizer.token());
-          } else if (name.equals("trans-bottom")) {
-            finishEntry(title);
+          if (!isTranslationFunction(name)) {
+            return;
+          }
+          for (final TranslationFunctionHandler handler : handlers) {
+            handler.onTranslationFunction(wikiTokenizer, name, functionNamedArgs, handlers.size() > 1);
           }
         }
 
@@ -79,8 +123,46 @@ public final class EnTranslationToTranslationParser extends AbstractWiktionaryPa
           WikiTokenizer.dispatch(wikiTokenizer.listItemWikiText(), false, this);
         }
       };
-      WikiTokenizer.dispatch(text, true, callback);
-      
+
+      SectionState(final List<? extends TranslationFunctionHandler> handlers) {
+        this.handlers = handlers;
+      }
+
+      /**
+       * For a section's top-level tokens, as WikiTokenizer.dispatch would
+       * send them to callback.
+       */
+      void onToken(final WikiTokenizer wikiTokenizer) {
+        if (wikiTokenizer.isFunction()) {
+          callback.onFunction(wikiTokenizer, wikiTokenizer.functionName(),
+              wikiTokenizer.functionPositionArgs(), wikiTokenizer.functionNamedArgs());
+        } else if (wikiTokenizer.isListItem()) {
+          callback.onListItem(wikiTokenizer);
+        }
+      }
+
+      void finish() {
+        for (final TranslationFunctionHandler handler : handlers) {
+          handler.finishSection();
+        }
+      }
+    }
+
+    @Override
+    public void onTranslationFunction(final WikiTokenizer wikiTokenizer, final String name,
+        final Map<String, String> functionNamedArgs, final boolean copyNamedArgs) {
+      //System.out.println(wikiTokenizer.token());
+      if (Ts.contains(name)) {
+        onT(wikiTokenizer, copyNamedArgs ? new LinkedHashMap<String, String>(functionNamedArgs) : functionNamedArgs);
+      } else if (name.equals("trans-top") || name.equals("checktrans-top") || name.equals("checktrans")) {
+        startEntry(title, wikiTokenizer.token());
+      } else if (name.equals("trans-bottom")) {
+        finishEntry(title);
+      }
+    }
+
+    @Override
+    public void finishSection() {
       if (builders != null) {
         LOG.warning("unended translations: " + title);
         finishEntry(title);
@@ -97,7 +179,7 @@ public final class EnTranslationToTranslationParser extends AbstractWiktionaryPa
     }
   }
     
-  private void onT(WikiTokenizer wikiTokenizer) {
+  private void onT(WikiTokenizer wikiTokenizer, final Map<String, String> namedArgs) {
     if (builders == null) {
       LOG.warning("{{t...}} section outside of {{trans-top}}: " + title);
       startEntry(title, "QUICKDIC_OUTSIDE");
@@ -118,7 +200,7 @@ public final class EnTranslationToTranslationParser extends AbstractWiktionaryPa
         appendAndIndexWikiCallback.indexBuilder = indexBuilders.get(p);
         appendAndIndexWikiCallback.onFunction(wikiTokenizer,
             wikiTokenizer.functionName(), wikiTokenizer.functionPositionArgs(),
-            wikiTokenizer.functionNamedArgs());
+            namedArgs);
       }
     }
   }
@@ -78,8 +78,8 @@ class ItFunctionCallbacks {
                 final AppendAndIndexWikiCallback<T> appendAndIndexWikiCallback) {
             while (wikiTokenizer.nextToken() != null) {
                 if (wikiTokenizer.isFunction() 
-                        && wikiTokenizer.functionName().startsWith("-")
-                        && wikiTokenizer.functionName().endsWith("-")
+                        && wikiTokenizer.functionNameView().startsWith("-")
+                        && wikiTokenizer.functionNameView().endsWith("-")
                         // Hack to prevent infinite-looping, would be better to check that this func was at the start of the line.
                         && !wikiTokenizer.functionName().contains("trans")) {
                     wikiTokenizer.returnToLineStart();
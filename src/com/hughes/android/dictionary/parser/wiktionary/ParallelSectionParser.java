@@ -0,0 +1,191 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser.wiktionary;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hughes.android.dictionary.engine.IndexBuilder;
+import com.hughes.android.dictionary.parser.WikiTokenizer;
+
+/**
+ * Parses the sections of a split on a pool of threads.
+ *
+ * Each thread has its own copy of the parser (from
+ * {@link AbstractWiktionaryParser#newWorker}), writing into staging
+ * IndexBuilders.  What each section added is taken from them when it's
+ * done, and the thread reading the split commits it to the real
+ * IndexBuilders in section order, so the dictionary comes out exactly as it
+ * does from a serial parse.
+ */
+final class ParallelSectionParser {
+
+  // Bounds how far the reader can get ahead of the oldest unfinished section.
+  static final int SECTIONS_PER_THREAD = 64;
+
+  static final class ParsedSection {
+    final List<IndexBuilder.Staged> staged = new ArrayList<IndexBuilder.Staged>();
+    final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    final List<String> pairsAdded = new ArrayList<String>();
+  }
+
+  static final class Worker {
+    final AbstractWiktionaryParser parser;
+    final Map<IndexBuilder, IndexBuilder> staging;
+
+    Worker(final AbstractWiktionaryParser parser, final Map<IndexBuilder, IndexBuilder> staging) {
+      this.parser = parser;
+      this.staging = staging;
+    }
+  }
+
+  final AbstractWiktionaryParser parser;
+  final ExecutorService executor;
+  final BlockingQueue<Worker> idle;
+  final Deque<Future<ParsedSection>> pending = new ArrayDeque<Future<ParsedSection>>();
+  final int maxPending;
+
+  private ParallelSectionParser(final AbstractWiktionaryParser parser, final List<Worker> workers) {
+    this.parser = parser;
+    this.executor = Executors.newFixedThreadPool(workers.size());
+    this.idle = new ArrayBlockingQueue<Worker>(workers.size(), false, workers);
+    this.maxPending = workers.size() * SECTIONS_PER_THREAD;
+  }
+
+  /**
+   * @return null if parser can't be run in parallel.
+   */
+  static ParallelSectionParser create(final AbstractWiktionaryParser parser, final int threads) {
+    final List<Worker> workers = new ArrayList<Worker>();
+    for (int i = 0; i < threads; ++i) {
+      final Map<IndexBuilder, IndexBuilder> staging = new LinkedHashMap<IndexBuilder, IndexBuilder>();
+      final AbstractWiktionaryParser worker = parser.newWorker(staging);
+      if (worker == null) {
+        return null;
+      }
+      worker.entrySource = parser.entrySource;
+      worker.tokenizerErrors = parser.tokenizerErrors;
+      workers.add(new Worker(worker, staging));
+    }
+    return new ParallelSectionParser(parser, workers);
+  }
+
+  /**
+   * Called on the reading thread.  Commits finished sections, in order,
+   * and blocks if too many are unfinished.
+   */
+  void submit(final String title, final String heading, final String text) throws IOException {
+    pending.add(executor.submit(new Callable<ParsedSection>() {
+      @Override
+      public ParsedSection call() throws InterruptedException {
+        final Worker worker = idle.take();
+        try {
+          return parse(worker, title, heading, text);
+        } finally {
+          idle.put(worker);
+        }
+      }
+    }));
+    while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+      commit(pending.poll());
+    }
+  }
+
+  /**
+   * Commits everything that was submitted and stops the threads.
+   */
+  void finish() throws IOException {
+    try {
+      while (!pending.isEmpty()) {
+        commit(pending.poll());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Stops the threads without committing anything else.
+   */
+  void abort() {
+    executor.shutdownNow();
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static ParsedSection parse(final Worker worker, final String title, final String heading, final String text) {
+    final AbstractWiktionaryParser parser = worker.parser;
+    parser.title = title;
+    WikiTokenizer.setErrorSink(parser.tokenizerErrors);
+    WikiTokenizer.setErrorTitle(title);
+    parser.parseSection(heading, text);
+
+    final ParsedSection result = new ParsedSection();
+    for (final IndexBuilder staged : worker.staging.values()) {
+      result.staged.add(staged.takeStaged());
+    }
+    for (final Map.Entry<String, AtomicInteger> entry : parser.counters.entrySet()) {
+      result.counts.put(entry.getKey(), entry.getValue().get());
+    }
+    parser.counters.clear();
+    result.pairsAdded.addAll(parser.pairsAdded);
+    parser.pairsAdded.clear();
+    return result;
+  }
+
+  private void commit(final Future<ParsedSection> future) throws IOException {
+    final ParsedSection section;
+    try {
+      section = future.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while parsing.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    for (final IndexBuilder.Staged staged : section.staged) {
+      staged.commit();
+    }
+    for (final Map.Entry<String, Integer> entry : section.counts.entrySet()) {
+      parser.incrementCount(entry.getKey(), entry.getValue());
+    }
+    // The worker only saw this section's pairs.
+    for (final String pair : section.pairsAdded) {
+      if (!parser.pairsAdded.add(pair)) {
+        AbstractWiktionaryParser.LOG.warning("Duplicate pair: " + pair);
+        parser.incrementCount("WARNING: Duplicate pair");
+      }
+    }
+  }
+
+}
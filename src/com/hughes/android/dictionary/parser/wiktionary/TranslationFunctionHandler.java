@@ -0,0 +1,35 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser.wiktionary;
+
+import java.util.Map;
+
+import com.hughes.android.dictionary.parser.WikiTokenizer;
+
+/**
+ * Where an EnTranslationToTranslationParser.SectionState sends the
+ * translation functions ({{t}}, {{trans-top}}, ...) of a section.
+ */
+interface TranslationFunctionHandler {
+
+  /**
+   * @param copyNamedArgs whether functionNamedArgs is shared with other
+   * handlers, which mustn't see what the function callbacks take out of it.
+   */
+  void onTranslationFunction(final WikiTokenizer wikiTokenizer, final String name,
+      final Map<String, String> functionNamedArgs, final boolean copyNamedArgs);
+
+  void finishSection();
+}
@@ -0,0 +1,30 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.parser.wiktionary;
+
+/**
+ * Where an EnToTranslationParser.SectionState sends the translation lines
+ * it finds.
+ */
+interface TranslationLineHandler {
+
+  void incrementCount(final String string);
+
+  /**
+   * @param topLevelLang null if line is a top-level list item.
+   */
+  void onTranslationLine(final String line, final String lang, final String topLevelLang,
+      final String pos, final String sense, final String rest);
+}
@@ -4,7 +4,6 @@ package com.hughes.android.dictionary.parser.wiktionary;
 import com.hughes.android.dictionary.engine.EntryTypeName;
 import com.hughes.android.dictionary.engine.HtmlEntry;
 import com.hughes.android.dictionary.engine.IndexBuilder;
-import com.hughes.android.dictionary.engine.IndexBuilder.TokenData;
 import com.hughes.android.dictionary.engine.IndexedEntry;
 import com.hughes.android.dictionary.parser.WikiTokenizer;
 import com.hughes.util.StringUtil;
@@ -228,6 +227,7 @@ public class WholeSectionToHtmlParser extends AbstractWiktionaryParser {
 
     final IndexBuilder titleIndexBuilder;
     final IndexBuilder defIndexBuilder;
+    final String wiktionaryIso;
     final String skipLangIso;
     final LangConfig langConfig;
     final String webUrlTemplate;
@@ -238,6 +238,7 @@ public class WholeSectionToHtmlParser extends AbstractWiktionaryParser {
         this.titleIndexBuilder = titleIndexBuilder;
         this.defIndexBuilder = defIndexBuilder;
         assert isoToLangConfig.containsKey(wiktionaryIso): wiktionaryIso;
+        this.wiktionaryIso = wiktionaryIso;
         this.langConfig = isoToLangConfig.get(wiktionaryIso);
         this.skipLangIso = skipLangIso;
         this.webUrlTemplate = webUrlTemplate;
@@ -245,6 +246,12 @@ public class WholeSectionToHtmlParser extends AbstractWiktionaryParser {
     
     IndexedEntry indexedEntry = null;
 
+    @Override
+    AbstractWiktionaryParser newWorker(final Map<IndexBuilder, IndexBuilder> staging) {
+        return new WholeSectionToHtmlParser(stage(staging, titleIndexBuilder), stage(staging, defIndexBuilder),
+                wiktionaryIso, skipLangIso, webUrlTemplate);
+    }
+
     @Override
     public void parseSection(String heading, String text) {
         assert entrySource != null;
@@ -266,11 +273,7 @@ public class WholeSectionToHtmlParser extends AbstractWiktionaryParser {
         htmlEntry.html = callback.builder.toString();
         indexedEntry.isValid = true;
 
-        final TokenData tokenData = titleIndexBuilder.getOrCreateTokenData(title);
-        tokenData.hasMainEntry = true;
-
-        htmlEntry.addToDictionary(titleIndexBuilder.index.dict);
-        tokenData.htmlEntries.add(htmlEntry);
+        titleIndexBuilder.addHtmlEntry(title, htmlEntry);
         // titleIndexBuilder.addEntryWithString(indexedEntry, title,
         // EntryTypeName.WIKTIONARY_TITLE_MULTI_DETAIL);
         
@@ -310,6 +313,11 @@ public class WholeSectionToHtmlParser extends AbstractWiktionaryParser {
             super.onPlainText(escapeHtmlLiteral(plainText));
         }
 
+        @Override
+        public void onPlainText(WikiTokenizer.TextView plainText) {
+            onPlainText(plainText.toString());
+        }
+
         @Override
         public void onWikiLink(WikiTokenizer wikiTokenizer) {
             if (wikiTokenizer.wikiLinkText().endsWith(":" + title)) {
@@ -425,14 +433,14 @@ public class WholeSectionToHtmlParser extends AbstractWiktionaryParser {
 
         @Override
         public void onMarkup(WikiTokenizer wikiTokenizer) {
-            if ("'''".equals(wikiTokenizer.token())) {
+            if (wikiTokenizer.tokenView().contentEquals("'''")) {
                 if (!boldOn) {
                     builder.append("<b>");
                 } else {
                     builder.append("</b>");
                 }
                 boldOn = !boldOn;
-            } else if ("''".equals(wikiTokenizer.token())) {
+            } else if (wikiTokenizer.tokenView().contentEquals("''")) {
                 if (!italicOn) {
                     builder.append("<em>");
                 } else {